@@ -16,9 +16,15 @@ dependencies {
   implementation("io.vertx:vertx-core:4.2.1")
   implementation("io.vertx:vertx-web:4.2.1")
   implementation("io.vertx:vertx-web-client:4.2.1")
+  implementation("io.netty:netty-transport-native-epoll:4.1.69.Final:linux-x86_64")
   implementation("ch.qos.logback:logback-classic:1.2.3")
   implementation("org.apache.commons:commons-compress:1.22")
   implementation("com.maxmind.geoip2:geoip2:4.0.0")
+
+  testImplementation("io.vertx:vertx-junit5:4.2.1")
+  testImplementation("org.junit.jupiter:junit-jupiter:5.8.2")
+  testImplementation("org.openjdk.jmh:jmh-core:1.35")
+  testAnnotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:1.35")
 }
 
 tasks {
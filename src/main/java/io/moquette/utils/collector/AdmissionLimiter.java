@@ -0,0 +1,149 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the notify requests in flight with a limit adapted by AIMD on their latency: the limit
+ * grows by one every limit requests completed in time while the limit is in use, and it's cut by
+ * the backoff ratio, at most once per latency threshold interval, when a request is late or fails.
+ * Until the first decrease the limit grows by one per request completed in time (slow start), to
+ * quickly reach the capacity from the initial limit.
+ * <p>
+ * As in Vegas, a request is late when its latency exceeds the no-load latency, estimated as the
+ * minimum of the last two windows of {@value #MIN_LATENCY_WINDOW_MS} ms, by the tolerance ratio;
+ * the target latency is a floor of that threshold, so that short latency spikes don't shrink
+ * the limit when the collector is almost idle.
+ * <p>
+ * Shared by all the gateway instances, thread safe.
+ */
+public class AdmissionLimiter {
+
+  private static final long MIN_LATENCY_WINDOW_MS = 10_000;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final long targetLatencyNanos;
+  private final double backoffRatio;
+  private final double tolerance;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final LongAdder shed = new LongAdder();
+  private volatile int limit;
+  // fractional limit, time of the last decrease and latency windows, guarded by this
+  private double exactLimit;
+  private long lastDecreaseNanos;
+  private long previousWindowMinNanos = Long.MAX_VALUE;
+  private long windowMinNanos = Long.MAX_VALUE;
+  private long windowStartNanos;
+  private boolean slowStart = true;
+
+  public AdmissionLimiter(int initialLimit, int minLimit, int maxLimit, long targetLatencyMs, double backoffRatio,
+                          double tolerance) {
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMs);
+    this.backoffRatio = backoffRatio;
+    this.tolerance = tolerance;
+    this.exactLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    this.limit = (int) exactLimit;
+    this.windowStartNanos = System.nanoTime();
+    this.lastDecreaseNanos = windowStartNanos - targetLatencyNanos;
+  }
+
+  /**
+   * Accepted configuration keys:
+   * <ul>
+   *   <li>admission_initial_limit: default 256</li>
+   *   <li>admission_min_limit: default 16</li>
+   *   <li>admission_max_limit: default 4096</li>
+   *   <li>admission_target_latency_ms: notify latency never considered late, default 1000</li>
+   *   <li>admission_backoff_ratio: multiplicative decrease, default 0.9</li>
+   *   <li>admission_latency_tolerance: late when over this multiple of the no-load latency, default 2</li>
+   * </ul>
+   */
+  public static AdmissionLimiter fromConfig(JsonObject config) {
+    return new AdmissionLimiter(
+      config.getInteger("admission_initial_limit", 256),
+      config.getInteger("admission_min_limit", 16),
+      config.getInteger("admission_max_limit", 4096),
+      config.getLong("admission_target_latency_ms", 1000L),
+      config.getDouble("admission_backoff_ratio", 0.9),
+      config.getDouble("admission_latency_tolerance", 2.0));
+  }
+
+  /**
+   * @return true if the request is admitted, then {@link #release(long, boolean)} must be called
+   * when it completes.
+   */
+  public boolean tryAcquire() {
+    while (true) {
+      final int current = inFlight.get();
+      if (current >= limit) {
+        shed.increment();
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  public void release(long latencyNanos, boolean failed) {
+    final int inFlightBefore = inFlight.getAndDecrement();
+    final long now = System.nanoTime();
+    synchronized (this) {
+      if (now - windowStartNanos >= TimeUnit.MILLISECONDS.toNanos(MIN_LATENCY_WINDOW_MS)) {
+        previousWindowMinNanos = windowMinNanos;
+        windowMinNanos = Long.MAX_VALUE;
+        windowStartNanos = now;
+      }
+      if (!failed) {
+        windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+      }
+      final long noLoadNanos = Math.min(previousWindowMinNanos, windowMinNanos);
+      final long thresholdNanos = noLoadNanos == Long.MAX_VALUE
+        ? targetLatencyNanos
+        : Math.max(targetLatencyNanos, (long) (noLoadNanos * tolerance));
+      if (failed || latencyNanos > thresholdNanos) {
+        if (now - lastDecreaseNanos >= thresholdNanos) {
+          lastDecreaseNanos = now;
+          slowStart = false;
+          exactLimit = Math.max(minLimit, exactLimit * backoffRatio);
+        }
+      } else if (inFlightBefore * 2 >= limit) {
+        // grow only when the limit is actually constraining
+        exactLimit = Math.min(maxLimit, exactLimit + (slowStart ? 1.0 : 1.0 / exactLimit));
+      }
+      limit = (int) exactLimit;
+    }
+  }
+
+  /**
+   * Releases a request whose outcome says nothing about the downstream latency, e.g. rejected.
+   */
+  public void cancel() {
+    inFlight.decrementAndGet();
+  }
+
+  public int limit() {
+    return limit;
+  }
+
+  public int inFlight() {
+    return inFlight.get();
+  }
+
+  public long shed() {
+    return shed.sum();
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .put("limit", limit())
+      .put("in_flight", inFlight())
+      .put("shed", shed());
+  }
+}
@@ -0,0 +1,168 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the blocking sections of a component, e.g. the spool writes or the GeoIP worker lookups,
+ * reporting how long they wait for a thread in the collector_worker_queue_* metrics of its pool.
+ * <p>
+ * Every component has its own named worker pool, shared by its instances, so that a slow one
+ * doesn't make the others queue behind it; a pool of size 0 stands for the Vert.x worker pool.
+ * The tasks waiting for a thread are bounded per pool, past the bound new tasks fail with a
+ * {@link RejectedExecutionException} instead of queueing. With blocking_executor = virtual every
+ * blocking section runs on its own virtual thread instead, so they never wait for a thread;
+ * virtual threads need JDK 21, on older JDKs the worker pools are used. Results are always handed
+ * back on the context of the caller, as executeBlocking does.
+ * <p>
+ * The virtual mode is unverified: it has only been built and run on JDK 17, where it falls back to
+ * the worker pools, and BlockingExecutorBenchmark hasn't been run on JDK 21 yet. Keep the default
+ * worker mode in production until it has.
+ * <p>
+ * Meant to be created and used by a single verticle instance.
+ */
+public class BlockingExecutor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BlockingExecutor.class);
+
+  // created on first use, shared by all the executors
+  private static ExecutorService virtualThreads;
+
+  private final Vertx vertx;
+  private final Executor executor;
+  // null for the Vert.x worker pool
+  private final WorkerExecutor workerPool;
+  private final String pool;
+  private final int maxQueue;
+  private final Metrics.Level queueDepth;
+  private final Metrics.Histogram queueWait;
+  private final Metrics.Counter rejected;
+  // last ordered task, to chain the next one when running on virtual threads
+  private Future<?> lastOrdered = Future.succeededFuture();
+
+  BlockingExecutor(Vertx vertx, Executor executor, int poolSize, int maxQueue, Metrics metrics, String pool) {
+    this.vertx = vertx;
+    this.executor = executor;
+    this.workerPool = executor == null && poolSize > 0 ? vertx.createSharedWorkerExecutor(poolName(pool), poolSize) : null;
+    this.pool = pool;
+    this.maxQueue = maxQueue;
+    final String labels = "pool=\"" + pool + "\"";
+    queueDepth = metrics.level("collector_worker_queue_depth", "Blocking tasks waiting for a worker thread", labels);
+    queueWait = metrics.histogram("collector_worker_queue_wait_seconds", "Time blocking tasks wait for a worker thread",
+      labels);
+    rejected = metrics.counter("collector_worker_rejected_total", "Blocking tasks rejected because the queue was full",
+      labels);
+    metrics.gauge("collector_worker_pool_size", "Threads of the worker pool, 0 for the Vert.x one or virtual threads",
+      labels, () -> workerPool != null ? poolSize : 0);
+  }
+
+  /**
+   * Accepted configuration keys:
+   * <ul>
+   *   <li>blocking_executor: worker (default) or virtual</li>
+   *   <li>&lt;pool&gt;_pool_size: threads of the pool, 0 to use the Vert.x worker pool</li>
+   *   <li>&lt;pool&gt;_queue_max: tasks waiting for a thread before rejecting new ones, 0 for
+   *   no bound, default 1000</li>
+   * </ul>
+   *
+   * @param pool name of the pool in the configuration keys and metrics.
+   * @param defaultPoolSize threads of the pool when not configured.
+   */
+  public static BlockingExecutor create(Vertx vertx, JsonObject config, Metrics metrics, String pool,
+                                        int defaultPoolSize) {
+    final boolean virtual = "virtual".equals(config.getString("blocking_executor", "worker"));
+    return new BlockingExecutor(vertx, virtual ? virtualThreads() : null,
+      config.getInteger(pool + "_pool_size", defaultPoolSize), config.getInteger(pool + "_queue_max", 1000),
+      metrics, pool);
+  }
+
+  /**
+   * @return the name of the Vert.x worker pool, to deploy worker verticles on it.
+   */
+  public static String poolName(String pool) {
+    return "collector-" + pool.replace('_', '-');
+  }
+
+  /**
+   * @return the executor starting a virtual thread per task, null if the JDK doesn't have them.
+   */
+  static synchronized ExecutorService virtualThreads() {
+    if (virtualThreads == null) {
+      try {
+        // compiled for older JDKs, looked up at runtime
+        virtualThreads = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        LOG.warn("Virtual threads need JDK 21, found {}: blocking code runs on the worker pool",
+          System.getProperty("java.version"));
+        return null;
+      }
+    }
+    return virtualThreads;
+  }
+
+  public boolean isVirtual() {
+    return executor != null;
+  }
+
+  /**
+   * Same contract of {@link Vertx#executeBlocking(Handler, boolean)}: ordered tasks of this
+   * executor run one after the other, in submission order.
+   */
+  public <T> Future<T> executeBlocking(Handler<Promise<T>> code, boolean ordered) {
+    if (executor == null && maxQueue > 0 && queueDepth.value() >= maxQueue) {
+      rejected.increment();
+      return Future.failedFuture(new RejectedExecutionException("Queue of worker pool " + pool + " is full"));
+    }
+    queueDepth.increment();
+    final long queuedAt = System.nanoTime();
+    final Handler<Promise<T>> measured = promise -> {
+      queueDepth.decrement();
+      queueWait.recordSince(queuedAt);
+      code.handle(promise);
+    };
+    if (workerPool != null) {
+      return workerPool.executeBlocking(measured, ordered);
+    }
+    if (executor == null) {
+      return vertx.executeBlocking(measured, ordered);
+    }
+    if (!ordered) {
+      return runOnVirtualThread(measured);
+    }
+    final Future<T> result = lastOrdered.transform(ar -> runOnVirtualThread(measured));
+    lastOrdered = result;
+    return result;
+  }
+
+  public <T> Future<T> executeBlocking(Handler<Promise<T>> code) {
+    return executeBlocking(code, true);
+  }
+
+  private <T> Future<T> runOnVirtualThread(Handler<Promise<T>> code) {
+    final Context context = vertx.getOrCreateContext();
+    final Promise<T> result = Promise.promise();
+    executor.execute(() -> {
+      final Promise<T> promise = Promise.promise();
+      // completed from the virtual thread, the callbacks of the caller run on its context
+      promise.future().onComplete(ar -> context.runOnContext(v -> result.handle(ar)));
+      try {
+        code.handle(promise);
+      } catch (Throwable th) {
+        promise.tryFail(th);
+      }
+    });
+    return result.future();
+  }
+}
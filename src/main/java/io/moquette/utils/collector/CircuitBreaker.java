@@ -0,0 +1,144 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fails fast the calls to a dependency that is failing most of the calls.
+ * <p>
+ * While closed it tracks the outcome of the last window calls and opens when at least min calls
+ * of them are tracked and the failed ones reach the failure ratio. Once open every call is
+ * refused for the open interval, then a single probe call is let through (half open): the
+ * breaker closes if it succeeds, otherwise it opens again.
+ * <p>
+ * Every state change starts a new generation, a call is tracked only if it completes in the
+ * generation it started in: e.g. a call started before the breaker opened and completing while half
+ * open isn't taken for the probe.
+ * <p>
+ * Confined to the event loop of the owner, not thread safe.
+ */
+public class CircuitBreaker {
+
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  /**
+   * Returned by {@link #tryAcquire()} for a refused call.
+   */
+  public static final long REJECTED = -1;
+
+  private final boolean[] outcomes;
+  private final int minCalls;
+  private final double failureRatio;
+  private final long openNanos;
+  private final Metrics.Level open;
+  private State state = State.CLOSED;
+  private long generation;
+  private int calls;
+  private int failures;
+  private int next;
+  private long openedAt;
+  private boolean probing;
+  private long opened;
+  private long rejected;
+
+  /**
+   * @param open incremented while the breaker is open, shared by all the breakers of a dependency.
+   */
+  public CircuitBreaker(int window, int minCalls, double failureRatio, long openMs, Metrics.Level open) {
+    this.outcomes = new boolean[window];
+    this.minCalls = Math.min(minCalls, window);
+    this.failureRatio = failureRatio;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+    this.open = open;
+  }
+
+  /**
+   * @return {@link #REJECTED} if the call is refused, otherwise the permit of the call, to report its
+   * outcome with {@link #record(long, boolean)}.
+   */
+  public long tryAcquire() {
+    switch (state) {
+      case CLOSED:
+        return generation;
+      case OPEN:
+        if (System.nanoTime() - openedAt < openNanos) {
+          rejected++;
+          return REJECTED;
+        }
+        transition(State.HALF_OPEN);
+        open.decrement();
+        return probe();
+      default:
+        return probe();
+    }
+  }
+
+  private long probe() {
+    if (probing) {
+      rejected++;
+      return REJECTED;
+    }
+    probing = true;
+    return generation;
+  }
+
+  public void record(long permit, boolean failed) {
+    if (permit != generation) {
+      // started before the last state change
+      return;
+    }
+    if (state == State.HALF_OPEN) {
+      probing = false;
+      if (failed) {
+        trip();
+      } else {
+        transition(State.CLOSED);
+        calls = 0;
+        failures = 0;
+        next = 0;
+      }
+      return;
+    }
+    if (calls == outcomes.length) {
+      if (outcomes[next]) {
+        failures--;
+      }
+    } else {
+      calls++;
+    }
+    outcomes[next] = failed;
+    next = (next + 1) % outcomes.length;
+    if (failed) {
+      failures++;
+      if (calls >= minCalls && failures >= failureRatio * calls) {
+        trip();
+      }
+    }
+  }
+
+  private void transition(State to) {
+    state = to;
+    generation++;
+  }
+
+  private void trip() {
+    transition(State.OPEN);
+    openedAt = System.nanoTime();
+    opened++;
+    open.increment();
+  }
+
+  public State state() {
+    return state;
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .put("state", state.name())
+      .put("window_calls", calls)
+      .put("window_failures", failures)
+      .put("opened", opened)
+      .put("rejected", rejected);
+  }
+}
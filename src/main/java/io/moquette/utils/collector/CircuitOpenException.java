@@ -0,0 +1,13 @@
+package io.moquette.utils.collector;
+
+/**
+ * Signals a call refused without trying it, because the circuit breaker of the dependency is open.
+ */
+public class CircuitOpenException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  public CircuitOpenException(String dependency) {
+    super("Circuit breaker of " + dependency + " is open", null, false, false);
+  }
+}
@@ -0,0 +1,169 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.VertxOptions;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Collector settings, read from an optional JSON file and overridden by environment variables.
+ * <p>
+ * The file is the one pointed by {@code COLLECTOR_CONFIG}, or {@code collector.json} in the working
+ * directory if present. Keys are the same used by the verticles' configuration, e.g.:
+ * <pre>
+ * {
+ *   "gateway_instances": 16,
+ *   "event_loop_pool_size": 16,
+ *   "worker_pool_size": 20,
+ *   "prefer_native_transport": true,
+ *   "batch_max_rows": 100
+ * }
+ * </pre>
+ */
+public class CollectorConfig {
+
+  private final JsonObject json;
+  private final Map<String, String> env;
+
+  CollectorConfig(JsonObject json, Map<String, String> env) {
+    this.json = json;
+    this.env = env;
+    overrideFromEnv();
+  }
+
+  public static CollectorConfig load() throws IOException {
+    final Map<String, String> env = System.getenv();
+    final Path file = Paths.get(env.getOrDefault("COLLECTOR_CONFIG", "collector.json"));
+    JsonObject json = new JsonObject();
+    if (Files.exists(file)) {
+      json = new JsonObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    } else if (env.containsKey("COLLECTOR_CONFIG")) {
+      throw new IOException("Configuration file " + file + " doesn't exist");
+    }
+    return new CollectorConfig(json, env);
+  }
+
+  private void overrideFromEnv() {
+    env("API_KEY", "api_key", value -> value);
+    env("WORKSPACE", "workspace_slug", value -> value);
+    env("REGION", "region", value -> value);
+    env("GEOLITE2_LICENSE_KEY", "license_key", value -> value);
+    env("GEOLITE_DOWNLOAD_URL", "geolite_download_url", value -> value);
+    env("GEOLITE_CHECKSUM_URL", "geolite_checksum_url", value -> value);
+    env("GEOLITE_ALLOW_UNVERIFIED", "geolite_allow_unverified", Boolean::parseBoolean);
+    env("GEOLITE_REFRESH_INTERVAL_MS", "geolite_refresh_interval_ms", Long::parseLong);
+    env("GEOLITE_RETRY_INTERVAL_MS", "geolite_retry_interval_ms", Long::parseLong);
+    env("GEOLITE_DOWNLOAD_TIMEOUT_MS", "geolite_download_timeout_ms", Long::parseLong);
+    env("GEOLITE_DIR", "geolite_dir", value -> value);
+    env("GEOIP_MODE", "geoip_mode", value -> value);
+    env("GEOIP_INSTANCES", "geoip_instances", Integer::parseInt);
+    env("GEOIP_DIRECT", "geoip_direct", Boolean::parseBoolean);
+    env("GEOIP_BATCH_CHUNK", "geoip_batch_chunk", Integer::parseInt);
+    env("GEOIP_BATCH_MAX", "geoip_batch_max", Integer::parseInt);
+    env("GEOIP_PENDING_MAX", "geoip_pending_max", Integer::parseInt);
+    env("GEOIP_ENRICH_INTERVAL_MS", "geoip_enrich_interval_ms", Long::parseLong);
+    env("GEOIP_POOL_SIZE", "geoip_pool_size", Integer::parseInt);
+    env("GEOIP_QUEUE_MAX", "geoip_queue_max", Integer::parseInt);
+    env("GEOIP_CACHE_MAX_ENTRIES", "geoip_cache_max_entries", Integer::parseInt);
+    env("GEOIP_CACHE_TTL_MS", "geoip_cache_ttl_ms", Long::parseLong);
+
+    env("HTTP_PORT", "http_port", Integer::parseInt);
+    env("GATEWAY_INSTANCES", "gateway_instances", Integer::parseInt);
+    env("EVENT_LOOP_POOL_SIZE", "event_loop_pool_size", Integer::parseInt);
+    env("WORKER_POOL_SIZE", "worker_pool_size", Integer::parseInt);
+    env("BLOCKING_EXECUTOR", "blocking_executor", value -> value);
+    env("PREFER_NATIVE_TRANSPORT", "prefer_native_transport", Boolean::parseBoolean);
+    env("LOG_SAMPLE_RATE", "log_sample_rate", Integer::parseInt);
+
+    env("BATCH_MAX_ROWS", "batch_max_rows", Integer::parseInt);
+    env("BATCH_MAX_DELAY_MS", "batch_max_delay_ms", Long::parseLong);
+    env("XATA_BASE_URL", "xata_base_url", value -> value);
+    env("XATA_POOL_SIZE", "xata_pool_size", Integer::parseInt);
+    env("XATA_REQUEST_TIMEOUT_MS", "xata_request_timeout_ms", Long::parseLong);
+    env("XATA_HTTP2", "xata_http2", Boolean::parseBoolean);
+    env("XATA_RETRY_MAX", "xata_retry_max", Integer::parseInt);
+    env("XATA_RETRY_BASE_DELAY_MS", "xata_retry_base_delay_ms", Long::parseLong);
+    env("XATA_RETRY_MAX_DELAY_MS", "xata_retry_max_delay_ms", Long::parseLong);
+    env("XATA_HEDGE_ENABLED", "xata_hedge_enabled", Boolean::parseBoolean);
+    env("XATA_HEDGE_PERCENTILE", "xata_hedge_percentile", Double::parseDouble);
+    env("XATA_HEDGE_MIN_DELAY_MS", "xata_hedge_min_delay_ms", Long::parseLong);
+    env("XATA_BREAKER_WINDOW", "xata_breaker_window", Integer::parseInt);
+    env("XATA_BREAKER_MIN_CALLS", "xata_breaker_min_calls", Integer::parseInt);
+    env("XATA_BREAKER_FAILURE_RATIO", "xata_breaker_failure_ratio", Double::parseDouble);
+    env("XATA_BREAKER_OPEN_MS", "xata_breaker_open_ms", Long::parseLong);
+    env("XATA_REDIRECT_TTL_MS", "xata_redirect_ttl_ms", Long::parseLong);
+
+    env("SINKS", "sinks", value -> value);
+    env("LOCAL_SINK_DIR", "local_sink_dir", value -> value);
+    env("LOCAL_SINK_FILE_BYTES", "local_sink_file_bytes", Long::parseLong);
+    env("LOCAL_SINK_FSYNC", "local_sink_fsync", Boolean::parseBoolean);
+    env("LOCAL_SINK_MAX_ROWS", "local_sink_max_rows", Integer::parseInt);
+    env("LOCAL_SINK_MAX_DELAY_MS", "local_sink_max_delay_ms", Long::parseLong);
+    env("LOCAL_SINK_POOL_SIZE", "local_sink_pool_size", Integer::parseInt);
+    env("LOCAL_SINK_QUEUE_MAX", "local_sink_queue_max", Integer::parseInt);
+
+    env("SPOOL_DIR", "spool_dir", value -> value);
+    env("SPOOL_SEGMENT_BYTES", "spool_segment_bytes", Integer::parseInt);
+    env("SPOOL_FSYNC", "spool_fsync", Boolean::parseBoolean);
+    env("SPOOL_DRAIN_INTERVAL_MS", "spool_drain_interval_ms", Long::parseLong);
+    env("SPOOL_POOL_SIZE", "spool_pool_size", Integer::parseInt);
+    env("SPOOL_QUEUE_MAX", "spool_queue_max", Integer::parseInt);
+
+    env("ADMISSION_INITIAL_LIMIT", "admission_initial_limit", Integer::parseInt);
+    env("ADMISSION_MIN_LIMIT", "admission_min_limit", Integer::parseInt);
+    env("ADMISSION_MAX_LIMIT", "admission_max_limit", Integer::parseInt);
+    env("ADMISSION_TARGET_LATENCY_MS", "admission_target_latency_ms", Long::parseLong);
+    env("ADMISSION_LATENCY_TOLERANCE", "admission_latency_tolerance", Double::parseDouble);
+    env("ADMISSION_RETRY_AFTER_S", "admission_retry_after_s", Integer::parseInt);
+    env("NOTIFY_MAX_BODY_BYTES", "notify_max_body_bytes", Integer::parseInt);
+    env("NOTIFY_BATCH_MAX_LINES", "notify_batch_max_lines", Integer::parseInt);
+    env("ROLLUP_MAX_KEYS", "rollup_max_keys", Integer::parseInt);
+    env("ROLLUP_RETENTION_DAYS", "rollup_retention_days", Integer::parseInt);
+    env("ROLLUP_SNAPSHOT_PATH", "rollup_snapshot_path", value -> value);
+    env("ROLLUP_SNAPSHOT_INTERVAL_MS", "rollup_snapshot_interval_ms", Long::parseLong);
+    env("ROLLUP_POOL_SIZE", "rollup_pool_size", Integer::parseInt);
+    env("DEDUP_WINDOW_MS", "dedup_window_ms", Long::parseLong);
+    env("DEDUP_MAX_ENTRIES", "dedup_max_entries", Integer::parseInt);
+    env("RATE_LIMIT_SLOTS", "rate_limit_slots", Integer::parseInt);
+    env("RATE_LIMIT_IP_PER_MINUTE", "rate_limit_ip_per_minute", Integer::parseInt);
+    env("RATE_LIMIT_IP_BURST", "rate_limit_ip_burst", Integer::parseInt);
+    env("RATE_LIMIT_UUID_PER_MINUTE", "rate_limit_uuid_per_minute", Integer::parseInt);
+    env("RATE_LIMIT_UUID_BURST", "rate_limit_uuid_burst", Integer::parseInt);
+  }
+
+  private void env(String envVariable, String key, Function<String, Object> parser) {
+    final String value = env.get(envVariable);
+    if (value != null && !value.isEmpty()) {
+      json.put(key, parser.apply(value));
+    }
+  }
+
+  public JsonObject json() {
+    return json;
+  }
+
+  public int gatewayInstances() {
+    return json.getInteger("gateway_instances", Runtime.getRuntime().availableProcessors());
+  }
+
+  public VertxOptions vertxOptions() {
+    final VertxOptions options = new VertxOptions()
+      .setPreferNativeTransport(json.getBoolean("prefer_native_transport", false));
+    if (json.containsKey("event_loop_pool_size")) {
+      options.setEventLoopPoolSize(json.getInteger("event_loop_pool_size"));
+    } else {
+      // each gateway instance is bound to its own event loop
+      options.setEventLoopPoolSize(Math.max(VertxOptions.DEFAULT_EVENT_LOOP_POOL_SIZE, gatewayInstances() + 1));
+    }
+    if (json.containsKey("worker_pool_size")) {
+      options.setWorkerPoolSize(json.getInteger("worker_pool_size"));
+    }
+    return options;
+  }
+}
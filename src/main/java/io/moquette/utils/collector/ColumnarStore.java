@@ -0,0 +1,421 @@
+package io.moquette.utils.collector;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Local store of the collected rows, appended in blocks to files of bounded size.
+ * <p>
+ * Every block holds a batch of rows column by column: each column has the dictionary of its
+ * distinct values in the block, and the rows refer to it by index. Most of the row values (os,
+ * versions, nation...) repeat across brokers, so a row takes few bytes and a block is encoded
+ * without any per row object.
+ * <p>
+ * A block is stored as a magic number, the length of its payload, the payload and its CRC32, so
+ * that a partially written block reads as the end of the file. The payload is:
+ * <pre>
+ *   varint rows, varint columns
+ *   per column: name, varint dictionary size, dictionary values, one varint id per row
+ * </pre>
+ * where the id is 0 for a row without the column, otherwise the dictionary index plus one, and
+ * every value is a tag byte followed by the UTF-8 string, the zigzag long or the double.
+ * <p>
+ * Blocks are encoded by the calling thread and then written under a lock, shared by all the
+ * gateway instances. Writes are blocking.
+ */
+public class ColumnarStore {
+
+  private static final int MAGIC = 0x55434f4c;
+  private static final String FILE_PREFIX = "usage-";
+  private static final String FILE_SUFFIX = ".ucol";
+  // a longer block is refused when written and taken as corruption when read
+  static final int MAX_BLOCK_BYTES = 64 * 1024 * 1024;
+
+  private static final byte STRING = 1;
+  private static final byte LONG = 2;
+  private static final byte DOUBLE = 3;
+  private static final byte TRUE = 4;
+  private static final byte FALSE = 5;
+
+  private final Logger logger = LoggerFactory.getLogger(ColumnarStore.class);
+
+  private final Path directory;
+  private final long fileBytes;
+  private final boolean fsync;
+  private final LongAdder rows = new LongAdder();
+  private final LongAdder blocks = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  // guarded by this
+  private long fileSequence;
+  private FileChannel file;
+  private long fileSize;
+
+  public ColumnarStore(Path directory, long fileBytes, boolean fsync) throws IOException {
+    this.directory = directory;
+    this.fileBytes = fileBytes;
+    this.fsync = fsync;
+    Files.createDirectories(directory);
+    // a file could end with a torn block, never append after it
+    for (Path existing : files(directory)) {
+      fileSequence = Math.max(fileSequence, sequence(existing) + 1);
+    }
+  }
+
+  /**
+   * Accepted configuration keys:
+   * <ul>
+   *   <li>local_sink_dir: default data</li>
+   *   <li>local_sink_file_bytes: size after which a new file is started, default 256 MB</li>
+   *   <li>local_sink_fsync: flush every block to the disk, default false</li>
+   * </ul>
+   */
+  public static ColumnarStore fromConfig(JsonObject config) throws IOException {
+    return new ColumnarStore(Paths.get(config.getString("local_sink_dir", "data")),
+      config.getLong("local_sink_file_bytes", 256L * 1024 * 1024),
+      config.getBoolean("local_sink_fsync", false));
+  }
+
+  /**
+   * Appends the rows, JSON encoded objects with scalar values, as a single block.
+   */
+  public void append(List<Buffer> rows) throws IOException {
+    final byte[] block = encode(rows);
+    synchronized (this) {
+      if (file == null || (fileSize > 0 && fileSize + block.length > fileBytes)) {
+        rotate();
+      }
+      final ByteBuffer buffer = ByteBuffer.wrap(block);
+      while (buffer.hasRemaining()) {
+        file.write(buffer);
+      }
+      if (fsync) {
+        file.force(false);
+      }
+      fileSize += block.length;
+    }
+    this.rows.add(rows.size());
+    blocks.increment();
+    bytes.add(block.length);
+  }
+
+  public synchronized void close() throws IOException {
+    if (file != null) {
+      file.close();
+      file = null;
+    }
+  }
+
+  public long rows() {
+    return rows.sum();
+  }
+
+  public long blocks() {
+    return blocks.sum();
+  }
+
+  public long bytes() {
+    return bytes.sum();
+  }
+
+  public Path directory() {
+    return directory;
+  }
+
+  private void rotate() throws IOException {
+    if (file != null) {
+      file.close();
+    }
+    final Path path = directory.resolve(String.format("%s%020d%s", FILE_PREFIX, fileSequence++, FILE_SUFFIX));
+    file = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    fileSize = 0;
+    logger.info("Writing rows to {}", path);
+  }
+
+  private static final class Column {
+    private final Map<Object, Integer> dictionary = new HashMap<>();
+    private final List<Object> values = new ArrayList<>();
+    private int[] ids;
+
+    Column(int rows) {
+      ids = new int[rows];
+    }
+
+    void set(int row, Object value) {
+      if (value == null) {
+        return;
+      }
+      Integer id = dictionary.get(value);
+      if (id == null) {
+        values.add(value);
+        id = values.size();
+        dictionary.put(value, id);
+      }
+      ids[row] = id;
+    }
+  }
+
+  static byte[] encode(List<Buffer> rows) throws IOException {
+    // insertion order, columns keep the order of their first appearance
+    final Map<String, Column> columns = new LinkedHashMap<>();
+    for (int row = 0; row < rows.size(); row++) {
+      try (JsonParser parser = Notify.createParser(rows.get(row))) {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+          throw new IOException("Row must be a JSON object");
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          final String name = parser.getCurrentName();
+          final Object value = scalar(parser, parser.nextToken());
+          columns.computeIfAbsent(name, n -> new Column(rows.size())).set(row, value);
+        }
+      }
+    }
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + rows.size() * 16);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    // payload length, filled when known
+    out.writeInt(0);
+    writeVarint(out, rows.size());
+    writeVarint(out, columns.size());
+    for (Map.Entry<String, Column> entry : columns.entrySet()) {
+      writeString(out, entry.getKey());
+      final Column column = entry.getValue();
+      writeVarint(out, column.values.size());
+      for (Object value : column.values) {
+        writeValue(out, value);
+      }
+      for (int row = 0; row < rows.size(); row++) {
+        writeVarint(out, column.ids[row]);
+      }
+    }
+    out.flush();
+    final byte[] block = bytes.toByteArray();
+    final int payloadLength = block.length - 8;
+    if (payloadLength > MAX_BLOCK_BYTES) {
+      throw new IOException("Block of " + payloadLength + " bytes is longer than " + MAX_BLOCK_BYTES);
+    }
+    ByteBuffer.wrap(block).putInt(4, payloadLength);
+    final CRC32 crc = new CRC32();
+    crc.update(block, 8, payloadLength);
+    final byte[] withCrc = Arrays.copyOf(block, block.length + 4);
+    ByteBuffer.wrap(withCrc).putInt(block.length, (int) crc.getValue());
+    return withCrc;
+  }
+
+  private static Object scalar(JsonParser parser, JsonToken token) throws IOException {
+    switch (token) {
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+        return parser.getLongValue();
+      case VALUE_NUMBER_FLOAT:
+        return parser.getDoubleValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      default:
+        throw new IOException("Field " + parser.getCurrentName() + " must be a scalar value");
+    }
+  }
+
+  private static void writeValue(DataOutputStream out, Object value) throws IOException {
+    if (value instanceof String) {
+      out.writeByte(STRING);
+      writeString(out, (String) value);
+    } else if (value instanceof Long) {
+      out.writeByte(LONG);
+      final long number = (Long) value;
+      writeVarint(out, (number << 1) ^ (number >> 63));
+    } else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else {
+      out.writeByte((Boolean) value ? TRUE : FALSE);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    final byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+    writeVarint(out, utf8.length);
+    out.write(utf8);
+  }
+
+  private static void writeVarint(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  /**
+   * Reads the rows of a file in order, up to the first torn or corrupted block.
+   */
+  public static void read(Path path, Consumer<JsonObject> consumer) throws IOException {
+    long remaining = Files.size(path);
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+      while (true) {
+        final byte[] payload;
+        try {
+          if (in.readInt() != MAGIC) {
+            LoggerFactory.getLogger(ColumnarStore.class).warn("Unexpected content in {}, skipping the rest", path);
+            return;
+          }
+          final int length = in.readInt();
+          remaining -= 8;
+          // checked before allocating, the length isn't covered by the CRC
+          if (length < 0 || length > MAX_BLOCK_BYTES) {
+            LoggerFactory.getLogger(ColumnarStore.class).warn("Block length {} out of bounds in {}, skipping the rest",
+              length, path);
+            return;
+          }
+          if (length + 4L > remaining) {
+            // torn block
+            return;
+          }
+          payload = new byte[length];
+          in.readFully(payload);
+          remaining -= length + 4L;
+          final CRC32 crc = new CRC32();
+          crc.update(payload);
+          if (in.readInt() != (int) crc.getValue()) {
+            LoggerFactory.getLogger(ColumnarStore.class).warn("Corrupted block in {}, skipping the rest", path);
+            return;
+          }
+        } catch (EOFException e) {
+          // end of the file or torn block
+          return;
+        }
+        decode(payload, consumer);
+      }
+    }
+  }
+
+  private static void decode(byte[] payload, Consumer<JsonObject> consumer) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    final int rowCount = (int) readVarint(in);
+    final int columnCount = (int) readVarint(in);
+    final JsonObject[] rows = new JsonObject[rowCount];
+    for (int row = 0; row < rowCount; row++) {
+      rows[row] = new JsonObject();
+    }
+    for (int c = 0; c < columnCount; c++) {
+      final String name = readString(in);
+      final Object[] dictionary = new Object[(int) readVarint(in)];
+      for (int i = 0; i < dictionary.length; i++) {
+        dictionary[i] = readValue(in);
+      }
+      for (int row = 0; row < rowCount; row++) {
+        final int id = (int) readVarint(in);
+        if (id > 0) {
+          rows[row].put(name, dictionary[id - 1]);
+        }
+      }
+    }
+    for (JsonObject row : rows) {
+      consumer.accept(row);
+    }
+  }
+
+  private static Object readValue(DataInputStream in) throws IOException {
+    final byte tag = in.readByte();
+    switch (tag) {
+      case STRING:
+        return readString(in);
+      case LONG:
+        final long zigzag = readVarint(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+      case DOUBLE:
+        return in.readDouble();
+      case TRUE:
+        return Boolean.TRUE;
+      case FALSE:
+        return Boolean.FALSE;
+      default:
+        throw new IOException("Unknown value tag " + tag);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    final byte[] utf8 = new byte[(int) readVarint(in)];
+    in.readFully(utf8);
+    return new String(utf8, StandardCharsets.UTF_8);
+  }
+
+  private static long readVarint(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final int b = in.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  static List<Path> files(Path directory) throws IOException {
+    try (Stream<Path> list = Files.list(directory)) {
+      return list
+        .filter(p -> p.getFileName().toString().startsWith(FILE_PREFIX)
+          && p.getFileName().toString().endsWith(FILE_SUFFIX))
+        .sorted()
+        .collect(Collectors.toList());
+    }
+  }
+
+  private static long sequence(Path file) {
+    final String name = file.getFileName().toString();
+    return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+  }
+
+  /**
+   * Exports the rows stored in a directory as NDJSON on the standard output, e.g. to load them into
+   * Xata afterwards.
+   */
+  public static void main(String[] args) throws IOException {
+    final Path directory = Paths.get(args.length > 0 ? args[0] : "data");
+    final PrintStream out = new PrintStream(System.out, false, "UTF-8");
+    for (Path path : files(directory)) {
+      read(path, row -> out.println(row.encode()));
+    }
+    out.flush();
+  }
+}
@@ -0,0 +1,192 @@
+package io.moquette.utils.collector;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recognizes the repeated notifies of a broker (same uuid, broker version and JVM version) within
+ * a time window, so that only the first one of every window is forwarded.
+ * <p>
+ * The number of notifies suppressed in a window isn't lost: it's reported with the first notify
+ * of the following window or, if the broker doesn't notify anymore, returned as an
+ * {@link Aggregate} by {@link #expired()} once the window is over or the entry is evicted or
+ * forgotten.
+ * <p>
+ * A window is started by a notify that is then written, if the write fails the window is dropped
+ * with {@link #forget(String, String, String, long)}, so that the repeats aren't suppressed with
+ * no row of the broker stored. The repeats refused by the uuid rate limit, that runs first, are
+ * counted in the window with {@link #refused(String, String, String)}, as the suppressed ones.
+ * <p>
+ * The counts are written in a suppressed_count column, that the Xata table must have: the filter is
+ * disabled unless dedup_window_ms is set.
+ * <p>
+ * Entries are kept in window start order and bounded in number, the oldest is evicted first.
+ * Shared by all the gateway instances, thread safe.
+ */
+public class DuplicateFilter {
+
+  /**
+   * Returned by {@link #check(String, String, String, String)} for a notify to suppress.
+   */
+  public static final long DUPLICATE = -1;
+
+  /**
+   * Notifies suppressed in a window that ended without any later notify.
+   */
+  public static final class Aggregate {
+    public final String uuid;
+    public final String version;
+    public final String jvmVersion;
+    public final String remoteIp;
+    public final long suppressed;
+
+    Aggregate(String uuid, Window window) {
+      this.uuid = uuid;
+      this.version = window.version;
+      this.jvmVersion = window.jvmVersion;
+      this.remoteIp = window.remoteIp;
+      this.suppressed = window.suppressed;
+    }
+  }
+
+  private static final class Window {
+    private final String version;
+    private final String jvmVersion;
+    private final String remoteIp;
+    private final long startNanos;
+    private long suppressed;
+
+    Window(String version, String jvmVersion, String remoteIp, long startNanos) {
+      this.version = version;
+      this.jvmVersion = jvmVersion;
+      this.remoteIp = remoteIp;
+      this.startNanos = startNanos;
+    }
+  }
+
+  private final long windowNanos;
+  private final int maxEntries;
+  // insertion order is the window start order
+  private final LinkedHashMap<String, Window> windows;
+  private final List<Aggregate> evicted = new ArrayList<>();
+  private final LongAdder suppressed = new LongAdder();
+
+  public DuplicateFilter(long windowMs, int maxEntries) {
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+    this.maxEntries = maxEntries;
+    this.windows = new LinkedHashMap<String, Window>(Math.min(maxEntries, 1024)) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Window> eldest) {
+        if (size() > DuplicateFilter.this.maxEntries) {
+          if (eldest.getValue().suppressed > 0) {
+            evicted.add(new Aggregate(eldest.getKey(), eldest.getValue()));
+          }
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return {@link #DUPLICATE} if the notify repeats one seen in the current window, otherwise the
+   * number of notifies suppressed in the previous window of the same broker, to forward with it.
+   */
+  public synchronized long check(String uuid, String version, String jvmVersion, String remoteIp) {
+    if (uuid == null || windowNanos == 0) {
+      return 0;
+    }
+    final long now = System.nanoTime();
+    final Window window = windows.get(uuid);
+    if (window != null && now - window.startNanos < windowNanos
+      && equal(window.version, version) && equal(window.jvmVersion, jvmVersion)) {
+      window.suppressed++;
+      suppressed.increment();
+      return DUPLICATE;
+    }
+    // re-inserted to keep the window start order
+    final Window previous = windows.remove(uuid);
+    windows.put(uuid, new Window(version, jvmVersion, remoteIp, now));
+    return previous != null ? previous.suppressed : 0;
+  }
+
+  /**
+   * Counts in the current window of the broker a repeat refused before the check, e.g. by the rate
+   * limit.
+   *
+   * @return true if the notify repeats the one of the current window.
+   */
+  public synchronized boolean refused(String uuid, String version, String jvmVersion) {
+    if (uuid == null || windowNanos == 0) {
+      return false;
+    }
+    final Window window = windows.get(uuid);
+    if (window == null || System.nanoTime() - window.startNanos >= windowNanos
+      || !equal(window.version, version) || !equal(window.jvmVersion, jvmVersion)) {
+      return false;
+    }
+    window.suppressed++;
+    suppressed.increment();
+    return true;
+  }
+
+  /**
+   * Drops the window started by a notify whose row couldn't be written. The count forwarded with
+   * it and the repeats suppressed meanwhile are reported by the next {@link #expired()}.
+   *
+   * @param suppressedBefore as returned by {@link #check(String, String, String, String)} for the
+   * failed notify.
+   */
+  public synchronized void forget(String uuid, String version, String jvmVersion, long suppressedBefore) {
+    if (uuid == null || windowNanos == 0) {
+      return;
+    }
+    final Window window = windows.get(uuid);
+    if (window == null || !equal(window.version, version) || !equal(window.jvmVersion, jvmVersion)) {
+      return;
+    }
+    windows.remove(uuid);
+    window.suppressed += suppressedBefore;
+    if (window.suppressed > 0) {
+      evicted.add(new Aggregate(uuid, window));
+    }
+  }
+
+  /**
+   * Removes the windows that are over and reports the ones with suppressed notifies.
+   */
+  public synchronized List<Aggregate> expired() {
+    final long now = System.nanoTime();
+    final List<Aggregate> aggregates = new ArrayList<>(evicted);
+    evicted.clear();
+    final Iterator<Map.Entry<String, Window>> iterator = windows.entrySet().iterator();
+    while (iterator.hasNext()) {
+      final Map.Entry<String, Window> entry = iterator.next();
+      if (now - entry.getValue().startNanos < windowNanos) {
+        break;
+      }
+      if (entry.getValue().suppressed > 0) {
+        aggregates.add(new Aggregate(entry.getKey(), entry.getValue()));
+      }
+      iterator.remove();
+    }
+    return aggregates;
+  }
+
+  public synchronized int size() {
+    return windows.size();
+  }
+
+  public long suppressed() {
+    return suppressed.sum();
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
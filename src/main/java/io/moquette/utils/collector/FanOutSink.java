@@ -0,0 +1,54 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes every row to all the sinks, the row is stored once all of them have stored it. A failure
+ * is reported as the one of the first failed sink, the others still store the row.
+ */
+public class FanOutSink implements Sink {
+
+  private final List<Sink> sinks;
+
+  public FanOutSink(List<Sink> sinks) {
+    this.sinks = new ArrayList<>(sinks);
+  }
+
+  @Override
+  public String name() {
+    return "fan_out";
+  }
+
+  @Override
+  public Future<Void> write(Buffer row) {
+    final List<Future<Void>> writes = new ArrayList<>(sinks.size());
+    for (Sink sink : sinks) {
+      writes.add(sink.write(row));
+    }
+    return CompositeFuture.all(new ArrayList<>(writes)).mapEmpty();
+  }
+
+  @Override
+  public Future<Void> writeAlone(Buffer row) {
+    final List<Future<Void>> writes = new ArrayList<>(sinks.size());
+    for (Sink sink : sinks) {
+      writes.add(sink.writeAlone(row));
+    }
+    return CompositeFuture.all(new ArrayList<>(writes)).mapEmpty();
+  }
+
+  @Override
+  public JsonObject stats() {
+    final JsonObject stats = new JsonObject();
+    for (Sink sink : sinks) {
+      stats.put(sink.name(), sink.stats());
+    }
+    return stats;
+  }
+}
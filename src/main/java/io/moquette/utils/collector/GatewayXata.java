@@ -1,218 +1,827 @@
 package io.moquette.utils.collector;
 
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.Message;
-import io.vertx.core.http.HttpClient;
-import io.vertx.core.http.HttpClientResponse;
 import io.vertx.core.http.HttpHeaders;
-import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.http.HttpServerRequest;
-import io.vertx.core.http.RequestOptions;
-import io.vertx.core.http.impl.HttpUtils;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
-import io.vertx.ext.web.client.WebClient;
-import io.vertx.ext.web.client.WebClientOptions;
 import io.vertx.ext.web.handler.BodyHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-
-import static io.vertx.core.http.HttpHeaders.CONTENT_LENGTH;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class GatewayXata extends AbstractVerticle {
 
   private final Logger logger = LoggerFactory.getLogger(GatewayXata.class);
 
-  private WebClient webClient;
-  private String baseUri;
-  private String token;
   private DateTimeFormatter dateTimeFormatter;
-  private String host;
+  private long formattedSecond = -1;
+  private String formattedTime;
+  private String formattedDay;
+  private UsageRowWriter rowWriter;
+  private TextCache textCache;
+  private Sink sink;
+  private final Spool spool;
+  private final ColumnarStore localStore;
+  private LogSampler logSampler;
+  private final Metrics metrics;
+  private final AdmissionLimiter limiter;
+  private final KeyedRateLimiter ipRateLimiter;
+  private final KeyedRateLimiter uuidRateLimiter;
+  private final DuplicateFilter duplicates;
+  private final Rollup rollup;
+  // null if the GeoIP verticles aren't deployed in this process or direct lookups are disabled
+  private GeoIPResolver geoResolver;
+  // scratch buffers of the direct GeoIP lookups
+  private final byte[] addressBuffer = new byte[16];
+  private final byte[] ipv4Buffer = new byte[4];
+  private Metrics.Counter notifySuppressed;
+  private String retryAfter;
+  private Metrics.Histogram bodyParseLatency;
+  private Metrics.Histogram geoipLatency;
+  private Metrics.Histogram payloadBuildLatency;
+  private Metrics.Histogram writeLatency;
+  private Metrics.Histogram notifyLatency;
+  private Metrics.Counter notifyOk;
+  private Metrics.Counter notifyXataRefused;
+  private Metrics.Counter notifyFailed;
+  private Metrics.Counter notifyCircuitOpen;
+  private Metrics.Counter geoQueued;
+  private Metrics.Counter geoEnriched;
+  private Metrics.Counter geoNotEnriched;
+  private Metrics.Counter notifyInvalid;
+  private int maxBodyBytes;
+  private int batchMaxLines;
+  private int geoipBatchMax;
+  // rows stored before the GeoIP database was loaded, in order
+  private final ArrayDeque<PendingLocation> pendingLocations = new ArrayDeque<>();
+  private int pendingLocationsMax;
+  private boolean enriching;
+
+  private static final String RECEIVED_AT = "received_at";
+  // the request completed without going downstream, its latency is meaningless for the limiter
+  private static final String NO_LATENCY_SAMPLE = "no_latency_sample";
+
+  /**
+   * @param spool the spool shared by all the gateway instances, or null to write directly to Xata.
+   * @param localStore the store of the local sink shared by all the gateway instances, or null if
+   * the local sink isn't configured.
+   * @param metrics the registry shared by all the verticles.
+   * @param limiter bounds the notify requests in flight across all the gateway instances.
+   * @param ipRateLimiter rate limit per remote IP, shared by all the gateway instances.
+   * @param uuidRateLimiter rate limit per broker uuid, shared by all the gateway instances.
+   * @param duplicates suppresses the repeated notifies, shared by all the gateway instances.
+   * @param rollup counts of the stored runs, shared by all the gateway instances.
+   */
+  public GatewayXata(Spool spool, ColumnarStore localStore, Metrics metrics, AdmissionLimiter limiter,
+                     KeyedRateLimiter ipRateLimiter, KeyedRateLimiter uuidRateLimiter, DuplicateFilter duplicates,
+                     Rollup rollup) {
+    this.spool = spool;
+    this.localStore = localStore;
+    this.metrics = metrics;
+    this.limiter = limiter;
+    this.ipRateLimiter = ipRateLimiter;
+    this.uuidRateLimiter = uuidRateLimiter;
+    this.duplicates = duplicates;
+    this.rollup = rollup;
+  }
 
   @Override
   public void start() {
     logger.info("Start");
-    token = config().getString("api_key");
-    final String workspace = config().getString("workspace_slug");
-    final String region = config().getString("region");
-    host = String.format("%s.%s.xata.sh", workspace, region);
-    baseUri = "https://" + host;
-
     dateTimeFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'");
-    final WebClientOptions webClientOptions = new WebClientOptions()
-      .setFollowRedirects(true)
-      .setUserAgent("Vertx test");
+    registerMetrics();
+    retryAfter = String.valueOf(config().getInteger("admission_retry_after_s", 1));
+    rowWriter = new UsageRowWriter();
+    textCache = new TextCache(1024, 64);
+    logSampler = new LogSampler(logger, config().getInteger("log_sample_rate", 100));
+    geoResolver = GeoIPResolver.shared(vertx);
 
-    HttpClient client = vertx.createHttpClient();
-    client.redirectHandler(GatewayXata::reconfigureRedirect);
-    webClient = WebClient.wrap(client, webClientOptions);
+    sink = createSink();
+    final long dedupWindowMs = config().getLong("dedup_window_ms", 0L);
+    if (dedupWindowMs > 0) {
+      vertx.setPeriodic(Math.max(1000L, dedupWindowMs / 4), id -> flushSuppressed());
+    }
 
-    final Router router = Router.router(vertx);
-    router.post().handler(BodyHandler.create());
+    pendingLocationsMax = config().getInteger("geoip_pending_max", 100_000);
+    vertx.setPeriodic(config().getLong("geoip_enrich_interval_ms", 1000L), id -> enrichPending());
 
+    final Router router = Router.router(vertx);
     final String prefix = "/api/v1";
+    maxBodyBytes = config().getInteger("notify_max_body_bytes", 16 * 1024);
+    batchMaxLines = config().getInteger("notify_batch_max_lines", 10_000);
+    geoipBatchMax = config().getInteger("geoip_batch_max", 1000);
+    // before the body is read, so that shed requests are never buffered
+    router.post(prefix + "/notify").handler(this::admit);
+    router.post(prefix + "/notify").handler(BodyHandler.create().setBodyLimit(maxBodyBytes));
     router.post(prefix + "/notify").handler(this::collect);
+    // the batch body is processed while it arrives, never buffered as a whole
+    router.post(prefix + "/notify/batch").handler(this::admit);
+    router.post(prefix + "/notify/batch").handler(this::collectBatch);
 
-    vertx.createHttpServer()
+    router.get(prefix + "/batcher").handler(this::sinkStats);
+    router.get(prefix + "/geoip").handler(this::geoipStats);
+    router.get(prefix + "/ready").handler(this::readiness);
+    router.get(prefix + "/admission").handler(this::admissionStats);
+    router.get(prefix + "/stats").handler(this::usageStats);
+    router.get("/metrics").handler(this::scrapeMetrics);
+
+    // inflates the gzip compressed request bodies
+    vertx.createHttpServer(new HttpServerOptions().setDecompressionSupported(true))
       .requestHandler(router)
-      .listen(8080);
+      .listen(config().getInteger("http_port", 8080));
+  }
+
+  @Override
+  public void stop() {
+    // already stored, only their location is lost
+    for (PendingLocation row : pendingLocations) {
+      geoNotEnriched.increment();
+      countRun(row.day, row.notify, null);
+    }
+    pendingLocations.clear();
+  }
+
+  private Sink createSink() {
+    final List<Sink> sinks = new ArrayList<>();
+    for (String name : Sink.configured(config())) {
+      switch (name) {
+        case "xata":
+          final XataClient xataClient = new XataClient(vertx, config(), metrics);
+          sinks.add(spool != null
+            ? new SpooledXataSink(vertx, config(), xataClient, spool, metrics)
+            : new XataSink(vertx, config(), xataClient));
+          break;
+        case "local":
+          sinks.add(new LocalColumnarSink(vertx, config(), localStore, metrics));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown sink " + name);
+      }
+    }
+    if (sinks.isEmpty()) {
+      throw new IllegalArgumentException("No sink configured");
+    }
+    return sinks.size() == 1 ? sinks.get(0) : new FanOutSink(sinks);
+  }
+
+  private void registerMetrics() {
+    final String stageHelp = "Latency of the stages of a notify request";
+    bodyParseLatency = metrics.histogram("collector_notify_stage_seconds", stageHelp, "stage=\"body_parse\"");
+    geoipLatency = metrics.histogram("collector_notify_stage_seconds", stageHelp, "stage=\"geoip\"");
+    payloadBuildLatency = metrics.histogram("collector_notify_stage_seconds", stageHelp, "stage=\"payload_build\"");
+    writeLatency = metrics.histogram("collector_notify_stage_seconds", stageHelp, "stage=\"write\"");
+    notifyLatency = metrics.histogram("collector_notify_seconds", "Latency of notify requests", "");
+    final String notifyHelp = "Notify requests by outcome";
+    notifyOk = metrics.counter("collector_notify_total", notifyHelp, "outcome=\"ok\"");
+    notifyXataRefused = metrics.counter("collector_notify_total", notifyHelp, "outcome=\"xata_refused\"");
+    notifyFailed = metrics.counter("collector_notify_total", notifyHelp, "outcome=\"failed\"");
+    notifyCircuitOpen = metrics.counter("collector_notify_total", notifyHelp, "outcome=\"circuit_open\"");
+    notifyInvalid = metrics.counter("collector_notify_total", notifyHelp, "outcome=\"invalid\"");
+    notifySuppressed = metrics.counter("collector_notify_total", notifyHelp, "outcome=\"suppressed\"");
+    final String enrichHelp = "Rows stored before the GeoIP database was loaded, by outcome of their later lookup";
+    geoQueued = metrics.counter("collector_geoip_pending_total", enrichHelp, "outcome=\"queued\"");
+    geoEnriched = metrics.counter("collector_geoip_pending_total", enrichHelp, "outcome=\"enriched\"");
+    geoNotEnriched = metrics.counter("collector_geoip_pending_total", enrichHelp, "outcome=\"not_enriched\"");
+    metrics.gauge("collector_rollup_keys", "Combinations counted by the usage rollup", "", rollup::size);
+    metrics.counter("collector_rollup_dropped_total", "Runs not counted by the usage rollup, over its max keys", "",
+      rollup::dropped);
+    metrics.counter("collector_rollup_evicted_days_total", "Days evicted from the usage rollup", "",
+      rollup::evictedDays);
+    metrics.gauge("collector_dedup_entries", "Brokers tracked by the duplicate notify filter", "", duplicates::size);
+
+    metrics.gauge("collector_admission_limit", "Max notify requests in flight", "", limiter::limit);
+    metrics.gauge("collector_admission_in_flight", "Notify requests in flight", "", limiter::inFlight);
+    metrics.counter("collector_admission_shed_total", "Notify requests rejected with 429", "", limiter::shed);
+    final String rateLimitHelp = "Notify requests rejected by the per source rate limit";
+    metrics.counter("collector_rate_limited_total", rateLimitHelp, "key=\"ip\"", ipRateLimiter::rejected);
+    metrics.counter("collector_rate_limited_total", rateLimitHelp, "key=\"uuid\"", uuidRateLimiter::rejected);
+
+    // every instance runs on its own event loop, they all report in the same histogram
+    final Metrics.Histogram eventLoopLag = metrics.histogram("collector_event_loop_lag_seconds",
+      "Delay of a periodic timer over its schedule", "");
+    final long lagIntervalMs = config().getLong("event_loop_lag_interval_ms", 100L);
+    final long lagIntervalNanos = TimeUnit.MILLISECONDS.toNanos(lagIntervalMs);
+    final long[] lastTick = {System.nanoTime()};
+    vertx.setPeriodic(lagIntervalMs, id -> {
+      final long now = System.nanoTime();
+      eventLoopLag.record(Math.max(0, now - lastTick[0] - lagIntervalNanos));
+      lastTick[0] = now;
+    });
+  }
+
+  private void admit(RoutingContext ctx) {
+    final long ipWaitMs = ipRateLimiter.acquire(ctx.request().remoteAddress().hostAddress());
+    if (ipWaitMs > 0) {
+      rejectRateLimited(ctx, ipWaitMs);
+      return;
+    }
+    if (!limiter.tryAcquire()) {
+      ctx.response()
+        .setStatusCode(429)
+        .putHeader(HttpHeaders.RETRY_AFTER, retryAfter)
+        .end();
+      return;
+    }
+    final long receivedAt = System.nanoTime();
+    ctx.put(RECEIVED_AT, receivedAt);
+    ctx.addEndHandler(ar -> {
+      final int status = ctx.response().getStatusCode();
+      // rejected or malformed requests don't go downstream
+      final boolean clientError = status >= 400 && status < 500 && status != 404;
+      if (clientError || ctx.get(NO_LATENCY_SAMPLE) != null) {
+        limiter.cancel();
+        return;
+      }
+      // 404 is the answer to a request refused by Xata
+      final boolean failed = ar.failed() || status >= 500 || status == 404;
+      limiter.release(System.nanoTime() - receivedAt, failed);
+    });
+    ctx.next();
+  }
+
+  private static void rejectRateLimited(RoutingContext ctx, long waitMs) {
+    ctx.response()
+      .setStatusCode(429)
+      .putHeader(HttpHeaders.RETRY_AFTER, String.valueOf(TimeUnit.MILLISECONDS.toSeconds(waitMs + 999)))
+      .end();
   }
 
   private void collect(RoutingContext ctx) {
     final HttpServerRequest request = ctx.request();
     final String remoteIpAddr = request.remoteAddress().hostAddress();
+    final Long receivedAt = ctx.get(RECEIVED_AT);
 
-    final String localFormattedTime = LocalDateTime.now().format(dateTimeFormatter);
-    logger.info("Formatted time: {}", localFormattedTime);
-
-    final JsonObject requestJson = ctx.getBodyAsJson();
-    vertx.eventBus()
-      .request(GeoIPVerticle.RESOLVER_BUS_ADDRESS, requestJson.getString("remote_ip"))
-      .map((Message<Object> msg) -> {
-
-        JsonObject payload = new JsonObject()
-          .put("IP", remoteIpAddr)
-          .put("startup_date", localFormattedTime);
-        if (msg.body() instanceof JsonObject) {
-          logger.debug("Location data: {}", msg.body());
-          final JsonObject location = (JsonObject) msg.body();
-          location.forEach(entry -> payload.put(entry.getKey(), entry.getValue()));
-        }
+    final String localFormattedTime = formattedNow();
+    final String day = formattedDay;
 
-        copyIfPresent("os", payload, requestJson);
-        copyIfPresent("cpu_arch", payload, requestJson);
-        copyIfPresent("jvm_version", payload, requestJson);
-        copyIfPresent("jvm_vendor", payload, requestJson);
-        copyIfPresent("remote_ip", payload, requestJson);
-        if (requestJson.containsKey("broker_version")) {
-          payload.put("version", requestJson.getString("broker_version"));
-        }
-        copyIfPresent("uuid", payload, requestJson);
+    final Notify notify;
+    try {
+      notify = Notify.parse(ctx.getBody(), textCache);
+    } catch (IOException e) {
+      notifyInvalid.increment();
+      ctx.response().setStatusCode(400).end(e.getMessage());
+      return;
+    }
+    final long uuidWaitMs = uuidRateLimiter.acquire(notify.uuid());
+    if (uuidWaitMs > 0) {
+      duplicates.refused(notify.uuid(), notify.brokerVersion(), notify.jvmVersion());
+      rejectRateLimited(ctx, uuidWaitMs);
+      return;
+    }
+    final long suppressedBefore = duplicates.check(notify.uuid(), notify.brokerVersion(), notify.jvmVersion(),
+      remoteIpAddr);
+    if (suppressedBefore == DuplicateFilter.DUPLICATE) {
+      notifySuppressed.increment();
+      ctx.put(NO_LATENCY_SAMPLE, Boolean.TRUE);
+      ctx.response().setStatusCode(200).end();
+      return;
+    }
+    final long geoipStart = System.nanoTime();
+    bodyParseLatency.record(geoipStart - receivedAt);
+    final long[] writeStart = new long[1];
+    final GeoLocation[] location = new GeoLocation[1];
+    locate(notify.remoteIp())
+      .map(resolved -> {
+        final long buildStart = System.nanoTime();
+        geoipLatency.record(buildStart - geoipStart);
 
-        if (requestJson.containsKey("standalone")) {
-          payload.put("standalone", requestJson.getBoolean("standalone"));
+        // before the GeoIP database is loaded the row is stored without location, enriched later
+        location[0] = resolved;
+        final Buffer row = rowWriter.write(notify, remoteIpAddr, localFormattedTime, location[0], suppressedBefore);
+        if (logSampler.sample()) {
+          logger.debug("notify ip={} uuid={} version={} nation={} startup_date={}", remoteIpAddr,
+            notify.uuid(), notify.brokerVersion(), nation(location[0]),
+            localFormattedTime);
         }
-        if (requestJson.containsKey("max_heap") && !requestJson.getString("max_heap").equals("undefined")) {
-          payload.put("max_heap", Long.parseLong(requestJson.getString("max_heap")));
-        }
-        return payload;
+        writeStart[0] = System.nanoTime();
+        payloadBuildLatency.record(writeStart[0] - buildStart);
+        return row;
       })
-        .flatMap(payload -> {
-          return vertx.executeBlocking((Promise<HttpResponse<String>> promise) -> {
-            try {
-              final HttpResponse<String> response = jdkHttpClientRequest(payload.encode(), host);
-              promise.complete(response);
-            } catch (URISyntaxException | IOException | InterruptedException ex) {
-              promise.fail(ex);
-            }
-          });
-//          return webClient
-//            .post(baseUri, "/db/moquette_instances:main/tables/runs/data")
-//            .bearerTokenAuthentication(token)
-//            .putHeader("Content-Type", "application/json")
-//            .putHeader("Host", host)
-//            .sendJson(payload);
-        })
-      .onSuccess(resp -> {
-        if (resp.statusCode() != 201) {
-//          logger.warn("Problem reaching Xata, status code: {} message: {}, resp: {}", resp.statusCode(), resp.statusMessage(), resp.followedRedirects());
-          logger.warn("Problem reaching Xata, status code: {} message: {}", resp.statusCode(), resp);
+      .flatMap(this::write)
+      .onSuccess(v -> {
+        writeLatency.recordSince(writeStart[0]);
+        notifyLatency.recordSince(receivedAt);
+        notifyOk.increment();
+        countRun(day, notify, remoteIpAddr, localFormattedTime, location[0]);
+        ctx.response().setStatusCode(200).end();
+      })
+      .onFailure(th -> {
+        notifyLatency.recordSince(receivedAt);
+        duplicates.forget(notify.uuid(), notify.brokerVersion(), notify.jvmVersion(), suppressedBefore);
+        if (th instanceof XataStatusException) {
+          notifyXataRefused.increment();
+          logger.warn("Problem reaching Xata, {}", th.getMessage());
           ctx.response().setStatusCode(404).end();
+        } else if (th instanceof CircuitOpenException) {
+          // expected while Xata is down, the count is in the metrics
+          notifyCircuitOpen.increment();
+          ctx.put(NO_LATENCY_SAMPLE, Boolean.TRUE);
+          ctx.response()
+            .setStatusCode(503)
+            .putHeader(HttpHeaders.RETRY_AFTER, retryAfter)
+            .end();
         } else {
-//          logger.info("Body response: {}", resp.bodyAsJsonObject());
-          logger.info("Body response: {}", resp.body());
-          ctx.response().setStatusCode(200).end();
+          notifyFailed.increment();
+          logger.error("Problem accessing Xata", th);
+          ctx.fail(502);
         }
-      })
-      .onFailure(th -> {
-        logger.error("Problem accessing Xata", th);
-        ctx.fail(502);
       });
   }
 
-  private HttpResponse<String> jdkHttpClientRequest(String jsonPayload, String host) throws URISyntaxException, IOException, InterruptedException {
-    HttpRequest request = HttpRequest.newBuilder()
-      .uri(new URI(baseUri + "/db/moquette_instances:main/tables/runs/data"))
-      .header("Authorization", "Bearer " + token)
-      .header("Content-Type", "application/json")
-      .POST(HttpRequest.BodyPublishers.ofString(jsonPayload))
-      .build();
+  /**
+   * Collects the notifies forwarded by an aggregating proxy as NDJSON, optionally gzip compressed,
+   * one notify per line. Lines are processed while the body arrives, the GeoIP lookup is done once
+   * for every distinct remote_ip of the batch, in batch requests, and rows take the same write path
+   * of single notifies. The response has one NDJSON result per non empty line, in the same order, with the
+   * status the line would have had as a single notify, or 413 for a line longer than
+   * notify_max_body_bytes and for the lines past notify_batch_max_lines, that aren't processed.
+   */
+  private void collectBatch(RoutingContext ctx) {
+    final HttpServerRequest request = ctx.request();
+    final String remoteIpAddr = request.remoteAddress().hostAddress();
+    final String startupDate = formattedNow();
+    final String day = formattedDay;
+    // a batch completes as slowly as its slowest row, its latency would mislead the limiter
+    ctx.put(NO_LATENCY_SAMPLE, Boolean.TRUE);
+
+    final BatchLocations locations = new BatchLocations();
+    final List<Future<JsonObject>> results = new ArrayList<>();
+    // only counted, a client could send any number of them
+    final int[] excessLines = new int[1];
+    final LineSplitter lines = new LineSplitter(maxBodyBytes, record -> {
+      final Buffer line = record.length() > 0 && record.getByte(record.length() - 1) == '\r'
+        ? record.getBuffer(0, record.length() - 1)
+        : record;
+      if (line.length() == 0) {
+        return;
+      }
+      if (results.size() == batchMaxLines) {
+        excessLines[0]++;
+        return;
+      }
+      results.add(collectLine(line, remoteIpAddr, startupDate, day, locations));
+    }, () -> {
+      notifyInvalid.increment();
+      if (results.size() == batchMaxLines) {
+        excessLines[0]++;
+        return;
+      }
+      results.add(Future.succeededFuture(new JsonObject()
+        .put("status", 413)
+        .put("error", "Line longer than " + maxBodyBytes + " bytes")));
+    });
+    request.handler(lines);
+    request.endHandler(v -> {
+      lines.end();
+      CompositeFuture.join(new ArrayList<>(results)).onComplete(ar -> {
+        final Buffer body = Buffer.buffer((results.size() + excessLines[0]) * 32);
+        for (int i = 0; i < results.size(); i++) {
+          body.appendBuffer(results.get(i).result().put("line", i + 1).toBuffer()).appendByte((byte) '\n');
+        }
+        if (excessLines[0] > 0) {
+          notifyInvalid.add(excessLines[0]);
+          final String error = "More than " + batchMaxLines + " lines";
+          for (int i = 0; i < excessLines[0]; i++) {
+            body.appendBuffer(new JsonObject()
+              .put("status", 413)
+              .put("error", error)
+              .put("line", results.size() + i + 1)
+              .toBuffer()).appendByte((byte) '\n');
+          }
+        }
+        ctx.response()
+          .putHeader(HttpHeaders.CONTENT_TYPE, "application/x-ndjson")
+          .end(body);
+      });
+    });
+  }
+
+  /**
+   * Splits a body in lines while it arrives. A line longer than the limit is never buffered: its
+   * bytes are skipped up to the next new line and it's reported to the oversized handler.
+   */
+  private static final class LineSplitter implements Handler<Buffer> {
+    private final int maxLineBytes;
+    private final Handler<Buffer> lineHandler;
+    private final Runnable oversizedHandler;
+    private Buffer partial = Buffer.buffer();
+    private boolean oversized;
+
+    LineSplitter(int maxLineBytes, Handler<Buffer> lineHandler, Runnable oversizedHandler) {
+      this.maxLineBytes = maxLineBytes;
+      this.lineHandler = lineHandler;
+      this.oversizedHandler = oversizedHandler;
+    }
+
+    @Override
+    public void handle(Buffer chunk) {
+      int start = 0;
+      for (int i = 0; i < chunk.length(); i++) {
+        if (chunk.getByte(i) == '\n') {
+          emit(chunk, start, i);
+          start = i + 1;
+        }
+      }
+      append(chunk, start, chunk.length());
+    }
+
+    /**
+     * Emits the last line, when the body doesn't end with a new line.
+     */
+    void end() {
+      if (oversized || partial.length() > 0) {
+        emit(partial, 0, 0);
+      }
+    }
+
+    private void emit(Buffer chunk, int start, int end) {
+      if (!oversized && partial.length() == 0 && end - start <= maxLineBytes) {
+        lineHandler.handle(chunk.getBuffer(start, end));
+        return;
+      }
+      append(chunk, start, end);
+      if (oversized) {
+        oversized = false;
+        oversizedHandler.run();
+        return;
+      }
+      final Buffer line = partial;
+      partial = Buffer.buffer();
+      lineHandler.handle(line);
+    }
+
+    private void append(Buffer chunk, int start, int end) {
+      if (oversized || start == end) {
+        return;
+      }
+      if (partial.length() + end - start > maxLineBytes) {
+        oversized = true;
+        partial = Buffer.buffer();
+        return;
+      }
+      partial.appendBuffer(chunk, start, end - start);
+    }
+  }
 
-    logger.info("Xata HTTP request: {}", request);
+  /**
+   * @return the result of the line, never failed.
+   */
+  private Future<JsonObject> collectLine(Buffer line, String remoteIpAddr, String startupDate, String day,
+                                         BatchLocations locations) {
+    final Notify notify;
+    try {
+      notify = Notify.parse(line, textCache);
+    } catch (IOException e) {
+      notifyInvalid.increment();
+      return Future.succeededFuture(new JsonObject().put("status", 400).put("error", e.getMessage()));
+    }
+    if (uuidRateLimiter.acquire(notify.uuid()) > 0) {
+      duplicates.refused(notify.uuid(), notify.brokerVersion(), notify.jvmVersion());
+      return Future.succeededFuture(new JsonObject().put("status", 429));
+    }
+    final long suppressedBefore = duplicates.check(notify.uuid(), notify.brokerVersion(), notify.jvmVersion(),
+      remoteIpAddr);
+    if (suppressedBefore == DuplicateFilter.DUPLICATE) {
+      notifySuppressed.increment();
+      return Future.succeededFuture(new JsonObject().put("status", 200).put("suppressed", true));
+    }
+    final Future<GeoLocation> location = locations.get(notify.remoteIp());
+    return location
+      .map(resolved -> rowWriter.write(notify, remoteIpAddr, startupDate, resolved, suppressedBefore))
+      .flatMap(this::write)
+      .map(v -> {
+        notifyOk.increment();
+        countRun(day, notify, remoteIpAddr, startupDate, location.result());
+        return new JsonObject().put("status", 200);
+      })
+      .otherwise(th -> {
+        duplicates.forget(notify.uuid(), notify.brokerVersion(), notify.jvmVersion(), suppressedBefore);
+        if (th instanceof XataStatusException) {
+          notifyXataRefused.increment();
+          return new JsonObject().put("status", 404);
+        }
+        if (th instanceof CircuitOpenException) {
+          notifyCircuitOpen.increment();
+          return new JsonObject().put("status", 503);
+        }
+        notifyFailed.increment();
+        logger.error("Problem collecting batched notify", th);
+        return new JsonObject().put("status", 502);
+      });
+  }
 
-    return java.net.http.HttpClient.newBuilder()
-      .followRedirects(java.net.http.HttpClient.Redirect.ALWAYS)
-      .build()
-      .send(request, HttpResponse.BodyHandlers.ofString());
+  /**
+   * @return the current time formatted as startup_date, computed once per second.
+   */
+  private String formattedNow() {
+    final long second = System.currentTimeMillis() / 1000;
+    if (second != formattedSecond) {
+      formattedSecond = second;
+      formattedTime = LocalDateTime.now().format(dateTimeFormatter);
+      formattedDay = formattedTime.substring(0, 10);
+    }
+    return formattedTime;
   }
 
-  private void copyIfPresent(String fieldName, JsonObject payload, JsonObject requestJson) {
-    if (requestJson.containsKey(fieldName)) {
-      payload.put(fieldName, requestJson.getString(fieldName));
+  /**
+   * Resolves the IP directly when the GeoIP verticles deployed in this process can answer from the
+   * event loop, otherwise requests the lookup on the event bus.
+   */
+  private Future<GeoLocation> locate(String ip) {
+    final Future<GeoLocation> direct = locateDirect(ip);
+    if (direct != null) {
+      return direct;
     }
+    return vertx.eventBus().<GeoLocation>request(GeoIPVerticle.RESOLVER_BUS_ADDRESS, ip).map(Message::body);
   }
 
-  private static Future<RequestOptions> reconfigureRedirect(HttpClientResponse resp) {
-    // copied from Vert core DEFAULT_HANDLER just removing the skip of handing in case of not be GET or HEAD
-    // https://github.com/eclipse-vertx/vert.x/blob/4.2.1/src/main/java/io/vertx/core/http/impl/HttpClientImpl.java#L74-L76
+  /**
+   * @return the location resolved directly, or null if it must be requested on the event bus.
+   */
+  private Future<GeoLocation> locateDirect(String ip) {
+    if (geoResolver == null) {
+      return null;
+    }
     try {
-      int statusCode = resp.statusCode();
-      String location = resp.getHeader(HttpHeaders.LOCATION);
-      if (location != null && (statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307 || statusCode == 308)) {
-        HttpMethod m = resp.request().getMethod();
-        if (statusCode == 303) {
-          m = HttpMethod.GET;
+      final GeoLocation location = geoResolver.tryResolve(ip, addressBuffer, ipv4Buffer);
+      return location != null ? Future.succeededFuture(location) : null;
+    } catch (Exception e) {
+      return Future.failedFuture(e);
+    }
+  }
+
+  /**
+   * Locations of the remote IPs of a notify batch, each looked up once. The ones not resolved
+   * directly are requested in batches: the lines parsed from the same chunk of the body share a
+   * single request to the GeoIP verticle.
+   */
+  private final class BatchLocations {
+    private final Map<String, Future<GeoLocation>> locations = new HashMap<>();
+    private Map<String, Promise<GeoLocation>> pending = new LinkedHashMap<>();
+
+    Future<GeoLocation> get(String ip) {
+      Future<GeoLocation> location = locations.get(ip);
+      if (location != null) {
+        return location;
+      }
+      location = locateDirect(ip);
+      if (location == null) {
+        final Promise<GeoLocation> promise = Promise.promise();
+        pending.put(ip, promise);
+        location = promise.future();
+        if (pending.size() == 1) {
+          // after the other lines of the chunk
+          vertx.runOnContext(v -> flush());
+        } else if (pending.size() >= geoipBatchMax) {
+          flush();
         }
-        URI uri = HttpUtils.resolveURIReference(resp.request().absoluteURI(), location);
-        boolean ssl;
-        int port = uri.getPort();
-        String protocol = uri.getScheme();
-        char chend = protocol.charAt(protocol.length() - 1);
-        if (chend == 'p') {
-          ssl = false;
-          if (port == -1) {
-            port = 80;
+      }
+      locations.put(ip, location);
+      return location;
+    }
+
+    private void flush() {
+      if (pending.isEmpty()) {
+        return;
+      }
+      final Map<String, Promise<GeoLocation>> requested = pending;
+      pending = new LinkedHashMap<>();
+      final JsonArray ips = new JsonArray(new ArrayList<>(requested.keySet()));
+      vertx.eventBus().<GeoLocationBatch>request(GeoIPVerticle.BATCH_RESOLVER_BUS_ADDRESS, ips)
+        .onSuccess(reply -> {
+          final GeoLocationBatch batch = reply.body();
+          int i = 0;
+          for (Promise<GeoLocation> promise : requested.values()) {
+            promise.complete(batch.location(i++));
           }
-        } else if (chend == 's') {
-          ssl = true;
-          if (port == -1) {
-            port = 443;
+        })
+        .onFailure(th -> requested.values().forEach(promise -> promise.fail(th)));
+    }
+  }
+
+  /**
+   * Counts a stored run or, if its location wasn't available, queues it for a later lookup.
+   */
+  private void countRun(String day, Notify notify, String remoteIpAddr, String startupDate, GeoLocation location) {
+    if (location.isAvailable()) {
+      countRun(day, notify, location);
+      return;
+    }
+    geoQueued.increment();
+    if (pendingLocations.size() == pendingLocationsMax) {
+      final PendingLocation oldest = pendingLocations.poll();
+      geoNotEnriched.increment();
+      countRun(oldest.day, oldest.notify, null);
+    }
+    pendingLocations.add(new PendingLocation(notify, remoteIpAddr, startupDate, day));
+  }
+
+  private void countRun(String day, Notify notify, GeoLocation location) {
+    rollup.add(day, notify.brokerVersion(), notify.jvmVersion(), notify.os, notify.cpuArch, nation(location));
+  }
+
+  private static final class PendingLocation {
+    private final Notify notify;
+    private final String remoteIpAddr;
+    private final String startupDate;
+    private final String day;
+
+    PendingLocation(Notify notify, String remoteIpAddr, String startupDate, String day) {
+      this.notify = notify;
+      this.remoteIpAddr = remoteIpAddr;
+      this.startupDate = startupDate;
+      this.day = day;
+    }
+  }
+
+  /**
+   * Looks up, in a batch request, the locations of the rows stored with geo_pending before the GeoIP
+   * database was loaded and writes a geo_enrichment row for each of them, with the IP, startup_date
+   * and uuid of the stored row and its location, if found. The rows stay queued until the database
+   * is loaded.
+   */
+  private void enrichPending() {
+    if (enriching || pendingLocations.isEmpty()) {
+      return;
+    }
+    final List<PendingLocation> rows = new ArrayList<>();
+    final JsonArray ips = new JsonArray();
+    while (rows.size() < geoipBatchMax && !pendingLocations.isEmpty()) {
+      final PendingLocation row = pendingLocations.poll();
+      rows.add(row);
+      ips.add(row.notify.remoteIp());
+    }
+    enriching = true;
+    vertx.eventBus().<GeoLocationBatch>request(GeoIPVerticle.BATCH_RESOLVER_BUS_ADDRESS, ips)
+      .map(Message::body)
+      .onComplete(ar -> {
+        enriching = false;
+        if (ar.failed()) {
+          logger.debug("Can't look up the pending locations", ar.cause());
+          requeue(rows);
+          return;
+        }
+        final List<PendingLocation> unavailable = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+          final PendingLocation row = rows.get(i);
+          final GeoLocation location = ar.result().location(i);
+          if (!location.isAvailable()) {
+            unavailable.add(row);
+            continue;
           }
-        } else {
-          return null;
+          geoEnriched.increment();
+          countRun(row.day, row.notify, location);
+          write(rowWriter.writeLocation(row.notify, row.remoteIpAddr, row.startupDate, location))
+            .onFailure(th -> logger.warn("Can't write the location of {}", row.notify.uuid(), th));
         }
-        String requestURI = uri.getPath();
-        if (requestURI == null || requestURI.isEmpty()) {
-          requestURI = "/";
+        if (unavailable.isEmpty()) {
+          // the rest of a long queue right away
+          enrichPending();
+        } else {
+          // still loading
+          requeue(unavailable);
         }
-        String query = uri.getQuery();
-        if (query != null) {
-          requestURI += "?" + query;
+      });
+  }
+
+  /**
+   * Puts the rows back in front of the queue, in their order.
+   */
+  private void requeue(List<PendingLocation> rows) {
+    for (int i = rows.size() - 1; i >= 0; i--) {
+      pendingLocations.addFirst(rows.get(i));
+    }
+  }
+
+  private static String nation(GeoLocation location) {
+    return location != null ? location.nation() : null;
+  }
+
+  private Future<Void> write(Buffer row) {
+    return sink.write(row);
+  }
+
+  /**
+   * Writes a row with the count of the notifies suppressed in the windows ended without a later
+   * notify from the same broker, each in a request of its own.
+   */
+  private void flushSuppressed() {
+    final String now = formattedNow();
+    for (DuplicateFilter.Aggregate aggregate : duplicates.expired()) {
+      final JsonObject row = new JsonObject()
+        .put("IP", aggregate.remoteIp)
+        .put("startup_date", now)
+        .put("uuid", aggregate.uuid)
+        .put("suppressed_count", aggregate.suppressed);
+      if (aggregate.version != null) {
+        row.put("version", aggregate.version);
+      }
+      if (aggregate.jvmVersion != null) {
+        row.put("jvm_version", aggregate.jvmVersion);
+      }
+      sink.writeAlone(row.toBuffer())
+        .onFailure(th -> logger.warn("Can't write {} suppressed notifies of {}", aggregate.suppressed, aggregate.uuid, th));
+    }
+  }
+
+  private void sinkStats(RoutingContext ctx) {
+    ctx.response()
+      .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+      .end(sink.stats().encode());
+  }
+
+  /**
+   * Answers the counts of the stored runs: every dimension of {@link Rollup#DIMENSIONS} can be
+   * passed as filter, plus from and to (days, included) and group_by, a comma separated list of
+   * dimensions.
+   */
+  private void usageStats(RoutingContext ctx) {
+    final Map<String, String> filters = new HashMap<>();
+    for (String dimension : Rollup.DIMENSIONS) {
+      final String value = ctx.request().getParam(dimension);
+      if (value != null) {
+        filters.put(dimension, value);
+      }
+    }
+    final List<String> groupBy = new ArrayList<>();
+    final String groupByParam = ctx.request().getParam("group_by");
+    if (groupByParam != null) {
+      for (String dimension : groupByParam.split(",")) {
+        if (!dimension.trim().isEmpty()) {
+          groupBy.add(dimension.trim());
         }
-        RequestOptions options = new RequestOptions();
-        options.setMethod(m);
-        options.setHost(uri.getHost());
-        options.setPort(port);
-        options.setSsl(ssl);
-        options.setURI(requestURI);
-        options.setHeaders(resp.request().headers());
-        options.removeHeader(CONTENT_LENGTH);
-        return Future.succeededFuture(options);
       }
-      return null;
-    } catch (Exception e) {
-      return Future.failedFuture(e);
     }
+    final JsonObject stats;
+    try {
+      stats = rollup.query(filters, ctx.request().getParam("from"), ctx.request().getParam("to"), groupBy);
+    } catch (IllegalArgumentException e) {
+      ctx.response().setStatusCode(400).end(e.getMessage());
+      return;
+    }
+    ctx.response()
+      .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+      .end(stats.encode());
+  }
+
+  private void admissionStats(RoutingContext ctx) {
+    ctx.response()
+      .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+      .end(limiter.stats().encode());
+  }
+
+  private void geoipStats(RoutingContext ctx) {
+    vertx.eventBus().<JsonObject>request(GeoIPVerticle.STATS_BUS_ADDRESS, null)
+      .onSuccess(msg -> ctx.response()
+        .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+        .end(msg.body().encode()))
+      .onFailure(ctx::fail);
+  }
+
+  /**
+   * The notifies received before the GeoIP database is loaded are stored without location and
+   * enriched later, so the gateway is ready as soon as it listens: answers 200 with the GeoIP status.
+   */
+  private void readiness(RoutingContext ctx) {
+    final Future<JsonObject> geoip = geoResolver != null
+      ? Future.succeededFuture(geoResolver.status())
+      : vertx.eventBus().<JsonObject>request(GeoIPVerticle.STATUS_BUS_ADDRESS, null).map(Message::body);
+    geoip
+      .otherwise(th -> new JsonObject().put("ready", false).put("error", th.getMessage()))
+      .onSuccess(status -> {
+        ctx.response()
+          .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+          .end(new JsonObject()
+            .put("status", "ready")
+            .put("geoip", status)
+            .put("geoip_pending", pendingLocations.size())
+            .encode());
+      });
+  }
+
+  private void scrapeMetrics(RoutingContext ctx) {
+    ctx.response()
+      .putHeader(HttpHeaders.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8")
+      .end(metrics.scrape());
   }
 }
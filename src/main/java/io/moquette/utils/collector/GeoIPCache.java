@@ -0,0 +1,229 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU cache of GeoIP lookups keyed by the network block returned by the mmdb lookup, so that a
+ * single entry answers for every address of the block.
+ * <p>
+ * A lookup probes the cache with the address masked by each prefix length currently stored,
+ * starting from the most specific. Entries expire after the configured TTL and the whole cache is
+ * dropped with {@link #invalidate()} when the database changes. Thread safe: the entries are split
+ * in segments by key, each an LRU bound to its share of the max entries with its own lock, so that
+ * the event loops and workers probing different networks don't contend.
+ */
+public class GeoIPCache {
+
+  private static final class NetworkKey {
+    private final byte[] network = new byte[16];
+    private int length;
+    private int prefixLength;
+    private int hash;
+
+    NetworkKey set(byte[] address, int addressLength, int prefixLength) {
+      this.length = addressLength;
+      this.prefixLength = prefixLength;
+      final int fullBytes = prefixLength / 8;
+      final int remainingBits = prefixLength % 8;
+      for (int i = 0; i < addressLength; i++) {
+        if (i < fullBytes) {
+          network[i] = address[i];
+        } else if (i == fullBytes && remainingBits != 0) {
+          network[i] = (byte) (address[i] & (0xFF << (8 - remainingBits)));
+        } else {
+          network[i] = 0;
+        }
+      }
+      int h = prefixLength * 31 + addressLength;
+      for (int i = 0; i < addressLength; i++) {
+        h = h * 31 + network[i];
+      }
+      hash = h;
+      return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof NetworkKey)) {
+        return false;
+      }
+      final NetworkKey other = (NetworkKey) o;
+      return length == other.length && prefixLength == other.prefixLength &&
+        Arrays.equals(network, 0, length, other.network, 0, length);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class CacheEntry {
+    private final GeoLocation location;
+    private final long expiresAt;
+
+    CacheEntry(GeoLocation location, long expiresAt) {
+      this.location = location;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * LRU of the keys that hash to it, guarded by its own monitor.
+   */
+  private final class Segment extends LinkedHashMap<NetworkKey, CacheEntry> {
+    private static final long serialVersionUID = 1L;
+    private final int maxEntries;
+
+    Segment(int maxEntries) {
+      super(Math.min(maxEntries, 1024), 0.75f, true);
+      this.maxEntries = maxEntries;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<NetworkKey, CacheEntry> eldest) {
+      if (size() > maxEntries) {
+        evictions.increment();
+        untrack(eldest.getKey());
+        return true;
+      }
+      return false;
+    }
+  }
+
+  private static final int SEGMENTS = 16;
+
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final Segment[] segments = new Segment[SEGMENTS];
+  // number of cached entries for each prefix length, for IPv4 and IPv6 addresses
+  private final AtomicIntegerArray ipv4Prefixes = new AtomicIntegerArray(33);
+  private final AtomicIntegerArray ipv6Prefixes = new AtomicIntegerArray(129);
+  // the gateway event loops and the GeoIP workers probe concurrently
+  private final ThreadLocal<NetworkKey> probes = ThreadLocal.withInitial(NetworkKey::new);
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public GeoIPCache(int maxEntries, long ttlMs) {
+    this.maxEntries = maxEntries;
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    final int segmentEntries = Math.max(1, (maxEntries + SEGMENTS - 1) / SEGMENTS);
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(segmentEntries);
+    }
+  }
+
+  private Segment segment(NetworkKey key) {
+    final int h = key.hash ^ (key.hash >>> 16);
+    return segments[h & (SEGMENTS - 1)];
+  }
+
+  /**
+   * @param address array holding the address.
+   * @param length 4 for an IPv4 address, 16 for an IPv6 address.
+   * @return the cached location of the network containing the address, or null.
+   */
+  public GeoLocation get(byte[] address, int length) {
+    final AtomicIntegerArray prefixes = length == 4 ? ipv4Prefixes : ipv6Prefixes;
+    final NetworkKey probe = probes.get();
+    final long now = System.nanoTime();
+    for (int prefixLength = prefixes.length() - 1; prefixLength >= 0; prefixLength--) {
+      if (prefixes.get(prefixLength) == 0) {
+        continue;
+      }
+      final Segment segment = segment(probe.set(address, length, prefixLength));
+      synchronized (segment) {
+        final CacheEntry entry = segment.get(probe);
+        if (entry == null) {
+          continue;
+        }
+        if (now - entry.expiresAt >= 0) {
+          untrack(probe);
+          segment.remove(probe);
+          continue;
+        }
+        hits.increment();
+        return entry.location;
+      }
+    }
+    misses.increment();
+    return null;
+  }
+
+  /**
+   * Caches the location of the whole network block {@code address/prefixLength}.
+   */
+  public void put(byte[] address, int length, int prefixLength, GeoLocation location) {
+    if (maxEntries <= 0) {
+      return;
+    }
+    final int maxPrefix = length * 8;
+    if (prefixLength < 0 || prefixLength > maxPrefix) {
+      prefixLength = maxPrefix;
+    }
+    final NetworkKey key = new NetworkKey().set(address, length, prefixLength);
+    final Segment segment = segment(key);
+    synchronized (segment) {
+      // counted before the put, that can evict the eldest entry of the segment
+      if (!segment.containsKey(key)) {
+        (length == 4 ? ipv4Prefixes : ipv6Prefixes).incrementAndGet(prefixLength);
+      }
+      segment.put(key, new CacheEntry(location, System.nanoTime() + ttlNanos));
+    }
+  }
+
+  public void invalidate() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        // untracked one by one, the other segments keep being filled meanwhile
+        for (NetworkKey key : segment.keySet()) {
+          untrack(key);
+        }
+        segment.clear();
+      }
+    }
+  }
+
+  private void untrack(NetworkKey key) {
+    (key.length == 4 ? ipv4Prefixes : ipv6Prefixes).decrementAndGet(key.prefixLength);
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  public long hits() {
+    return hits.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .put("size", size())
+      .put("max_entries", maxEntries)
+      .put("hits", hits())
+      .put("misses", misses())
+      .put("evictions", evictions.sum());
+  }
+}
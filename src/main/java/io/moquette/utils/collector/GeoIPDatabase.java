@@ -0,0 +1,101 @@
+package io.moquette.utils.collector;
+
+import com.maxmind.db.CHMCache;
+import com.maxmind.db.Reader;
+import com.maxmind.geoip2.DatabaseReader;
+import com.maxmind.geoip2.exception.GeoIp2Exception;
+import com.maxmind.geoip2.model.CityResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current GeoLite2 reader and lets it be replaced while lookups are running.
+ * <p>
+ * Every lookup pins the reader it started with; a replaced reader is closed when the last lookup
+ * running on it completes. Thread safe.
+ */
+public class GeoIPDatabase {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GeoIPDatabase.class);
+
+  private static final class Handle {
+    private final DatabaseReader reader;
+    // the database itself holds a reference until it's replaced
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    Handle(DatabaseReader reader) {
+      this.reader = reader;
+    }
+
+    boolean acquire() {
+      while (true) {
+        final int current = references.get();
+        if (current == 0) {
+          return false;
+        }
+        if (references.compareAndSet(current, current + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void release() {
+      if (references.decrementAndGet() == 0) {
+        try {
+          reader.close();
+          LOG.info("Closed replaced GeoIP database reader");
+        } catch (IOException e) {
+          LOG.warn("Problem closing replaced GeoIP database reader", e);
+        }
+      }
+    }
+  }
+
+  private final AtomicReference<Handle> current = new AtomicReference<>();
+
+  /**
+   * Opens the mmdb memory mapped, so that lookups don't perform any I/O syscall and can run on the
+   * event loop; the node cache avoids to decode again the records of recently hit networks.
+   */
+  public static DatabaseReader open(File database) throws IOException {
+    return new DatabaseReader.Builder(database)
+      .fileMode(Reader.FileMode.MEMORY_MAPPED)
+      .withCache(new CHMCache())
+      .build();
+  }
+
+  public CityResponse city(InetAddress address) throws IOException, GeoIp2Exception {
+    Handle handle;
+    do {
+      handle = current.get();
+      if (handle == null) {
+        throw new IllegalStateException("GeoIP database not yet loaded");
+      }
+    } while (!handle.acquire());
+    try {
+      return handle.reader.city(address);
+    } finally {
+      handle.release();
+    }
+  }
+
+  /**
+   * Installs the new reader, the previous one is closed once the lookups using it are drained.
+   */
+  public void swap(DatabaseReader reader) {
+    final Handle previous = current.getAndSet(new Handle(reader));
+    if (previous != null) {
+      previous.release();
+    }
+  }
+
+  public boolean isLoaded() {
+    return current.get() != null;
+  }
+}
@@ -0,0 +1,149 @@
+package io.moquette.utils.collector;
+
+import com.maxmind.db.Network;
+import com.maxmind.geoip2.DatabaseReader;
+import com.maxmind.geoip2.exception.AddressNotFoundException;
+import com.maxmind.geoip2.exception.GeoIp2Exception;
+import com.maxmind.geoip2.model.CityResponse;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Resolves the IP addresses against the GeoIP database and cache shared by the
+ * {@link GeoIPVerticle} instances.
+ * <p>
+ * Published in the local shared data of the Vert.x instance, so that the gateways deployed in the
+ * same process can resolve the addresses directly, without a round trip on the event bus: always
+ * with inline lookups, only the cached ones otherwise, since the database lookups must run on the
+ * GeoIP pool. Until the database is loaded every address not cached is answered right away with
+ * {@link GeoLocation#UNAVAILABLE}, instead of waiting for it. Thread safe.
+ */
+public class GeoIPResolver implements Shareable {
+
+  private static final String SHARED_MAP = "collector.geoip";
+  private static final String SHARED_KEY = "resolver";
+
+  private final GeoIPDatabase database;
+  private final GeoIPCache cache;
+  private final boolean inline;
+  private final Metrics.Histogram lookupLatency;
+  private final Metrics.Counter unavailable;
+  // only for the status, the lookups go through the database
+  private volatile DatabaseReader current;
+
+  /**
+   * @param mode the geoip_mode, the direct lookups are allowed only when inline.
+   */
+  public GeoIPResolver(GeoIPDatabase database, GeoIPCache cache, String mode, Metrics metrics) {
+    this.database = database;
+    this.cache = cache;
+    this.inline = "inline".equals(mode);
+    lookupLatency = metrics.histogram("collector_geoip_lookup_seconds", "Latency of GeoIP database lookups, cache misses only",
+      "mode=\"" + mode + "\"");
+    unavailable = metrics.counter("collector_geoip_unavailable_total",
+      "GeoIP lookups answered without location because the database wasn't loaded yet", "");
+    metrics.gauge("collector_geoip_ready", "1 once the GeoIP database is loaded", "", () -> isReady() ? 1 : 0);
+  }
+
+  /**
+   * @return the resolver of the GeoIP verticles deployed in this Vert.x instance, or null.
+   */
+  public static GeoIPResolver shared(Vertx vertx) {
+    return vertx.sharedData().<String, GeoIPResolver>getLocalMap(SHARED_MAP).get(SHARED_KEY);
+  }
+
+  void publish(Vertx vertx) {
+    vertx.sharedData().<String, GeoIPResolver>getLocalMap(SHARED_MAP).put(SHARED_KEY, this);
+  }
+
+  GeoIPCache cache() {
+    return cache;
+  }
+
+  public boolean isReady() {
+    return database.isLoaded();
+  }
+
+  public JsonObject status() {
+    final JsonObject status = new JsonObject().put("ready", isReady());
+    final DatabaseReader reader = current;
+    if (reader != null) {
+      status
+        .put("database_type", reader.getMetadata().getDatabaseType())
+        .put("build_date", reader.getMetadata().getBuildDate().toInstant());
+    }
+    return status;
+  }
+
+  void install(DatabaseReader reader) {
+    database.swap(reader);
+    current = reader;
+    // the lookups done while unavailable aren't cached, nothing else to drop
+    cache.invalidate();
+  }
+
+  /**
+   * Direct lookup from the caller thread.
+   *
+   * @param addressBuffer 16 bytes scratch buffer of the caller.
+   * @param ipv4Buffer 4 bytes scratch buffer of the caller.
+   * @return the location, or null if it has to be requested on the event bus.
+   */
+  public GeoLocation tryResolve(String ip, byte[] addressBuffer, byte[] ipv4Buffer) throws IOException, GeoIp2Exception {
+    final int length = IpAddresses.parse(ip, addressBuffer);
+    if (length != IpAddresses.INVALID) {
+      final GeoLocation cached = cache.get(addressBuffer, length);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    // nothing to wait for on the GeoIP pool until the database is loaded
+    return inline || !isReady() ? resolve(ip, addressBuffer, length, ipv4Buffer) : null;
+  }
+
+  /**
+   * Looks up the address in the database and caches the result, the cache has already been
+   * checked by the caller.
+   *
+   * @param length as returned by {@link IpAddresses#parse(String, byte[])}.
+   */
+  public GeoLocation resolve(String ip, byte[] address, int length, byte[] ipv4Buffer) throws IOException, GeoIp2Exception {
+    if (length == IpAddresses.INVALID) {
+      return GeoLocation.unresolved(ip, ip, ip, 46.12468015, 11.18093977);
+    }
+    if (!isReady()) {
+      unavailable.increment();
+      return GeoLocation.UNAVAILABLE;
+    }
+    final long start = System.nanoTime();
+    final InetAddress ipAddress;
+    if (length == 4) {
+      System.arraycopy(address, 0, ipv4Buffer, 0, 4);
+      ipAddress = InetAddress.getByAddress(ipv4Buffer);
+    } else {
+      ipAddress = InetAddress.getByAddress(address);
+    }
+    try {
+      CityResponse response = database.city(ipAddress);
+      final GeoLocation location = GeoLocation.of(
+        response.getCountry().getName(),
+        response.getMostSpecificSubdivision().getName(),
+        response.getCity().getName(),
+        response.getLocation().getLatitude(),
+        response.getLocation().getLongitude());
+      final Network network = response.getTraits().getNetwork();
+      final int prefixLength = network != null ? network.getPrefixLength() : -1;
+      cache.put(address, length, prefixLength, location);
+      return location;
+    } catch (AddressNotFoundException ex) {
+      cache.put(address, length, -1, GeoLocation.NOT_FOUND);
+      return GeoLocation.NOT_FOUND;
+    } finally {
+      lookupLatency.recordSince(start);
+    }
+  }
+}
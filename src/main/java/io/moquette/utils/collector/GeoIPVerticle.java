@@ -1,19 +1,18 @@
 package io.moquette.utils.collector;
 
 import com.maxmind.geoip2.DatabaseReader;
-import com.maxmind.geoip2.exception.AddressNotFoundException;
 import com.maxmind.geoip2.exception.GeoIp2Exception;
-import com.maxmind.geoip2.model.CityResponse;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Promise;
-import io.vertx.core.file.AsyncFile;
-import io.vertx.core.file.FileSystem;
-import io.vertx.core.file.OpenOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.web.client.HttpResponse;
 import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
 import io.vertx.ext.web.client.predicate.ResponsePredicate;
 import io.vertx.ext.web.codec.BodyCodec;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
@@ -22,190 +21,537 @@ import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Answers the GeoIP lookups requested on the event bus.
+ * <p>
+ * Several instances can be deployed sharing the same database and cache, e.g. as worker
+ * verticles on their own pool with geoip_mode = verticle; only the loader instance downloads,
+ * installs and refreshes the database.
+ * <p>
+ * The start doesn't wait for the database: a valid local copy is installed as soon as it's opened,
+ * otherwise it's downloaded in background, and until then the lookups are answered with
+ * {@link GeoLocation#UNAVAILABLE} and the gateways store the rows without location, to enrich them
+ * once it's loaded.
+ */
 public class GeoIPVerticle extends AbstractVerticle {
 
   public static final String RESOLVER_BUS_ADDRESS = "ipresolver.lookup";
+  /**
+   * Accepts a JSON array of IP addresses, replies with a {@link GeoLocationBatch}.
+   */
+  public static final String BATCH_RESOLVER_BUS_ADDRESS = "ipresolver.lookup.batch";
+  public static final String STATS_BUS_ADDRESS = "ipresolver.stats";
+  /**
+   * Replies with the readiness of the database, see {@link GeoIPResolver#status()}.
+   */
+  public static final String STATUS_BUS_ADDRESS = "ipresolver.status";
 
   private final Logger logger = LoggerFactory.getLogger(GeoIPVerticle.class);
 
-  private static final String GEOLITE_DOWNLOAD_TEMPLATE_URI = "/app/geoip_download?edition_id=GeoLite2-City&license_key=%s&suffix=tar.gz";
+  private static final String GEOLITE_DOWNLOAD_TEMPLATE_URL = "http://download.maxmind.com/app/geoip_download?edition_id=GeoLite2-City&license_key=%s&suffix=tar.gz";
+  private static final String GEOLITE_DIR = "geolite";
+  private static final String GEOLITE_DB_TYPE = "City";
+  private static final String GEOLITE_DB_NAME = "GeoLite2-City.mmdb";
+  private static final int GEOIP_POOL_SIZE = 4;
 
-  private static final String IPV4_PATTERN =
-          "^(([0-9]|[1-9][0-9]|1[0-9][0-9]|2[0-4][0-9]|25[0-5])(\\.(?!$)|$)){4}$";
-
-  private static final String IPV6_PATTERN1 = "([0-9a-f]{1,4}:){7}([0-9a-f]){1,4}";
-  private static final String IPV6_PATTERN2 = "^((?:[0-9A-Fa-f]{1,4}(?::[0-9A-Fa-f]{1,4})*)?)::((?:[0-9A-Fa-f]{1,4}(?::[0-9A-Fa-f]{1,4})*)?)$";
+  private final GeoIPResolver resolver;
+  private final boolean loader;
+  private final Metrics metrics;
+  private BlockingExecutor blockingExecutor;
+  private WebClient downloadClient;
+  private boolean refreshInProgress;
+  private long refreshTimerId = -1;
+  private long retryTimerId = -1;
+  // set once undeployed, the downloads in progress complete without installing or rescheduling
+  private boolean stopped;
+  private Path databaseDir;
+  private String mode;
+  private boolean inlineLookups;
+  private int batchChunk;
+  // scratch buffers for the lookups executed on the event loop
+  private final byte[] addressBuffer = new byte[16];
+  private final byte[] ipv4Buffer = new byte[4];
 
+  /**
+   * @param resolver shared by all the instances.
+   * @param loader whether this instance loads and refreshes the database, exactly one should.
+   */
+  public GeoIPVerticle(Metrics metrics, GeoIPResolver resolver, boolean loader) {
+    this.metrics = metrics;
+    this.resolver = resolver;
+    this.loader = loader;
+  }
 
-  private static final Pattern patternIPv4 = Pattern.compile(IPV4_PATTERN, Pattern.CASE_INSENSITIVE);
-  private static final Pattern patternIPv6_1 = Pattern.compile(IPV6_PATTERN1, Pattern.CASE_INSENSITIVE);
-  private static final Pattern patternIPv6_2 = Pattern.compile(IPV6_PATTERN2, Pattern.CASE_INSENSITIVE);
+  /**
+   * Deploys the configured instances, sharing a database and a cache; the first one is the loader.
+   * The resolver is published for the direct lookups of the gateways, unless disabled.
+   * <p>
+   * Accepted configuration keys:
+   * <ul>
+   *   <li>geoip_mode: inline (default), lookups on the event loop against the memory mapped DB;
+   *   worker, lookups on the geoip worker pool; verticle, lookups in the handler of instances
+   *   deployed as worker verticles on the geoip worker pool</li>
+   *   <li>geoip_instances: instances to deploy, default the geoip pool size in verticle mode, 1
+   *   otherwise</li>
+   *   <li>geoip_cache_max_entries: default 10000</li>
+   *   <li>geoip_cache_ttl_ms: default one hour</li>
+   *   <li>geoip_direct: whether the gateways resolve directly, default true</li>
+   *   <li>geoip_batch_chunk: addresses of a batch resolved by the same worker task, default 1000</li>
+   *   <li>geolite_dir: where the database is kept across restarts, e.g. on a volume, default
+   *   geolite</li>
+   *   <li>geolite_download_timeout_ms: the GeoLite2 requests fail after this long without data,
+   *   default 1 minute</li>
+   *   <li>geolite_checksum_url: where the SHA-256 of the archive is published, default derived from
+   *   the download URL when it ends with suffix=tar.gz</li>
+   *   <li>geolite_allow_unverified: install the downloads without a checksum URL, default false,
+   *   otherwise the refresh fails</li>
+   *   <li>geolite_retry_interval_ms: delay of the next download after a failed one while no database
+   *   is installed, default 5 minutes</li>
+   * </ul>
+   */
+  public static Future<String> deploy(Vertx vertx, JsonObject config, Metrics metrics) {
+    final GeoIPCache cache = new GeoIPCache(config.getInteger("geoip_cache_max_entries", 10_000),
+      config.getLong("geoip_cache_ttl_ms", TimeUnit.HOURS.toMillis(1)));
+    final GeoIPResolver resolver = new GeoIPResolver(new GeoIPDatabase(), cache,
+      config.getString("geoip_mode", "inline"), metrics);
+    GeoLocation.registerCodec(vertx);
+    GeoLocationBatch.registerCodec(vertx);
+    if (config.getBoolean("geoip_direct", true)) {
+      resolver.publish(vertx);
+    }
+    final AtomicInteger instance = new AtomicInteger();
+    return vertx.deployVerticle(() -> new GeoIPVerticle(metrics, resolver, instance.getAndIncrement() == 0),
+      deploymentOptions(config));
+  }
 
-  private DatabaseReader reader;
+  private static DeploymentOptions deploymentOptions(JsonObject config) {
+    final DeploymentOptions options = new DeploymentOptions().setConfig(config);
+    if ("verticle".equals(config.getString("geoip_mode", "inline"))) {
+      final int poolSize = config.getInteger("geoip_pool_size", GEOIP_POOL_SIZE);
+      return options
+        .setWorker(true)
+        .setWorkerPoolName(BlockingExecutor.poolName("geoip"))
+        .setWorkerPoolSize(poolSize)
+        .setInstances(config.getInteger("geoip_instances", poolSize));
+    }
+    return options.setInstances(config.getInteger("geoip_instances", 1));
+  }
 
   @Override
   public void start(Promise<Void> promise) {
     logger.info("GeoIP starting");
-    final FileSystem filesystem = vertx.fileSystem();
-    logger.info("Local geolite DB doesn't exist, dowloading...");
-    filesystem.mkdir("geolite")
-      .onFailure(event -> {
-        // directory already exists, so just create the GeoIP DB
-        try {
-          logger.info("GeoIP DB already present, instantiate the client");
-          createGeoIPDB();
-        } catch (IOException e) {
-          promise.fail(e);
+    mode = config().getString("geoip_mode", "inline");
+    // in verticle mode the handler already runs on a worker thread
+    inlineLookups = !"worker".equals(mode);
+    batchChunk = config().getInteger("geoip_batch_chunk", 1000);
+    blockingExecutor = BlockingExecutor.create(vertx, config(), metrics, "geoip", GEOIP_POOL_SIZE);
+    registerMetrics();
+    registerConsumers();
+    if (!loader) {
+      promise.complete();
+      return;
+    }
+    final long downloadTimeoutMs = config().getLong("geolite_download_timeout_ms", TimeUnit.MINUTES.toMillis(1));
+    // the request timeout covers the wait of the response, the idle one a body that stops arriving
+    downloadClient = WebClient.create(vertx, new WebClientOptions()
+      .setIdleTimeout((int) downloadTimeoutMs)
+      .setIdleTimeoutUnit(TimeUnit.MILLISECONDS));
+    databaseDir = Paths.get(config().getString("geolite_dir", GEOLITE_DIR));
+    final long refreshIntervalMs = config().getLong("geolite_refresh_interval_ms", TimeUnit.DAYS.toMillis(1));
+    blockingExecutor.executeBlocking((Promise<LocalDatabase> open) -> openLocalDatabase(refreshIntervalMs, open), false)
+      .onSuccess(local -> {
+        if (local == null) {
+          logger.info("No local GeoIP database in {}, downloading it", databaseDir);
+          refreshDatabase();
+          return;
+        }
+        installDatabase(local.reader);
+        if (local.stale) {
+          refreshDatabase();
         }
       })
-      .onSuccess(_void -> {
-        filesystem.open("geolite/geolite.tar.gz", new OpenOptions().setCreateNew(true).setWrite(true))
-          .flatMap(this::downloadFile)
-          .flatMap(response -> {
-            logger.info("Response completed");
-            return vertx.executeBlocking(GeoIPVerticle.this::extractGeoTar);
-          })
-          .onSuccess(promise::complete)
-          .onFailure((Throwable err) -> {
-            logger.error("Error downloading file", err);
-            promise.fail(err);
-          });
+      .onFailure(th -> {
+        logger.warn("Local GeoIP database in {} is not usable, downloading it", databaseDir, th);
+        refreshDatabase();
       });
+    // the lookups don't need the database to be answered, see GeoIPResolver
+    promise.complete();
+
+    if (refreshIntervalMs > 0) {
+      refreshTimerId = vertx.setPeriodic(refreshIntervalMs, id -> refreshDatabase());
+    }
+  }
+
+  @Override
+  public void stop() {
+    stopped = true;
+    vertx.cancelTimer(refreshTimerId);
+    vertx.cancelTimer(retryTimerId);
+    if (downloadClient != null) {
+      downloadClient.close();
+    }
+  }
+
+  private static final class LocalDatabase {
+    private final DatabaseReader reader;
+    // older than the refresh interval, e.g. after a long downtime
+    private final boolean stale;
 
-    // subscribe to the topic for query reply
+    LocalDatabase(DatabaseReader reader, boolean stale) {
+      this.reader = reader;
+      this.stale = stale;
+    }
+  }
+
+  /**
+   * Opens the database kept by a previous run, it's memory mapped so that takes a few
+   * milliseconds. An interrupted download leaves only the partial file, that's removed.
+   *
+   * @param open completed with null if there's no database.
+   */
+  // blocking code
+  private void openLocalDatabase(long refreshIntervalMs, Promise<LocalDatabase> open) {
+    final Path database = databaseDir.resolve(GEOLITE_DB_NAME);
+    try {
+      Files.createDirectories(databaseDir);
+      Files.deleteIfExists(databaseDir.resolve(GEOLITE_DB_NAME + ".part"));
+      if (!Files.isRegularFile(database)) {
+        open.complete(null);
+        return;
+      }
+      final DatabaseReader reader = GeoIPDatabase.open(database.toFile());
+      final String type = reader.getMetadata().getDatabaseType();
+      if (type == null || !type.contains(GEOLITE_DB_TYPE)) {
+        reader.close();
+        open.fail("Unexpected GeoIP database type " + type + " in " + database);
+        return;
+      }
+      final long ageMs = System.currentTimeMillis() - Files.getLastModifiedTime(database).toMillis();
+      open.complete(new LocalDatabase(reader, refreshIntervalMs > 0 && ageMs > refreshIntervalMs));
+    } catch (IOException | RuntimeException e) {
+      // a truncated or corrupted file fails the open or the metadata decoding
+      open.fail(e);
+    }
+  }
+
+  private void registerConsumers() {
+    // subscribe to the topic for query reply, the instances share the requests
     vertx.eventBus().<String>consumer(RESOLVER_BUS_ADDRESS, msg -> {
       final String ipAddress = msg.body();
-      vertx.executeBlocking(new Handler<Promise<JsonObject>>() {
+      final int length = IpAddresses.parse(ipAddress, addressBuffer);
+      if (length != IpAddresses.INVALID) {
+        final GeoLocation cached = resolver.cache().get(addressBuffer, length);
+        if (cached != null) {
+          msg.reply(cached);
+          return;
+        }
+      }
+      if (inlineLookups) {
+        try {
+          msg.reply(resolver.resolve(ipAddress, addressBuffer, length, ipv4Buffer));
+        } catch (IOException | GeoIp2Exception e) {
+          logger.error("Cannot resolve IP {}", ipAddress, e);
+          msg.fail(500, e.getMessage());
+        }
+        return;
+      }
+      // the worker thread can't share the scratch buffers
+      final byte[] address = Arrays.copyOf(addressBuffer, 16);
+      // lookups are independent, they don't need to wait for each other
+      blockingExecutor.executeBlocking(new Handler<Promise<GeoLocation>>() {
         @Override
-        public void handle(Promise<JsonObject> promise) {
+        public void handle(Promise<GeoLocation> promise) {
           try {
-            final JsonObject resolved = resolveIP(ipAddress);
-            promise.complete(resolved);
+            promise.complete(resolver.resolve(ipAddress, address, length, new byte[4]));
           } catch (IOException | GeoIp2Exception e) {
             logger.error("Cannot resolve IP {}", ipAddress, e);
             promise.fail(e);
           }
         }
-      }).onSuccess(msg::reply);
+      }, false).onSuccess(msg::reply).onFailure(th -> msg.fail(503, th.getMessage()));
     });
+    vertx.eventBus().<JsonArray>consumer(BATCH_RESOLVER_BUS_ADDRESS, msg -> resolveBatch(msg.body())
+      .onSuccess(msg::reply)
+      .onFailure(th -> {
+        logger.error("Cannot resolve IP batch", th);
+        msg.fail(503, th.getMessage());
+      }));
+    vertx.eventBus().consumer(STATS_BUS_ADDRESS, msg -> msg.reply(resolver.cache().stats()));
+    vertx.eventBus().consumer(STATUS_BUS_ADDRESS, msg -> msg.reply(resolver.status()));
   }
 
-  private Future<HttpResponse<Void>> downloadFile(AsyncFile destination) {
-    final WebClient webClient = WebClient.create(vertx);
-    final String licenseKey = config().getString("license_key");
-    final String downloadUri = String.format(GEOLITE_DOWNLOAD_TEMPLATE_URI, licenseKey);
-    return webClient.get("download.maxmind.com", downloadUri)
-      .expect(ResponsePredicate.SC_SUCCESS)
-      .as(BodyCodec.pipe(destination))
-      .send();
-  }
+  /**
+   * Addresses of a batch without repetitions, with the index of each requested one.
+   */
+  private static final class DistinctAddresses {
+    private final List<String> addresses;
+    private final int[] indexes;
 
-  // blocking code
-  private void extractGeoTar(Promise<Void> promise) {
-    logger.info("Blocking code unpacking");
-    File targz = new File("geolite/geolite.tar.gz");
-    if (!targz.exists()) {
-      logger.error("Tar gz file {} doesn't exists", targz);
-      promise.fail("File doesn't exists");
-    }
-
-    final Path destinaton = Path.of("./geolite");
-    try (FileInputStream fin = new FileInputStream(targz)) {
-      extractTarGZ(fin, destinaton);
-      createGeoIPDB();
-    } catch (FileNotFoundException e) {
-      promise.fail("File doesn't exists");
-    } catch (IOException e) {
-      promise.fail(e);
+    DistinctAddresses(JsonArray ips) {
+      final Map<String, Integer> distinct = new HashMap<>(ips.size() * 2);
+      addresses = new ArrayList<>(ips.size());
+      indexes = new int[ips.size()];
+      for (int i = 0; i < indexes.length; i++) {
+        final String ip = ips.getString(i);
+        Integer index = distinct.get(ip);
+        if (index == null) {
+          index = addresses.size();
+          distinct.put(ip, index);
+          addresses.add(ip);
+        }
+        indexes[i] = index;
+      }
     }
   }
 
-  private void createGeoIPDB() throws IOException {
-    File database = new File("geolite/GeoLite2-City.mmdb");
-    reader = new DatabaseReader.Builder(database).build();
-    logger.info("Successfully started GeoIP verticle");
+  /**
+   * Resolves every distinct address of the batch once, on the worker pool even with inline lookups
+   * so that a large batch doesn't hold the event loop: the distinct addresses are split in chunks
+   * resolved in parallel, each looked up in the cache first.
+   */
+  private Future<GeoLocationBatch> resolveBatch(JsonArray ips) {
+    return blockingExecutor.executeBlocking((Promise<DistinctAddresses> promise) -> promise.complete(
+      new DistinctAddresses(ips)), false).flatMap(distinct -> {
+        final List<String> addresses = distinct.addresses;
+        final GeoLocation[] locations = new GeoLocation[addresses.size()];
+        final List<Future<Void>> chunks = new ArrayList<>();
+        for (int from = 0; from < locations.length; from += batchChunk) {
+          final int start = from;
+          final int end = Math.min(locations.length, from + batchChunk);
+          // every chunk fills its own slots of the locations
+          chunks.add(blockingExecutor.executeBlocking((Promise<Void> promise) -> {
+            final byte[] address = new byte[16];
+            final byte[] ipv4 = new byte[4];
+            try {
+              for (int i = start; i < end; i++) {
+                final String ip = addresses.get(i);
+                final int length = IpAddresses.parse(ip, address);
+                final GeoLocation cached = length != IpAddresses.INVALID ? resolver.cache().get(address, length) : null;
+                locations[i] = cached != null ? cached : resolver.resolve(ip, address, length, ipv4);
+              }
+              promise.complete();
+            } catch (IOException | GeoIp2Exception e) {
+              promise.fail(e);
+            }
+          }, false));
+        }
+        return CompositeFuture.all(new ArrayList<>(chunks)).map(v -> new GeoLocationBatch(locations, distinct.indexes));
+      });
   }
 
-  // blocking method that operates with Java API
-  private void extractTarGZ(InputStream in, Path destination) throws IOException {
-    GzipCompressorInputStream gzipIn = new GzipCompressorInputStream(in);
-    try (TarArchiveInputStream tarIn = new TarArchiveInputStream(gzipIn)) {
-      TarArchiveEntry entry;
+  private void registerMetrics() {
+    final GeoIPCache cache = resolver.cache();
+    metrics.counter("collector_geoip_cache_hits_total", "GeoIP lookups answered by the cache", "", cache::hits);
+    metrics.counter("collector_geoip_cache_misses_total", "GeoIP lookups not answered by the cache", "", cache::misses);
+    metrics.gauge("collector_geoip_cache_entries", "Networks held in the GeoIP cache", "", cache::size);
+  }
 
-      while ((entry = (TarArchiveEntry) tarIn.getNextEntry()) != null) {
-        // If the entry is a directory, create the directory.
-        if (entry.isDirectory()) {
-          File f = new File(entry.getName());
-          boolean created = f.mkdir();
-          if (!created) {
-            logger.debug("Unable to create directory '{}', during extraction of archive contents.",
-              f.getAbsolutePath());
-          }
-        } else {
-          int count;
-          final int bufferSize = 8 * 1024;
-          byte[] data = new byte[bufferSize];
-          FileOutputStream fos = new FileOutputStream(flattenTo(destination, entry).toString(), false);
-          try (BufferedOutputStream dest = new BufferedOutputStream(fos, bufferSize)) {
-            while ((count = tarIn.read(data, 0, bufferSize)) != -1) {
-              dest.write(data, 0, count);
-            }
-          }
+  /**
+   * Downloads and extracts a new copy of the database aside the one in use, then swaps it in.
+   * Lookups in progress complete on the previous reader, that's closed once they are drained.
+   * While there's no database in use a failed download is retried after geolite_retry_interval_ms.
+   */
+  private void refreshDatabase() {
+    if (stopped || refreshInProgress) {
+      return;
+    }
+    refreshInProgress = true;
+    logger.info("Refreshing GeoIP database");
+    downloadDatabase()
+      .onComplete(ar -> refreshInProgress = false)
+      .onSuccess(this::installDatabase)
+      .onFailure(th -> {
+        if (stopped) {
+          return;
         }
-      }
+        if (resolver.isReady()) {
+          logger.warn("GeoIP database refresh failed, keep using the current one", th);
+          return;
+        }
+        final long retryMs = config().getLong("geolite_retry_interval_ms", TimeUnit.MINUTES.toMillis(5));
+        logger.error("GeoIP database download failed, notifies are refused until it is loaded, retry in {} ms", retryMs, th);
+        retryTimerId = vertx.setTimer(retryMs, id -> refreshDatabase());
+      });
+  }
 
-      logger.info("Untar completed successfully!");
+  private void installDatabase(DatabaseReader reader) {
+    if (stopped) {
+      closeQuietly(reader);
+      return;
     }
+    resolver.install(reader);
+    logger.info("GeoIP database installed, build date {}", reader.getMetadata().getBuildDate());
   }
 
-  private Path flattenTo(Path destination, TarArchiveEntry entry) {
-    return destination.resolve(Paths.get(entry.getName()).getFileName());
+  private void closeQuietly(DatabaseReader reader) {
+    try {
+      reader.close();
+    } catch (IOException e) {
+      logger.warn("Problem closing GeoIP database reader", e);
+    }
+  }
+
+  /**
+   * Downloads the GeoLite2 archive and extracts the mmdb while the response is still arriving,
+   * without storing the archive on disk. The database is written aside, verified against the
+   * published SHA-256 of the archive and then atomically renamed over the local copy, that could be
+   * memory mapped by the reader in use: the rename doesn't affect it.
+   */
+  private Future<DatabaseReader> downloadDatabase() {
+    final String licenseKey = config().getString("license_key");
+    final String downloadTemplate = config().getString("geolite_download_url", GEOLITE_DOWNLOAD_TEMPLATE_URL);
+    final String downloadUrl = String.format(downloadTemplate, licenseKey);
+    final String checksumTemplate = config().getString("geolite_checksum_url",
+      downloadTemplate.contains("suffix=tar.gz") ? downloadTemplate.replace("suffix=tar.gz", "suffix=tar.gz.sha256") : null);
+
+    // without data for this long the request fails, so that a stalled download can't block the refreshes
+    final long timeoutMs = config().getLong("geolite_download_timeout_ms", TimeUnit.MINUTES.toMillis(1));
+    final Future<String> expectedChecksum;
+    if (checksumTemplate == null) {
+      if (!config().getBoolean("geolite_allow_unverified", false)) {
+        return Future.failedFuture("No checksum URL for " + downloadTemplate
+          + ", set geolite_checksum_url or geolite_allow_unverified");
+      }
+      logger.warn("No checksum URL for {}, the downloaded GeoIP database is not verified", downloadTemplate);
+      expectedChecksum = Future.succeededFuture(null);
+    } else {
+      expectedChecksum = downloadClient.getAbs(String.format(checksumTemplate, licenseKey))
+        .timeout(timeoutMs)
+        .expect(ResponsePredicate.SC_SUCCESS)
+        .send()
+        // the format is "<hex digest>  <file name>"
+        .map(resp -> resp.bodyAsString().trim().split("\\s+")[0]);
+    }
+
+    return expectedChecksum.flatMap(checksum -> {
+      final InputStreamPipe pipe = new InputStreamPipe(vertx, 64);
+      final Future<DatabaseReader> extraction = blockingExecutor.executeBlocking(
+        (Promise<DatabaseReader> promise) -> extractDatabase(pipe.inputStream(), checksum, promise), false);
+      downloadClient.getAbs(downloadUrl)
+        .timeout(timeoutMs)
+        .expect(ResponsePredicate.SC_SUCCESS)
+        .as(BodyCodec.pipe(pipe))
+        .send()
+        .onSuccess(resp -> logger.info("Response completed"))
+        .onFailure(pipe::fail);
+      return extraction;
+    });
   }
 
-  private JsonObject resolveIP(String ip) throws IOException, GeoIp2Exception {
-    if (!isValidIP(ip)) {
-      return new JsonObject()
-              .put("nation", ip)
-              .put("region", ip)
-              .put("city", ip)
-              .put("latitude", 46.12468015)
-              .put("longitude", 11.18093977);
+  // blocking code
+  private void extractDatabase(InputStream archive, String expectedChecksum, Promise<DatabaseReader> promise) {
+    logger.info("Blocking code unpacking");
+    final Path partial = databaseDir.resolve(GEOLITE_DB_NAME + ".part");
+    final Path destination = databaseDir.resolve(GEOLITE_DB_NAME);
+    DatabaseReader reader = null;
+    try (DigestInputStream digestIn = new DigestInputStream(archive, MessageDigest.getInstance("SHA-256"))) {
+      if (!extractMmdb(digestIn, partial)) {
+        throw new IOException("No " + GEOLITE_DB_NAME + " entry in the downloaded archive");
+      }
+      // consume the gzip trailer and tar padding, so that the digest covers the whole archive
+      final byte[] skip = new byte[8 * 1024];
+      while (digestIn.read(skip) != -1) {
+        // nothing to do
+      }
+      final String checksum = toHex(digestIn.getMessageDigest().digest());
+      if (expectedChecksum != null && !expectedChecksum.equalsIgnoreCase(checksum)) {
+        throw new IOException("Checksum mismatch of downloaded GeoIP archive, expected " + expectedChecksum + " got " + checksum);
+      }
+      // opened before replacing the local copy, that must stay usable if the download isn't; the
+      // mapping survives the rename
+      reader = GeoIPDatabase.open(partial.toFile());
+      final String type = reader.getMetadata().getDatabaseType();
+      if (type == null || !type.contains(GEOLITE_DB_TYPE)) {
+        throw new IOException("Unexpected GeoIP database type " + type + " in the downloaded archive");
+      }
+      Files.move(partial, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      promise.complete(reader);
+    } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+      // a corrupted mmdb fails the open or the metadata decoding
+      if (reader != null) {
+        closeQuietly(reader);
+      }
+      deleteQuietly(partial);
+      promise.fail(e);
     }
-    InetAddress ipAddress = InetAddress.getByName(ip);
+  }
+
+  private void deleteQuietly(Path file) {
     try {
-      CityResponse response = reader.city(ipAddress);
-      return new JsonObject()
-        .put("nation", response.getCountry().getName())
-        .put("region", response.getMostSpecificSubdivision().getName())
-        .put("city", response.getCity().getName())
-        .put("latitude", response.getLocation().getLatitude())
-        .put("longitude", response.getLocation().getLongitude());
-    } catch (AddressNotFoundException ex) {
-      return new JsonObject();
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.warn("Problem deleting {}", file, e);
     }
   }
 
-  private static boolean isValidIP(final String ip) {
-    Matcher matcher = patternIPv4.matcher(ip);
-    if (matcher.matches()) {
+  /**
+   * Un-tars the gzipped stream writing the only mmdb entry to the destination file.
+   *
+   * @return true if the mmdb entry was found.
+   */
+  private boolean extractMmdb(InputStream in, Path destination) throws IOException {
+    // GzipCompressorInputStream doesn't close the stream on its own
+    final GzipCompressorInputStream gzipIn = new GzipCompressorInputStream(in);
+    final TarArchiveInputStream tarIn = new TarArchiveInputStream(gzipIn);
+    TarArchiveEntry entry;
+    while ((entry = tarIn.getNextTarEntry()) != null) {
+      if (entry.isDirectory() || !entry.getName().endsWith(GEOLITE_DB_NAME)) {
+        continue;
+      }
+      // the entry is read straight into the direct buffer, then written when full
+      final ReadableByteChannel entryIn = Channels.newChannel(tarIn);
+      final ByteBuffer chunk = ByteBuffer.allocateDirect(1024 * 1024);
+      try (FileChannel out = FileChannel.open(destination, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        boolean eof = false;
+        while (!eof) {
+          chunk.clear();
+          while (chunk.hasRemaining()) {
+            if (entryIn.read(chunk) == -1) {
+              eof = true;
+              break;
+            }
+          }
+          chunk.flip();
+          while (chunk.hasRemaining()) {
+            out.write(chunk);
+          }
+        }
+        out.force(false);
+      }
+      logger.info("Untar completed successfully!");
       return true;
     }
-    if (patternIPv6_1.matcher(ip).matches()) {
-      return true;
+    return false;
+  }
+
+  private static String toHex(byte[] bytes) {
+    final StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
     }
-    return patternIPv6_2.matcher(ip).matches();
+    return sb.toString();
   }
 }
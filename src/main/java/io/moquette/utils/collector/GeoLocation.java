@@ -0,0 +1,184 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Location of an IP address as resolved by GeoIP, immutable so that the same instance is cached,
+ * sent on the local event bus and written in the rows without any copy.
+ * <p>
+ * The country, region and city names come from the small dictionary of the database, they are
+ * interned so that the cached locations and the rows share the same strings.
+ */
+public final class GeoLocation {
+
+  /**
+   * Location of an address that isn't in the database, it has no fields.
+   */
+  public static final GeoLocation NOT_FOUND = new GeoLocation(null, null, null, null, null);
+  /**
+   * Answer to the lookups done before the database is loaded, never cached: the gateway stores the
+   * row without location and looks it up again later.
+   */
+  public static final GeoLocation UNAVAILABLE = new GeoLocation(null, null, null, null, null);
+
+  private static final String CODECS_MAP = "collector.codecs";
+
+  // names of the database, bounded in case of an unexpectedly large one
+  private static final int MAX_NAMES = 200_000;
+  private static final ConcurrentHashMap<String, String> NAMES = new ConcurrentHashMap<>();
+
+  private final String nation;
+  private final String region;
+  private final String city;
+  private final Double latitude;
+  private final Double longitude;
+
+  private GeoLocation(String nation, String region, String city, Double latitude, Double longitude) {
+    this.nation = nation;
+    this.region = region;
+    this.city = city;
+    this.latitude = latitude;
+    this.longitude = longitude;
+  }
+
+  /**
+   * A location read from the database, the names are interned.
+   */
+  public static GeoLocation of(String nation, String region, String city, Double latitude, Double longitude) {
+    return new GeoLocation(intern(nation), intern(region), intern(city), latitude, longitude);
+  }
+
+  /**
+   * A location made of values that don't come from the database, not interned.
+   */
+  public static GeoLocation unresolved(String nation, String region, String city, Double latitude, Double longitude) {
+    return new GeoLocation(nation, region, city, latitude, longitude);
+  }
+
+  private static String intern(String name) {
+    if (name == null) {
+      return null;
+    }
+    final String interned = NAMES.get(name);
+    if (interned != null) {
+      return interned;
+    }
+    if (NAMES.size() >= MAX_NAMES) {
+      return name;
+    }
+    final String previous = NAMES.putIfAbsent(name, name);
+    return previous != null ? previous : name;
+  }
+
+  public boolean isFound() {
+    return this != NOT_FOUND && this != UNAVAILABLE;
+  }
+
+  public boolean isAvailable() {
+    return this != UNAVAILABLE;
+  }
+
+  public String nation() {
+    return nation;
+  }
+
+  public String region() {
+    return region;
+  }
+
+  public String city() {
+    return city;
+  }
+
+  public Double latitude() {
+    return latitude;
+  }
+
+  public Double longitude() {
+    return longitude;
+  }
+
+  /**
+   * @return the fields of the row, empty if not found.
+   */
+  public JsonObject toJson() {
+    if (!isFound()) {
+      return new JsonObject();
+    }
+    return new JsonObject()
+      .put("nation", nation)
+      .put("region", region)
+      .put("city", city)
+      .put("latitude", latitude)
+      .put("longitude", longitude);
+  }
+
+  static GeoLocation fromJson(JsonObject json) {
+    if (json.isEmpty()) {
+      return NOT_FOUND;
+    }
+    if (json.getBoolean("unavailable", false)) {
+      return UNAVAILABLE;
+    }
+    return of(json.getString("nation"), json.getString("region"), json.getString("city"),
+      json.getDouble("latitude"), json.getDouble("longitude"));
+  }
+
+  /**
+   * Registers the codec of the locations as default one of their class, unless already registered
+   * in the Vert.x instance, e.g. by a previous deployment.
+   */
+  public static void registerCodec(Vertx vertx) {
+    if (firstRegistration(vertx, GeoLocation.class)) {
+      vertx.eventBus().registerDefaultCodec(GeoLocation.class, new Codec());
+    }
+  }
+
+  /**
+   * @return true only the first time it's called for the class in the Vert.x instance, the event
+   * bus refuses a second default codec.
+   */
+  static boolean firstRegistration(Vertx vertx, Class<?> type) {
+    return vertx.sharedData().<String, Boolean>getLocalMap(CODECS_MAP).putIfAbsent(type.getName(), Boolean.TRUE) == null;
+  }
+
+  /**
+   * Passes the instance itself on the local event bus, it's immutable; on the wire it's the JSON
+   * object of its fields, or the unavailable flag.
+   */
+  private static final class Codec implements MessageCodec<GeoLocation, GeoLocation> {
+
+    @Override
+    public void encodeToWire(Buffer buffer, GeoLocation location) {
+      final Buffer json = (location.isAvailable() ? location.toJson() : new JsonObject().put("unavailable", true))
+        .toBuffer();
+      buffer.appendInt(json.length()).appendBuffer(json);
+    }
+
+    @Override
+    public GeoLocation decodeFromWire(int pos, Buffer buffer) {
+      final int length = buffer.getInt(pos);
+      return fromJson(new JsonObject(buffer.getBuffer(pos + 4, pos + 4 + length)));
+    }
+
+    @Override
+    public GeoLocation transform(GeoLocation location) {
+      return location;
+    }
+
+    @Override
+    public String name() {
+      return "geolocation";
+    }
+
+    @Override
+    public byte systemCodecID() {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Reply to a batch of GeoIP lookups, in columns: the locations of the distinct addresses and, for
+ * every requested address, the index of its location. A batch with the same address many times
+ * holds its location once.
+ * <p>
+ * Immutable, passed by reference on the local event bus like {@link GeoLocation}.
+ */
+public final class GeoLocationBatch {
+
+  private final GeoLocation[] locations;
+  private final int[] indexes;
+
+  /**
+   * @param locations of the distinct addresses.
+   * @param indexes for every requested address, the index of its location.
+   */
+  GeoLocationBatch(GeoLocation[] locations, int[] indexes) {
+    this.locations = locations;
+    this.indexes = indexes;
+  }
+
+  /**
+   * @return the number of requested addresses.
+   */
+  public int size() {
+    return indexes.length;
+  }
+
+  /**
+   * @return the number of distinct addresses.
+   */
+  public int distinct() {
+    return locations.length;
+  }
+
+  /**
+   * @return the location of the i-th requested address.
+   */
+  public GeoLocation location(int i) {
+    return locations[indexes[i]];
+  }
+
+  /**
+   * Registers the codec of the batches as default one of their class, unless already registered in
+   * the Vert.x instance.
+   */
+  public static void registerCodec(Vertx vertx) {
+    if (GeoLocation.firstRegistration(vertx, GeoLocationBatch.class)) {
+      vertx.eventBus().registerDefaultCodec(GeoLocationBatch.class, new Codec());
+    }
+  }
+
+  /**
+   * On the wire the batch is a JSON object of columns, found false stands for
+   * {@link GeoLocation#NOT_FOUND} or, with unavailable true, {@link GeoLocation#UNAVAILABLE}.
+   */
+  private static final class Codec implements MessageCodec<GeoLocationBatch, GeoLocationBatch> {
+
+    @Override
+    public void encodeToWire(Buffer buffer, GeoLocationBatch batch) {
+      final JsonArray nations = new JsonArray();
+      final JsonArray regions = new JsonArray();
+      final JsonArray cities = new JsonArray();
+      final JsonArray latitudes = new JsonArray();
+      final JsonArray longitudes = new JsonArray();
+      final JsonArray found = new JsonArray();
+      final JsonArray unavailable = new JsonArray();
+      for (GeoLocation location : batch.locations) {
+        nations.add(location.nation());
+        regions.add(location.region());
+        cities.add(location.city());
+        latitudes.add(location.latitude());
+        longitudes.add(location.longitude());
+        found.add(location.isFound());
+        unavailable.add(!location.isAvailable());
+      }
+      final JsonArray indexes = new JsonArray();
+      for (int index : batch.indexes) {
+        indexes.add(index);
+      }
+      final Buffer json = new JsonObject()
+        .put("nation", nations)
+        .put("region", regions)
+        .put("city", cities)
+        .put("latitude", latitudes)
+        .put("longitude", longitudes)
+        .put("found", found)
+        .put("unavailable", unavailable)
+        .put("index", indexes)
+        .toBuffer();
+      buffer.appendInt(json.length()).appendBuffer(json);
+    }
+
+    @Override
+    public GeoLocationBatch decodeFromWire(int pos, Buffer buffer) {
+      final int length = buffer.getInt(pos);
+      final JsonObject json = new JsonObject(buffer.getBuffer(pos + 4, pos + 4 + length));
+      final JsonArray found = json.getJsonArray("found");
+      final JsonArray unavailable = json.getJsonArray("unavailable");
+      final GeoLocation[] locations = new GeoLocation[found.size()];
+      for (int i = 0; i < locations.length; i++) {
+        if (unavailable.getBoolean(i)) {
+          locations[i] = GeoLocation.UNAVAILABLE;
+          continue;
+        }
+        locations[i] = !found.getBoolean(i) ? GeoLocation.NOT_FOUND : GeoLocation.of(
+          json.getJsonArray("nation").getString(i),
+          json.getJsonArray("region").getString(i),
+          json.getJsonArray("city").getString(i),
+          json.getJsonArray("latitude").getDouble(i),
+          json.getJsonArray("longitude").getDouble(i));
+      }
+      final JsonArray indexes = json.getJsonArray("index");
+      final int[] decoded = new int[indexes.size()];
+      for (int i = 0; i < decoded.length; i++) {
+        decoded[i] = indexes.getInteger(i);
+      }
+      return new GeoLocationBatch(locations, decoded);
+    }
+
+    @Override
+    public GeoLocationBatch transform(GeoLocationBatch batch) {
+      return batch;
+    }
+
+    @Override
+    public String name() {
+      return "geolocationbatch";
+    }
+
+    @Override
+    public byte systemCodecID() {
+      return -1;
+    }
+  }
+}
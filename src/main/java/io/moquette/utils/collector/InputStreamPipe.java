@@ -0,0 +1,167 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Bridges a Vert.x {@link WriteStream} to a blocking {@link InputStream}, so that the data piped
+ * from an asynchronous source (e.g. an HTTP response) can be consumed by Java I/O APIs on a worker
+ * thread while it's still arriving.
+ * <p>
+ * The queue of pending buffers is bounded: when it's full the write stream reports
+ * {@link #writeQueueFull()} and the source is paused until the reader catches up.
+ */
+public class InputStreamPipe implements WriteStream<Buffer> {
+
+  private static final Buffer END = Buffer.buffer();
+
+  private final Context context;
+  private final int maxQueuedBuffers;
+  private final LinkedBlockingQueue<Buffer> queue = new LinkedBlockingQueue<>();
+  private final InputStream inputStream = new PipeInputStream();
+  private volatile Throwable failure;
+  private volatile boolean closed;
+  private volatile boolean drainRequested;
+  private Handler<Void> drainHandler;
+
+  public InputStreamPipe(Vertx vertx, int maxQueuedBuffers) {
+    this.context = vertx.getOrCreateContext();
+    this.maxQueuedBuffers = maxQueuedBuffers;
+  }
+
+  public InputStream inputStream() {
+    return inputStream;
+  }
+
+  /**
+   * Makes the reader fail with the given cause once the data already queued is consumed.
+   */
+  public void fail(Throwable cause) {
+    failure = cause;
+    queue.offer(END);
+  }
+
+  @Override
+  public WriteStream<Buffer> exceptionHandler(Handler<Throwable> handler) {
+    return this;
+  }
+
+  @Override
+  public Future<Void> write(Buffer data) {
+    if (!closed) {
+      queue.offer(data);
+    }
+    return Future.succeededFuture();
+  }
+
+  @Override
+  public void write(Buffer data, Handler<AsyncResult<Void>> handler) {
+    write(data);
+    if (handler != null) {
+      handler.handle(Future.succeededFuture());
+    }
+  }
+
+  @Override
+  public void end(Handler<AsyncResult<Void>> handler) {
+    queue.offer(END);
+    if (handler != null) {
+      handler.handle(Future.succeededFuture());
+    }
+  }
+
+  @Override
+  public WriteStream<Buffer> setWriteQueueMaxSize(int maxSize) {
+    return this;
+  }
+
+  @Override
+  public boolean writeQueueFull() {
+    if (closed || queue.size() < maxQueuedBuffers) {
+      return false;
+    }
+    drainRequested = true;
+    return true;
+  }
+
+  @Override
+  public WriteStream<Buffer> drainHandler(Handler<Void> handler) {
+    this.drainHandler = handler;
+    return this;
+  }
+
+  private void signalDrain() {
+    if (drainRequested && (closed || queue.size() <= maxQueuedBuffers / 2)) {
+      drainRequested = false;
+      context.runOnContext(v -> {
+        final Handler<Void> handler = drainHandler;
+        if (handler != null) {
+          handler.handle(null);
+        }
+      });
+    }
+  }
+
+  private final class PipeInputStream extends InputStream {
+
+    private Buffer current;
+    private int position;
+    private boolean eof;
+
+    @Override
+    public int read() throws IOException {
+      final byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (current == null || position == current.length()) {
+        if (eof) {
+          return -1;
+        }
+        try {
+          current = queue.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for data");
+        }
+        position = 0;
+        signalDrain();
+        if (current == END) {
+          eof = true;
+          current = null;
+          if (failure != null) {
+            throw new IOException("Source stream failed", failure);
+          }
+          return -1;
+        }
+      }
+      final int read = Math.min(len, current.length() - position);
+      current.getBytes(position, position + read, b, off);
+      position += read;
+      return read;
+    }
+
+    @Override
+    public void close() {
+      // from now on the source is just discarded
+      closed = true;
+      queue.clear();
+      signalDrain();
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package io.moquette.utils.collector;
+
+/**
+ * Single pass parser of IPv4 and IPv6 literals, that writes the address bytes into a caller
+ * provided array without allocating.
+ * <p>
+ * Accepted forms are dotted quad IPv4 without leading zeros, IPv6 with or without {@code ::}
+ * compression, IPv6 with an embedded IPv4 tail (e.g. {@code ::ffff:192.168.1.1}) and IPv6 with a
+ * zone id ({@code fe80::1%eth0}), that's ignored. IPv4-mapped IPv6 addresses are returned as the
+ * 4 bytes of the IPv4 address, as {@link java.net.InetAddress} does.
+ */
+public final class IpAddresses {
+
+  public static final int INVALID = -1;
+
+  private IpAddresses() {
+  }
+
+  /**
+   * @param ip the literal to parse.
+   * @param out array of at least 16 bytes where the address is written.
+   * @return 4 for an IPv4 address, 16 for an IPv6 address, {@link #INVALID} otherwise.
+   */
+  public static int parse(CharSequence ip, byte[] out) {
+    if (ip == null) {
+      return INVALID;
+    }
+    final int length = ip.length();
+    if (length == 0) {
+      return INVALID;
+    }
+    for (int i = 0; i < length; i++) {
+      if (ip.charAt(i) == ':') {
+        return parseIPv6(ip, length, out);
+      }
+    }
+    return parseIPv4(ip, 0, length, out, 0) ? 4 : INVALID;
+  }
+
+  public static boolean isValid(CharSequence ip) {
+    return parse(ip, new byte[16]) != INVALID;
+  }
+
+  private static boolean parseIPv4(CharSequence ip, int start, int end, byte[] out, int offset) {
+    int octets = 0;
+    int value = 0;
+    int digits = 0;
+    for (int i = start; i < end; i++) {
+      final char c = ip.charAt(i);
+      if (c >= '0' && c <= '9') {
+        // no leading zeros
+        if (digits == 1 && value == 0) {
+          return false;
+        }
+        value = value * 10 + (c - '0');
+        digits++;
+        if (value > 255) {
+          return false;
+        }
+      } else if (c == '.') {
+        if (digits == 0 || octets == 3) {
+          return false;
+        }
+        out[offset + octets++] = (byte) value;
+        value = 0;
+        digits = 0;
+      } else {
+        return false;
+      }
+    }
+    if (digits == 0 || octets != 3) {
+      return false;
+    }
+    out[offset + 3] = (byte) value;
+    return true;
+  }
+
+  private static int parseIPv6(CharSequence ip, int length, byte[] out) {
+    int end = length;
+    for (int i = 0; i < length; i++) {
+      if (ip.charAt(i) == '%') {
+        // zone id, must not be empty
+        if (i == length - 1) {
+          return INVALID;
+        }
+        end = i;
+        break;
+      }
+    }
+
+    int position = 0;
+    int compressionAt = -1;
+    int i = 0;
+    if (end >= 2 && ip.charAt(0) == ':') {
+      if (ip.charAt(1) != ':') {
+        return INVALID;
+      }
+      compressionAt = 0;
+      i = 2;
+      if (i == end) {
+        // the unspecified address
+        for (int z = 0; z < 16; z++) {
+          out[z] = 0;
+        }
+        return 16;
+      }
+    }
+
+    while (i < end) {
+      if (position == 16) {
+        return INVALID;
+      }
+      final int groupStart = i;
+      int value = 0;
+      int digits = 0;
+      while (i < end) {
+        final int hex = hexValue(ip.charAt(i));
+        if (hex < 0) {
+          break;
+        }
+        value = (value << 4) | hex;
+        digits++;
+        i++;
+      }
+      if (i < end && ip.charAt(i) == '.') {
+        // embedded IPv4 tail, takes the last 4 bytes
+        if (position > 12 || !parseIPv4(ip, groupStart, end, out, position)) {
+          return INVALID;
+        }
+        position += 4;
+        i = end;
+        break;
+      }
+      if (digits == 0 || digits > 4) {
+        return INVALID;
+      }
+      out[position++] = (byte) (value >> 8);
+      out[position++] = (byte) value;
+      if (i == end) {
+        break;
+      }
+      if (ip.charAt(i) != ':') {
+        return INVALID;
+      }
+      i++;
+      if (i < end && ip.charAt(i) == ':') {
+        if (compressionAt != -1) {
+          return INVALID;
+        }
+        compressionAt = position;
+        i++;
+      } else if (i == end) {
+        // trailing single colon
+        return INVALID;
+      }
+    }
+
+    if (compressionAt == -1) {
+      if (position != 16) {
+        return INVALID;
+      }
+    } else {
+      if (position == 16) {
+        return INVALID;
+      }
+      final int tail = position - compressionAt;
+      System.arraycopy(out, compressionAt, out, 16 - tail, tail);
+      for (int z = compressionAt; z < 16 - tail; z++) {
+        out[z] = 0;
+      }
+    }
+    return isIPv4Mapped(out) ? unmap(out) : 16;
+  }
+
+  private static boolean isIPv4Mapped(byte[] address) {
+    for (int i = 0; i < 10; i++) {
+      if (address[i] != 0) {
+        return false;
+      }
+    }
+    return address[10] == (byte) 0xFF && address[11] == (byte) 0xFF;
+  }
+
+  private static int unmap(byte[] out) {
+    System.arraycopy(out, 12, out, 0, 4);
+    return 4;
+  }
+
+  private static int hexValue(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    if (c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
+    }
+    return -1;
+  }
+}
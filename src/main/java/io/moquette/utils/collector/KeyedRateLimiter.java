@@ -0,0 +1,129 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket per key (e.g. broker uuid or remote IP) with a fixed memory footprint, shared by
+ * all the gateway instances. Thread safe and lock free.
+ * <p>
+ * Buckets are kept as in the generic cell rate algorithm: each one is a single long holding a 24
+ * bits fingerprint of the key and the theoretical arrival time of the next request, in
+ * milliseconds. A request is allowed if that time isn't more than burst intervals ahead of now.
+ * A bucket whose time is in the past is full, so it's equivalent to an absent one and its slot is
+ * free to reuse: entries expire without any cleanup.
+ * <p>
+ * The table is set associative, a key can live in one of {@value #WAYS} slots; when they are all
+ * taken by keys still limited, the one closest to expiry is evicted and that key starts again
+ * with a full bucket. Keys with the same fingerprint in the same set share the bucket.
+ */
+public class KeyedRateLimiter {
+
+  private static final int WAYS = 4;
+  private static final int TIME_BITS = 40;
+  private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+
+  private final AtomicLongArray slots;
+  private final int mask;
+  private final long intervalMs;
+  private final long burstWindowMs;
+  private final long epochNanos = System.nanoTime();
+  private final LongAdder rejected = new LongAdder();
+
+  /**
+   * @param slots size of the table, rounded up to a power of two.
+   * @param perMinute requests per minute refilled in every bucket, 0 disables the limiter.
+   * @param burst size of every bucket.
+   */
+  public KeyedRateLimiter(int slots, int perMinute, int burst) {
+    final int size = Math.max(WAYS, Integer.highestOneBit(Math.max(1, slots - 1)) << 1);
+    this.slots = new AtomicLongArray(size);
+    this.mask = size - 1;
+    this.intervalMs = perMinute > 0 ? Math.max(1, TimeUnit.MINUTES.toMillis(1) / perMinute) : 0;
+    this.burstWindowMs = intervalMs * Math.max(1, burst);
+  }
+
+  /**
+   * Accepted configuration keys, where name is e.g. uuid or ip:
+   * <ul>
+   *   <li>rate_limit_&lt;name&gt;_per_minute: 0 disables the limiter</li>
+   *   <li>rate_limit_&lt;name&gt;_burst</li>
+   *   <li>rate_limit_slots: buckets held by each limiter, default 1048576 (8 MB)</li>
+   * </ul>
+   */
+  public static KeyedRateLimiter fromConfig(JsonObject config, String name, int defaultPerMinute, int defaultBurst) {
+    return new KeyedRateLimiter(
+      config.getInteger("rate_limit_slots", 1 << 20),
+      config.getInteger("rate_limit_" + name + "_per_minute", defaultPerMinute),
+      config.getInteger("rate_limit_" + name + "_burst", defaultBurst));
+  }
+
+  /**
+   * Takes a token from the bucket of the key.
+   *
+   * @return 0 if the request is allowed, otherwise the milliseconds to wait for the next token.
+   */
+  public long acquire(CharSequence key) {
+    if (intervalMs == 0 || key == null) {
+      return 0;
+    }
+    final long hash = hash(key);
+    long fingerprint = hash >>> TIME_BITS;
+    if (fingerprint == 0) {
+      // 0 marks the never used slots
+      fingerprint = 1;
+    }
+    final int set = (int) hash & mask & ~(WAYS - 1);
+    // offset by one so that the time of a never used slot is always in the past
+    final long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - epochNanos) + 1;
+    while (true) {
+      int victim = set;
+      long victimValue = slots.get(set);
+      boolean found = false;
+      for (int i = 0; i < WAYS; i++) {
+        final int slot = set + i;
+        final long value = slots.get(slot);
+        if (value >>> TIME_BITS == fingerprint) {
+          victim = slot;
+          victimValue = value;
+          found = true;
+          break;
+        }
+        if ((value & TIME_MASK) < (victimValue & TIME_MASK)) {
+          victim = slot;
+          victimValue = value;
+        }
+      }
+
+      final long arrival = found ? Math.max(victimValue & TIME_MASK, now) : now;
+      final long next = arrival + intervalMs;
+      if (next - now > burstWindowMs) {
+        rejected.increment();
+        return next - now - burstWindowMs;
+      }
+      if (slots.compareAndSet(victim, victimValue, (fingerprint << TIME_BITS) | (next & TIME_MASK))) {
+        return 0;
+      }
+    }
+  }
+
+  public long rejected() {
+    return rejected.sum();
+  }
+
+  // FNV-1a with a final avalanche, so that both fingerprint and set index are well distributed
+  private static long hash(CharSequence key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
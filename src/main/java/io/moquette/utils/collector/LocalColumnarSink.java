@@ -0,0 +1,64 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes the rows to the local {@link ColumnarStore}, in blocks of up to local_sink_max_rows
+ * rows: the bigger the block, the better its values are shared by the dictionaries.
+ */
+public class LocalColumnarSink implements Sink {
+
+  private final ColumnarStore store;
+  private final WriteBehindBatcher batcher;
+  private final BlockingExecutor blockingExecutor;
+
+  /**
+   * @param store the store shared by all the gateway instances.
+   */
+  public LocalColumnarSink(Vertx vertx, JsonObject config, ColumnarStore store, Metrics metrics) {
+    this.store = store;
+    batcher = new WriteBehindBatcher(vertx, config.getInteger("local_sink_max_rows", 1000),
+      config.getLong("local_sink_max_delay_ms", 2L), this::append);
+    blockingExecutor = BlockingExecutor.create(vertx, config, metrics, "local_sink", 2);
+    metrics.counter("collector_local_sink_rows_total", "Rows written to the local store", "", store::rows);
+    metrics.counter("collector_local_sink_bytes_total", "Bytes written to the local store", "", store::bytes);
+  }
+
+  @Override
+  public String name() {
+    return "local";
+  }
+
+  @Override
+  public Future<Void> write(Buffer row) {
+    return batcher.add(row);
+  }
+
+  @Override
+  public JsonObject stats() {
+    return XataSink.batcherStats(batcher)
+      .put("directory", store.directory().toString())
+      .put("stored_rows", store.rows())
+      .put("stored_blocks", store.blocks())
+      .put("stored_bytes", store.bytes());
+  }
+
+  private Future<Void> append(List<Buffer> rows) {
+    // blocks are independent, they can be encoded in parallel
+    return blockingExecutor.executeBlocking((Promise<Void> promise) -> {
+      try {
+        store.append(rows);
+        promise.complete();
+      } catch (IOException e) {
+        promise.fail(e);
+      }
+    }, false);
+  }
+}
@@ -0,0 +1,28 @@
+package io.moquette.utils.collector;
+
+import org.slf4j.Logger;
+
+/**
+ * Lets through one every {@code rate} per-request DEBUG events, so that hot paths can emit
+ * diagnostic events without paying for formatting and appending on every request.
+ * <p>
+ * Not thread safe, meant to be owned by a single verticle instance.
+ */
+public class LogSampler {
+
+  private final Logger logger;
+  private final int rate;
+  private long events;
+
+  public LogSampler(Logger logger, int rate) {
+    this.logger = logger;
+    this.rate = Math.max(1, rate);
+  }
+
+  /**
+   * @return true if DEBUG is enabled and the current event is part of the sample.
+   */
+  public boolean sample() {
+    return logger.isDebugEnabled() && events++ % rate == 0;
+  }
+}
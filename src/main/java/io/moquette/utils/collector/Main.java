@@ -1,31 +1,100 @@
 package io.moquette.utils.collector;
 
 import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
-import io.vertx.core.VertxOptions;
 import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Main {
-  public static void main(String[] args) {
-//    final VertxOptions vertxOptions = new VertxOptions();
+  private static final Logger logger = LoggerFactory.getLogger(Main.class);
+
+  public static void main(String[] args) throws IOException {
+    final CollectorConfig collectorConfig = CollectorConfig.load();
 //    vertxOptions.getAddressResolverOptions().setOptResourceEnabled(false);
-//    Vertx vertx = Vertx.vertx(vertxOptions);
-    Vertx vertx = Vertx.vertx();
+    Vertx vertx = Vertx.vertx(collectorConfig.vertxOptions());
+    logger.info("Native transport enabled: {}", vertx.isNativeTransportEnabled());
 
-    JsonObject geoipConfig = new JsonObject()
-      .put("license_key", System.getenv().get("GEOLITE2_LICENSE_KEY"));
-    vertx
-      .deployVerticle(new GeoIPVerticle(), new DeploymentOptions().setConfig(geoipConfig))
+    final JsonObject config = collectorConfig.json();
+    // shared by all the verticles, scraped from any gateway instance on /metrics
+    final Metrics metrics = new Metrics();
+    GeoIPVerticle.deploy(vertx, config, metrics)
       .onFailure(th -> {
-        System.out.println("Can't start GeoIP lookup verticle");
+        logger.error("Can't start GeoIP lookup verticle", th);
         System.exit(1);
       });
 
-    JsonObject config = new JsonObject()
-      .put("api_key", System.getenv().get("API_KEY"))
-      .put("workspace_slug", System.getenv().get("WORKSPACE"))
-      .put("region", System.getenv().get("REGION"));
-    DeploymentOptions options = new DeploymentOptions().setConfig(config);
-    vertx.deployVerticle(new GatewayXata(), options);
+    // shared by all the gateway instances, so that a single drainer replays it in order
+    final Spool spool = Sink.configured(config).contains("xata") ? Spool.fromConfig(config) : null;
+    // written in blocks by all the gateway instances
+    final ColumnarStore localStore = Sink.configured(config).contains("local") ? ColumnarStore.fromConfig(config) : null;
+    final AdmissionLimiter limiter = AdmissionLimiter.fromConfig(config);
+    // a NAT can hide many brokers behind the same IP, so its limit is looser
+    final KeyedRateLimiter ipRateLimiter = KeyedRateLimiter.fromConfig(config, "ip", 600, 100);
+    final KeyedRateLimiter uuidRateLimiter = KeyedRateLimiter.fromConfig(config, "uuid", 12, 5);
+    final DuplicateFilter duplicates = new DuplicateFilter(config.getLong("dedup_window_ms", 0L),
+      config.getInteger("dedup_max_entries", 100_000));
+    final Rollup rollup = Rollup.fromConfig(config);
+    final Path rollupSnapshot = Rollup.snapshotPath(config);
+    final BlockingExecutor snapshotExecutor = BlockingExecutor.create(vertx, config, metrics, "rollup", 1);
+    vertx.setPeriodic(config.getLong("rollup_snapshot_interval_ms", 60_000L), id -> snapshotExecutor
+      .executeBlocking((Promise<Void> promise) -> {
+        try {
+          rollup.snapshot(rollupSnapshot);
+          promise.complete();
+        } catch (IOException e) {
+          promise.fail(e);
+        }
+      }, false)
+      .onFailure(th -> logger.warn("Can't write rollup snapshot", th)));
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(vertx, rollup, rollupSnapshot, spool, localStore),
+      "collector-shutdown"));
+    final int instances = collectorConfig.gatewayInstances();
+    DeploymentOptions options = new DeploymentOptions()
+      .setConfig(config)
+      .setInstances(instances);
+    vertx.deployVerticle(() -> new GatewayXata(spool, localStore, metrics, limiter, ipRateLimiter, uuidRateLimiter,
+      duplicates, rollup), options)
+      .onSuccess(id -> logger.info("Deployed {} gateway instances", instances))
+      .onFailure(th -> {
+        logger.error("Can't start gateway verticle", th);
+        System.exit(1);
+      });
+  }
+
+  /**
+   * Stops the verticles, so that nothing is written anymore, then writes the last rollup snapshot
+   * and closes the local files.
+   */
+  private static void shutdown(Vertx vertx, Rollup rollup, Path rollupSnapshot, Spool spool,
+                               ColumnarStore localStore) {
+    logger.info("Shutting down");
+    try {
+      vertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+      logger.warn("Can't stop the verticles", e);
+    }
+    try {
+      rollup.snapshot(rollupSnapshot);
+    } catch (IOException e) {
+      logger.warn("Can't write rollup snapshot", e);
+    }
+    try {
+      if (spool != null) {
+        spool.close();
+      }
+      if (localStore != null) {
+        localStore.close();
+      }
+    } catch (IOException e) {
+      logger.warn("Can't close the local files", e);
+    }
   }
 }
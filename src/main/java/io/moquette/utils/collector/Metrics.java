@@ -0,0 +1,193 @@
+package io.moquette.utils.collector;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of counters, gauges and latency histograms rendered in the Prometheus text format.
+ * <p>
+ * Metrics are registered at startup and then shared by all the verticles; recording is lock free
+ * and doesn't allocate, so it can stay enabled in production. Histograms have fixed buckets from
+ * 50 microseconds to 10 seconds.
+ */
+public class Metrics {
+
+  private static final long[] BUCKET_BOUNDS_NANOS = {
+    50_000L, 100_000L, 250_000L, 500_000L,
+    1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+    100_000_000L, 250_000_000L, 500_000_000L,
+    1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+  };
+
+  public static final class Counter {
+    private final LongAdder value = new LongAdder();
+
+    public void increment() {
+      value.increment();
+    }
+
+    public void add(long amount) {
+      value.add(amount);
+    }
+
+    public long value() {
+      return value.sum();
+    }
+  }
+
+  /**
+   * Value that goes up and down, e.g. the depth of a queue.
+   */
+  public static final class Level {
+    private final AtomicLong value = new AtomicLong();
+
+    public void increment() {
+      value.incrementAndGet();
+    }
+
+    public void decrement() {
+      value.decrementAndGet();
+    }
+
+    public long value() {
+      return value.get();
+    }
+  }
+
+  public static final class Histogram {
+    // one more bucket for the values over the last bound
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    private Histogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    public void record(long nanos) {
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+        bucket++;
+      }
+      buckets[bucket].increment();
+      sumNanos.add(nanos);
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+      record(System.nanoTime() - startNanos);
+    }
+  }
+
+  private static final class Family {
+    private final String help;
+    private final String type;
+    private final Map<String, Object> series = new LinkedHashMap<>();
+
+    Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  private final Map<String, Family> families = new LinkedHashMap<>();
+
+  /**
+   * @param labels the labels in Prometheus syntax, e.g. {@code stage="geoip"}, or empty.
+   */
+  public Counter counter(String name, String help, String labels) {
+    return register(name, help, "counter", labels, new Counter());
+  }
+
+  public Level level(String name, String help, String labels) {
+    return register(name, help, "gauge", labels, new Level());
+  }
+
+  public void gauge(String name, String help, String labels, LongSupplier value) {
+    register(name, help, "gauge", labels, value);
+  }
+
+  /**
+   * Exposes as counter a monotonic value already tracked elsewhere.
+   */
+  public void counter(String name, String help, String labels, LongSupplier value) {
+    register(name, help, "counter", labels, value);
+  }
+
+  public Histogram histogram(String name, String help, String labels) {
+    return register(name, help, "histogram", labels, new Histogram());
+  }
+
+  @SuppressWarnings("unchecked")
+  private synchronized <T> T register(String name, String help, String type, String labels, T metric) {
+    final Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException("Metric " + name + " already registered as " + family.type);
+    }
+    // verticle instances sharing the registry get the same series
+    return (T) family.series.computeIfAbsent(labels, key -> metric);
+  }
+
+  /**
+   * @return the metrics in the Prometheus text exposition format, version 0.0.4.
+   */
+  public synchronized String scrape() {
+    final StringBuilder out = new StringBuilder(4096);
+    for (Map.Entry<String, Family> entry : families.entrySet()) {
+      final String name = entry.getKey();
+      final Family family = entry.getValue();
+      out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+      for (Map.Entry<String, Object> serie : family.series.entrySet()) {
+        final String labels = serie.getKey();
+        final Object metric = serie.getValue();
+        if (metric instanceof Histogram) {
+          appendHistogram(out, name, labels, (Histogram) metric);
+        } else {
+          final long value;
+          if (metric instanceof Counter) {
+            value = ((Counter) metric).value();
+          } else if (metric instanceof Level) {
+            value = ((Level) metric).value();
+          } else {
+            value = ((LongSupplier) metric).getAsLong();
+          }
+          appendSample(out, name, labels, null, Long.toString(value));
+        }
+      }
+    }
+    return out.toString();
+  }
+
+  private static void appendHistogram(StringBuilder out, String name, String labels, Histogram histogram) {
+    long cumulative = 0;
+    for (int i = 0; i < histogram.buckets.length; i++) {
+      cumulative += histogram.buckets[i].sum();
+      final String le = i < BUCKET_BOUNDS_NANOS.length ? Double.toString(BUCKET_BOUNDS_NANOS[i] / 1e9) : "+Inf";
+      appendSample(out, name + "_bucket", labels, "le=\"" + le + "\"", Long.toString(cumulative));
+    }
+    appendSample(out, name + "_sum", labels, null, Double.toString(histogram.sumNanos.sum() / 1e9));
+    appendSample(out, name + "_count", labels, null, Long.toString(cumulative));
+  }
+
+  private static void appendSample(StringBuilder out, String name, String labels, String extraLabel, String value) {
+    out.append(name);
+    if (!labels.isEmpty() || extraLabel != null) {
+      out.append('{').append(labels);
+      if (extraLabel != null) {
+        if (!labels.isEmpty()) {
+          out.append(',');
+        }
+        out.append(extraLabel);
+      }
+      out.append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+}
@@ -0,0 +1,163 @@
+package io.moquette.utils.collector;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.vertx.core.buffer.Buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The fields of a broker notify used by the collector, read from the request body token by
+ * token: unknown fields are skipped without being decoded and no intermediate JSON tree is built.
+ * The values shared by many brokers are taken from a {@link TextCache}.
+ */
+public final class Notify {
+
+  static final JsonFactory JSON = new JsonFactory();
+
+  String uuid;
+  String remoteIp;
+  String os;
+  String cpuArch;
+  String jvmVersion;
+  String jvmVendor;
+  String brokerVersion;
+  Boolean standalone;
+  // null when absent or "undefined"
+  Long maxHeap;
+
+  public String uuid() {
+    return uuid;
+  }
+
+  public String remoteIp() {
+    return remoteIp;
+  }
+
+  public String brokerVersion() {
+    return brokerVersion;
+  }
+
+  public String jvmVersion() {
+    return jvmVersion;
+  }
+
+  /**
+   * @throws IOException if the body isn't a JSON object or a known field has a wrong type.
+   */
+  public static Notify parse(Buffer body, TextCache cache) throws IOException {
+    try (JsonParser parser = createParser(body)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Notify must be a JSON object");
+      }
+      final Notify notify = read(parser, cache);
+      if (parser.nextToken() != null) {
+        throw new IOException("Unexpected content after the notify object");
+      }
+      return notify;
+    }
+  }
+
+  static JsonParser createParser(Buffer body) throws IOException {
+    final ByteBuf buf = body.getByteBuf();
+    if (buf.hasArray()) {
+      // parse in place, without the copies into the parser input buffer
+      return JSON.createParser(buf.array(), buf.arrayOffset() + buf.readerIndex(), buf.readableBytes());
+    }
+    return JSON.createParser((InputStream) new ByteBufInputStream(buf));
+  }
+
+  /**
+   * Reads the fields of the object whose START_OBJECT is the current token, up to its END_OBJECT.
+   */
+  static Notify read(JsonParser parser, TextCache cache) throws IOException {
+    final Notify notify = new Notify();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      final String field = parser.getCurrentName();
+      final JsonToken value = parser.nextToken();
+      switch (field) {
+        case "uuid":
+          notify.uuid = text(parser, field);
+          break;
+        case "remote_ip":
+          notify.remoteIp = text(parser, field);
+          break;
+        case "os":
+          notify.os = cachedText(parser, field, cache);
+          break;
+        case "cpu_arch":
+          notify.cpuArch = cachedText(parser, field, cache);
+          break;
+        case "jvm_version":
+          notify.jvmVersion = cachedText(parser, field, cache);
+          break;
+        case "jvm_vendor":
+          notify.jvmVendor = cachedText(parser, field, cache);
+          break;
+        case "broker_version":
+          notify.brokerVersion = cachedText(parser, field, cache);
+          break;
+        case "standalone":
+          if (value == JsonToken.VALUE_TRUE || value == JsonToken.VALUE_FALSE) {
+            notify.standalone = parser.getBooleanValue();
+          } else if (value != JsonToken.VALUE_NULL) {
+            throw new IOException("Field standalone must be a boolean");
+          }
+          break;
+        case "max_heap":
+          notify.maxHeap = maxHeap(parser, value);
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    if (parser.currentToken() != JsonToken.END_OBJECT) {
+      throw new IOException("Malformed notify object");
+    }
+    return notify;
+  }
+
+  private static String text(JsonParser parser, String field) throws IOException {
+    final JsonToken token = parser.currentToken();
+    if (token == JsonToken.VALUE_STRING) {
+      return parser.getText();
+    }
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    throw new IOException("Field " + field + " must be a string");
+  }
+
+  private static String cachedText(JsonParser parser, String field, TextCache cache) throws IOException {
+    final JsonToken token = parser.currentToken();
+    if (token == JsonToken.VALUE_STRING) {
+      return cache.get(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+    }
+    return text(parser, field);
+  }
+
+  private static Long maxHeap(JsonParser parser, JsonToken value) throws IOException {
+    if (value == JsonToken.VALUE_NUMBER_INT) {
+      return parser.getLongValue();
+    }
+    if (value == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (value != JsonToken.VALUE_STRING) {
+      throw new IOException("Field max_heap must be a number");
+    }
+    final String text = parser.getText();
+    if ("undefined".equals(text)) {
+      return null;
+    }
+    try {
+      return Long.parseLong(text);
+    } catch (NumberFormatException e) {
+      throw new IOException("Field max_heap must be a number", e);
+    }
+  }
+}
@@ -0,0 +1,428 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of the collected runs by day, broker version, JVM version, OS, CPU architecture and
+ * nation, updated as the rows are stored, so that the usage figures are answered from memory
+ * instead of exporting the whole table.
+ * <p>
+ * Counts are partitioned by day, so that a query only visits the days in its range. Every day
+ * has a striped counter per combination of the other dimensions and, for the queries that filter
+ * and group by at most one of them, a counter per value of each dimension: those are answered
+ * reading a handful of counters per day instead of all the combinations.
+ * <p>
+ * The days older than the retention are evicted when a new day starts. The distinct combinations
+ * of all the days are bounded by max keys: past that bound the oldest day is evicted to make room
+ * for the newer ones, only the runs of a new combination of the oldest day are counted as dropped.
+ * <p>
+ * Shared by all the gateway instances, thread safe. Snapshots are blocking.
+ */
+public class Rollup {
+
+  public static final List<String> DIMENSIONS = Collections.unmodifiableList(
+    Arrays.asList("day", "version", "jvm_version", "os", "cpu_arch", "nation"));
+  // stands for a null value in the concurrent maps
+  private static final String NONE = "";
+
+  private static final class Key {
+    private final String[] values;
+    private final int hash;
+
+    Key(String[] values) {
+      this.values = values;
+      this.hash = Arrays.hashCode(values);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(values, ((Key) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  private static final class Partition {
+    private final ConcurrentHashMap<Key, LongAdder> combinations = new ConcurrentHashMap<>();
+    // per dimension but the day, value to runs
+    private final List<ConcurrentHashMap<String, LongAdder>> values = new ArrayList<>();
+    private final LongAdder total = new LongAdder();
+
+    Partition() {
+      for (int i = 1; i < DIMENSIONS.size(); i++) {
+        values.add(new ConcurrentHashMap<>());
+      }
+    }
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(Rollup.class);
+
+  private final ConcurrentSkipListMap<String, Partition> days = new ConcurrentSkipListMap<>();
+  private final int maxKeys;
+  private final int retentionDays;
+  // recounted on every eviction, a run added to an evicted day can leave it slightly above
+  private final AtomicInteger keys = new AtomicInteger();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder evictedDays = new LongAdder();
+
+  public Rollup(int maxKeys) {
+    this(maxKeys, 0);
+  }
+
+  /**
+   * @param retentionDays days counted up to the newest one, 0 to keep them until max keys.
+   */
+  public Rollup(int maxKeys, int retentionDays) {
+    this.maxKeys = maxKeys;
+    this.retentionDays = retentionDays;
+  }
+
+  /**
+   * Counts a run, the values can be null.
+   *
+   * @param day formatted as yyyy-MM-dd.
+   */
+  public void add(String day, String version, String jvmVersion, String os, String cpuArch, String nation) {
+    add(day, new Key(new String[]{version, jvmVersion, os, cpuArch, nation}), 1);
+  }
+
+  private void add(String day, Key key, long runs) {
+    final String name = day != null ? day : NONE;
+    Partition partition = days.get(name);
+    if (partition == null) {
+      if (isExpired(name)) {
+        dropped.add(runs);
+        return;
+      }
+      partition = days.computeIfAbsent(name, d -> new Partition());
+      evictExpired();
+    }
+    LongAdder count = partition.combinations.get(key);
+    if (count == null) {
+      if (keys.get() >= maxKeys && !evictOlderThan(name)) {
+        dropped.add(runs);
+        return;
+      }
+      count = partition.combinations.computeIfAbsent(key, k -> {
+        keys.incrementAndGet();
+        return new LongAdder();
+      });
+    }
+    count.add(runs);
+    for (int i = 0; i < key.values.length; i++) {
+      final String value = key.values[i] != null ? key.values[i] : NONE;
+      final ConcurrentHashMap<String, LongAdder> counts = partition.values.get(i);
+      LongAdder valueCount = counts.get(value);
+      if (valueCount == null) {
+        valueCount = counts.computeIfAbsent(value, v -> new LongAdder());
+      }
+      valueCount.add(runs);
+    }
+    partition.total.add(runs);
+  }
+
+  /**
+   * @return the first day kept, or null if all are.
+   */
+  private String retainedFrom() {
+    final Map.Entry<String, Partition> newest = days.lastEntry();
+    if (retentionDays <= 0 || newest == null || newest.getKey().isEmpty()) {
+      return null;
+    }
+    try {
+      return LocalDate.parse(newest.getKey()).minusDays(retentionDays - 1).toString();
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  private boolean isExpired(String day) {
+    final String from = retainedFrom();
+    return from != null && !day.isEmpty() && day.compareTo(from) < 0;
+  }
+
+  private synchronized void evictExpired() {
+    final String from = retainedFrom();
+    if (from == null) {
+      return;
+    }
+    // the runs without day are never expired
+    final NavigableMap<String, Partition> expired = days.subMap(NONE, false, from, false);
+    if (!expired.isEmpty()) {
+      logger.info("Evicting the rollup counts of {} days before {}", expired.size(), from);
+      evictedDays.add(expired.size());
+      expired.clear();
+      recount();
+    }
+  }
+
+  /**
+   * Evicts the oldest day, to make room for the combinations of a newer one.
+   *
+   * @return true if there's room for a new combination of the day.
+   */
+  private synchronized boolean evictOlderThan(String day) {
+    if (keys.get() < maxKeys) {
+      // evicted by another thread
+      return true;
+    }
+    final Map.Entry<String, Partition> oldest = days.firstEntry();
+    if (oldest == null || oldest.getKey().compareTo(day) >= 0) {
+      return false;
+    }
+    logger.warn("Rollup over {} keys, evicting the counts of day {}", maxKeys,
+      oldest.getKey().isEmpty() ? "none" : oldest.getKey());
+    days.remove(oldest.getKey());
+    evictedDays.increment();
+    recount();
+    return keys.get() < maxKeys;
+  }
+
+  private void recount() {
+    int count = 0;
+    for (Partition partition : days.values()) {
+      count += partition.combinations.size();
+    }
+    keys.set(count);
+  }
+
+  public int size() {
+    return keys.get();
+  }
+
+  public long dropped() {
+    return dropped.sum();
+  }
+
+  public long evictedDays() {
+    return evictedDays.sum();
+  }
+
+  /**
+   * @param filters required value of some dimensions.
+   * @param fromDay first day included, or null.
+   * @param toDay last day included, or null.
+   * @param groupBy dimensions of the returned groups, sorted by descending count; with none
+   * only the total is returned.
+   */
+  public JsonObject query(Map<String, String> filters, String fromDay, String toDay, List<String> groupBy) {
+    // index 0 is the day, the others are the ones of the key values plus one
+    final String[] required = new String[DIMENSIONS.size()];
+    for (Map.Entry<String, String> filter : filters.entrySet()) {
+      required[index(filter.getKey())] = filter.getValue();
+    }
+    final int[] groupIndexes = new int[groupBy.size()];
+    int dimension = 0;
+    boolean singleDimension = true;
+    for (int i = 0; i < groupIndexes.length; i++) {
+      groupIndexes[i] = index(groupBy.get(i));
+      if (groupIndexes[i] > 0) {
+        singleDimension &= dimension == 0 || dimension == groupIndexes[i];
+        dimension = groupIndexes[i];
+      }
+    }
+    for (int i = 1; i < required.length; i++) {
+      if (required[i] != null) {
+        singleDimension &= dimension == 0 || dimension == i;
+        dimension = i;
+      }
+    }
+
+    NavigableMap<String, Partition> range = days;
+    if (fromDay != null) {
+      range = range.tailMap(fromDay, true);
+    }
+    if (toDay != null) {
+      range = range.headMap(toDay, true);
+    }
+    final Map<Key, long[]> groups = new HashMap<>();
+    final String[] group = new String[groupIndexes.length];
+    long total = 0;
+    for (Map.Entry<String, Partition> entry : range.entrySet()) {
+      final String day = entry.getKey().isEmpty() ? null : entry.getKey();
+      if ((day == null && (fromDay != null || toDay != null)) || (required[0] != null && !required[0].equals(day))) {
+        continue;
+      }
+      final Partition partition = entry.getValue();
+      if (singleDimension && dimension == 0) {
+        total += count(groups, group, groupIndexes, day, null, partition.total.sum());
+      } else if (singleDimension) {
+        final ConcurrentHashMap<String, LongAdder> counts = partition.values.get(dimension - 1);
+        if (required[dimension] != null) {
+          final LongAdder count = counts.get(required[dimension]);
+          if (count != null) {
+            total += count(groups, group, groupIndexes, day, required[dimension], count.sum());
+          }
+        } else {
+          for (Map.Entry<String, LongAdder> count : counts.entrySet()) {
+            final String value = count.getKey().isEmpty() ? null : count.getKey();
+            total += count(groups, group, groupIndexes, day, value, count.getValue().sum());
+          }
+        }
+      } else {
+        for (Map.Entry<Key, LongAdder> combination : partition.combinations.entrySet()) {
+          final String[] values = combination.getKey().values;
+          if (!matches(values, required)) {
+            continue;
+          }
+          final long count = combination.getValue().sum();
+          total += count;
+          for (int i = 0; i < group.length; i++) {
+            group[i] = groupIndexes[i] == 0 ? day : values[groupIndexes[i] - 1];
+          }
+          addToGroup(groups, group, count);
+        }
+      }
+    }
+
+    final JsonObject result = new JsonObject().put("total", total);
+    if (groupIndexes.length > 0) {
+      final List<Map.Entry<Key, long[]>> sorted = new ArrayList<>(groups.entrySet());
+      sorted.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+      final JsonArray rows = new JsonArray();
+      for (Map.Entry<Key, long[]> entry : sorted) {
+        final JsonObject row = new JsonObject();
+        for (int i = 0; i < groupIndexes.length; i++) {
+          row.put(groupBy.get(i), entry.getKey().values[i]);
+        }
+        rows.add(row.put("count", entry.getValue()[0]));
+      }
+      result.put("groups", rows);
+    }
+    return result;
+  }
+
+  /**
+   * Adds the runs of a day, or of a value of the single dimension of the query in a day.
+   */
+  private static long count(Map<Key, long[]> groups, String[] group, int[] groupIndexes, String day, String value,
+                            long count) {
+    if (group.length > 0) {
+      for (int i = 0; i < group.length; i++) {
+        group[i] = groupIndexes[i] == 0 ? day : value;
+      }
+      addToGroup(groups, group, count);
+    }
+    return count;
+  }
+
+  private static void addToGroup(Map<Key, long[]> groups, String[] group, long count) {
+    if (group.length == 0) {
+      return;
+    }
+    final long[] sum = groups.get(new Key(group));
+    if (sum != null) {
+      sum[0] += count;
+    } else {
+      groups.put(new Key(group.clone()), new long[]{count});
+    }
+  }
+
+  private static boolean matches(String[] values, String[] required) {
+    for (int i = 0; i < values.length; i++) {
+      final String value = required[i + 1];
+      if (value != null && !value.equals(values[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int index(String dimension) {
+    final int index = DIMENSIONS.indexOf(dimension);
+    if (index < 0) {
+      throw new IllegalArgumentException("Unknown dimension " + dimension);
+    }
+    return index;
+  }
+
+  /**
+   * Writes all the counts to the file, one JSON object per combination, replacing it atomically.
+   */
+  public void snapshot(Path file) throws IOException {
+    final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      for (Map.Entry<String, Partition> partition : days.entrySet()) {
+        for (Map.Entry<Key, LongAdder> entry : partition.getValue().combinations.entrySet()) {
+          final JsonObject row = new JsonObject()
+            .put(DIMENSIONS.get(0), partition.getKey().isEmpty() ? null : partition.getKey());
+          for (int i = 1; i < DIMENSIONS.size(); i++) {
+            row.put(DIMENSIONS.get(i), entry.getKey().values[i - 1]);
+          }
+          writer.write(row.put("count", entry.getValue().sum()).encode());
+          writer.newLine();
+        }
+      }
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Adds the counts of a snapshot, if the file exists.
+   */
+  public void load(Path file) throws IOException {
+    if (!Files.exists(file)) {
+      return;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final JsonObject row = new JsonObject(line);
+        final String[] values = new String[DIMENSIONS.size() - 1];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = row.getString(DIMENSIONS.get(i + 1));
+        }
+        add(row.getString(DIMENSIONS.get(0)), new Key(values), row.getLong("count", 0L));
+      }
+    }
+    logger.info("Loaded {} rollup counts from {}", size(), file);
+  }
+
+  /**
+   * Accepted configuration keys:
+   * <ul>
+   *   <li>rollup_max_keys: distinct combinations counted, default 100000</li>
+   *   <li>rollup_retention_days: days counted up to the newest one, default 0 to keep them until
+   *   max keys</li>
+   *   <li>rollup_snapshot_path: default rollup.ndjson, loaded at startup</li>
+   * </ul>
+   */
+  public static Rollup fromConfig(JsonObject config) throws IOException {
+    final Rollup rollup = new Rollup(config.getInteger("rollup_max_keys", 100_000),
+      config.getInteger("rollup_retention_days", 0));
+    rollup.load(snapshotPath(config));
+    return rollup;
+  }
+
+  public static Path snapshotPath(JsonObject config) {
+    return Paths.get(config.getString("rollup_snapshot_path", "rollup.ndjson"));
+  }
+}
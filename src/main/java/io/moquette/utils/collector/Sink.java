@@ -0,0 +1,50 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Destination of the collected rows, each one a JSON encoded object.
+ * <p>
+ * Sinks are created by every gateway instance and confined to its event loop, what they share
+ * across instances (e.g. the spool or the local store) must be thread safe.
+ */
+public interface Sink {
+
+  String name();
+
+  /**
+   * @return a future completed once the row is stored by the destination, or by a local buffer
+   * that guarantees its delivery.
+   */
+  Future<Void> write(Buffer row);
+
+  /**
+   * Writes a row in a request of its own, not batched with the others: for the rows that the
+   * destination could refuse, e.g. the suppressed notify counts, so that they can't fail a bulk
+   * insert of unrelated rows.
+   */
+  default Future<Void> writeAlone(Buffer row) {
+    return write(row);
+  }
+
+  JsonObject stats();
+
+  /**
+   * @return the names in the sinks configuration key, a comma separated list of xata and local,
+   * default xata.
+   */
+  static List<String> configured(JsonObject config) {
+    final List<String> names = new ArrayList<>();
+    for (String name : config.getString("sinks", "xata").split(",")) {
+      if (!name.trim().isEmpty()) {
+        names.add(name.trim());
+      }
+    }
+    return names;
+  }
+}
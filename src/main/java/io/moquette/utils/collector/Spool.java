@@ -0,0 +1,306 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Local write-ahead log of encoded rows, stored in memory mapped segment files of fixed size.
+ * <p>
+ * Records are addressed by a logical offset, that's the base offset of the segment (also used as
+ * file name) plus the position inside the segment. Every record is stored as a 4 bytes length
+ * followed by the payload; the length is written after the payload so that a partially written
+ * record reads as the end of the log. A length of {@code -1} marks the rest of a segment as unused.
+ * <p>
+ * The offset of the first record not yet acknowledged is persisted in the {@code checkpoint} file,
+ * segments entirely before it are deleted. All the methods are blocking.
+ */
+public class Spool {
+
+  private static final int HEADER_SIZE = 4;
+  private static final int END_OF_SEGMENT = -1;
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private final Logger logger = LoggerFactory.getLogger(Spool.class);
+
+  private final Path directory;
+  private final int segmentSize;
+  private final boolean fsync;
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+  private final FileChannel checkpointChannel;
+  private final AtomicBoolean draining = new AtomicBoolean(false);
+
+  private long writeOffset;
+  private long ackOffset;
+
+  public static final class Batch {
+    private final List<Buffer> records;
+    private final long nextOffset;
+
+    Batch(List<Buffer> records, long nextOffset) {
+      this.records = records;
+      this.nextOffset = nextOffset;
+    }
+
+    public List<Buffer> records() {
+      return records;
+    }
+
+    public long nextOffset() {
+      return nextOffset;
+    }
+
+    public boolean isEmpty() {
+      return records.isEmpty();
+    }
+  }
+
+  public Spool(Path directory, int segmentSize, boolean fsync) throws IOException {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.fsync = fsync;
+    Files.createDirectories(directory);
+
+    checkpointChannel = FileChannel.open(directory.resolve("checkpoint"),
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    final ByteBuffer checkpoint = ByteBuffer.allocate(Long.BYTES);
+    if (checkpointChannel.read(checkpoint, 0) == Long.BYTES) {
+      checkpoint.flip();
+      ackOffset = checkpoint.getLong();
+    }
+
+    final File[] files = directory.toFile().listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+    if (files != null) {
+      for (File file : files) {
+        final String name = file.getName();
+        final long baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        if (baseOffset + segmentSize <= ackOffset) {
+          Files.delete(file.toPath());
+        } else {
+          segments.put(baseOffset, map(baseOffset));
+        }
+      }
+    }
+    if (segments.isEmpty()) {
+      final long baseOffset = ackOffset - (ackOffset % segmentSize);
+      segments.put(baseOffset, map(baseOffset));
+      writeOffset = ackOffset;
+    } else {
+      writeOffset = recoverWriteOffset(segments.lastKey(), segments.lastEntry().getValue());
+      clearTail(segments.lastKey(), segments.lastEntry().getValue());
+    }
+    logger.info("Spool opened in {}, {} segments, backlog of {} bytes", directory, segments.size(), backlogBytes());
+  }
+
+  /**
+   * Opens the spool configured by spool_dir, spool_segment_bytes and spool_fsync, returns null when
+   * spool_dir isn't set.
+   */
+  public static Spool fromConfig(JsonObject config) throws IOException {
+    final String spoolDir = config.getString("spool_dir");
+    if (spoolDir == null) {
+      return null;
+    }
+    return new Spool(Paths.get(spoolDir), config.getInteger("spool_segment_bytes", 64 * 1024 * 1024),
+      config.getBoolean("spool_fsync", true));
+  }
+
+  private long recoverWriteOffset(long baseOffset, MappedByteBuffer segment) {
+    int position = 0;
+    while (position + HEADER_SIZE <= segmentSize) {
+      final int length = segment.getInt(position);
+      if (length == 0) {
+        break;
+      }
+      if (length == END_OF_SEGMENT) {
+        return baseOffset + segmentSize;
+      }
+      if (length < 0 || position + HEADER_SIZE + length > segmentSize) {
+        logger.warn("Invalid record length {} at offset {}, truncating the spool", length, baseOffset + position);
+        break;
+      }
+      position += HEADER_SIZE + length;
+    }
+    return baseOffset + Math.min(position, segmentSize);
+  }
+
+  /**
+   * Zeroes what follows the recovered records in the last segment: the payload of a torn record,
+   * written without its length, would be read as the length of the record after a shorter one
+   * appended in its place.
+   */
+  private void clearTail(long baseOffset, MappedByteBuffer segment) {
+    final int from = (int) (writeOffset - baseOffset);
+    int end = from;
+    for (int position = from; position < segmentSize; position++) {
+      if (segment.get(position) != 0) {
+        end = position + 1;
+      }
+    }
+    for (int position = from; position < end; position++) {
+      segment.put(position, (byte) 0);
+    }
+    if (end > from) {
+      logger.warn("Cleared {} bytes of a torn record at offset {}", end - from, writeOffset);
+      segment.force();
+    }
+  }
+
+  private MappedByteBuffer map(long baseOffset) throws IOException {
+    final Path file = directory.resolve(String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+  }
+
+  /**
+   * Appends the records in order and, when fsync is enabled, forces them to disk before returning.
+   */
+  public synchronized void append(List<Buffer> records) throws IOException {
+    final List<MappedByteBuffer> touched = new ArrayList<>(1);
+    for (Buffer record : records) {
+      final byte[] bytes = record.getBytes();
+      if (bytes.length + HEADER_SIZE * 2 > segmentSize) {
+        throw new IOException("Record of " + bytes.length + " bytes doesn't fit a spool segment");
+      }
+      long baseOffset = segments.lastKey();
+      MappedByteBuffer segment = segments.lastEntry().getValue();
+      int position = (int) (writeOffset - baseOffset);
+      // keep room for the end of segment marker
+      if (position + HEADER_SIZE + bytes.length + HEADER_SIZE > segmentSize) {
+        if (position + HEADER_SIZE <= segmentSize) {
+          segment.putInt(position, END_OF_SEGMENT);
+          if (!touched.contains(segment)) {
+            touched.add(segment);
+          }
+        }
+        baseOffset += segmentSize;
+        segment = map(baseOffset);
+        segments.put(baseOffset, segment);
+        position = 0;
+      }
+      final ByteBuffer slot = segment.duplicate();
+      slot.position(position + HEADER_SIZE);
+      slot.put(bytes);
+      segment.putInt(position, bytes.length);
+      writeOffset = baseOffset + position + HEADER_SIZE + bytes.length;
+      if (!touched.contains(segment)) {
+        touched.add(segment);
+      }
+    }
+    if (fsync) {
+      for (MappedByteBuffer segment : touched) {
+        segment.force();
+      }
+    }
+  }
+
+  /**
+   * Reads up to maxRecords records starting from the first not acknowledged.
+   */
+  public synchronized Batch readUnacknowledged(int maxRecords) {
+    final List<Buffer> records = new ArrayList<>(Math.min(maxRecords, 64));
+    long offset = ackOffset;
+    while (records.size() < maxRecords && offset < writeOffset) {
+      final Map.Entry<Long, MappedByteBuffer> entry = segments.floorEntry(offset);
+      if (entry == null) {
+        break;
+      }
+      final int position = (int) (offset - entry.getKey());
+      final int length = position + HEADER_SIZE <= segmentSize ? entry.getValue().getInt(position) : END_OF_SEGMENT;
+      if (length == END_OF_SEGMENT) {
+        offset = entry.getKey() + segmentSize;
+        continue;
+      }
+      if (length == 0) {
+        break;
+      }
+      final byte[] bytes = new byte[length];
+      final ByteBuffer slot = entry.getValue().duplicate();
+      slot.position(position + HEADER_SIZE);
+      slot.get(bytes);
+      records.add(Buffer.buffer(bytes));
+      offset += HEADER_SIZE + length;
+    }
+    return new Batch(records, offset);
+  }
+
+  /**
+   * Persists the checkpoint and deletes the segments that contain only acknowledged records.
+   */
+  public synchronized void acknowledge(long offset) throws IOException {
+    if (offset <= ackOffset) {
+      return;
+    }
+    final ByteBuffer checkpoint = ByteBuffer.allocate(Long.BYTES).putLong(0, offset);
+    checkpointChannel.write(checkpoint, 0);
+    if (fsync) {
+      checkpointChannel.force(false);
+    }
+    ackOffset = offset;
+
+    while (segments.size() > 1 && segments.firstKey() + segmentSize <= ackOffset) {
+      final long baseOffset = segments.pollFirstEntry().getKey();
+      Files.deleteIfExists(directory.resolve(String.format("%020d%s", baseOffset, SEGMENT_SUFFIX)));
+      logger.debug("Deleted acknowledged spool segment {}", baseOffset);
+    }
+  }
+
+  /**
+   * Moves records that the destination refuses to accept into a side file, so that they don't
+   * block the drain of the following records.
+   */
+  public synchronized void reject(List<Buffer> records) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(directory.resolve("rejected.ndjson").toFile(), true)) {
+      for (Buffer record : records) {
+        out.write(record.getBytes());
+        out.write('\n');
+      }
+    }
+  }
+
+  /**
+   * Only one drainer at a time can replay the spool, to keep records in order.
+   */
+  public boolean tryStartDrain() {
+    return draining.compareAndSet(false, true);
+  }
+
+  public void endDrain() {
+    draining.set(false);
+  }
+
+  public synchronized long backlogBytes() {
+    return writeOffset - ackOffset;
+  }
+
+  public synchronized int segmentCount() {
+    return segments.size();
+  }
+
+  public synchronized void close() throws IOException {
+    for (MappedByteBuffer segment : segments.values()) {
+      segment.force();
+    }
+    checkpointChannel.close();
+    segments.clear();
+  }
+}
@@ -0,0 +1,146 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes the rows to the spool, a row is accepted once it's on disk, and replays the spooled rows
+ * to Xata in the background, in order.
+ */
+public class SpooledXataSink implements Sink {
+
+  private final Logger logger = LoggerFactory.getLogger(SpooledXataSink.class);
+
+  private final XataClient xataClient;
+  private final Spool spool;
+  private final WriteBehindBatcher spoolCommitter;
+  private final int drainBatchSize;
+  private final BlockingExecutor blockingExecutor;
+
+  /**
+   * @param spool the spool shared by all the gateway instances.
+   */
+  public SpooledXataSink(Vertx vertx, JsonObject config, XataClient xataClient, Spool spool, Metrics metrics) {
+    this.xataClient = xataClient;
+    this.spool = spool;
+    blockingExecutor = BlockingExecutor.create(vertx, config, metrics, "spool", 2);
+
+    final int batchMaxRows = config.getInteger("batch_max_rows", 50);
+    // group commit: the appends queued within few milliseconds share the same fsync
+    spoolCommitter = new WriteBehindBatcher(vertx, batchMaxRows, config.getLong("spool_commit_delay_ms", 5L),
+      this::appendToSpool);
+    drainBatchSize = batchMaxRows;
+    vertx.setPeriodic(config.getLong("spool_drain_interval_ms", 1000L), id -> drainSpool());
+  }
+
+  @Override
+  public String name() {
+    return "xata";
+  }
+
+  @Override
+  public Future<Void> write(Buffer row) {
+    return spoolCommitter.add(row);
+  }
+
+  /**
+   * Sent straight to Xata, a spooled row would be drained in a bulk insert with the others.
+   */
+  @Override
+  public Future<Void> writeAlone(Buffer row) {
+    return xataClient.bulkInsert(Collections.singletonList(row));
+  }
+
+  @Override
+  public JsonObject stats() {
+    return XataSink.batcherStats(spoolCommitter)
+      .put("spool_backlog_bytes", spool.backlogBytes())
+      .put("spool_segments", spool.segmentCount())
+      .put("client", xataClient.stats());
+  }
+
+  private Future<Void> appendToSpool(List<Buffer> rows) {
+    return blockingExecutor.executeBlocking((Promise<Void> promise) -> {
+      try {
+        spool.append(rows);
+        promise.complete();
+      } catch (IOException e) {
+        promise.fail(e);
+      }
+    });
+  }
+
+  /**
+   * Replays the spooled rows to Xata, in order, advancing the checkpoint after each accepted batch.
+   */
+  private void drainSpool() {
+    if (!spool.tryStartDrain()) {
+      return;
+    }
+    blockingExecutor.executeBlocking((Promise<Spool.Batch> promise) -> promise.complete(spool.readUnacknowledged(drainBatchSize)))
+      .flatMap(batch -> {
+        if (batch.isEmpty()) {
+          return Future.succeededFuture(false);
+        }
+        return insertOrReject(batch.records())
+          .flatMap(v -> blockingExecutor.executeBlocking((Promise<Boolean> promise) -> {
+            try {
+              spool.acknowledge(batch.nextOffset());
+              promise.complete(true);
+            } catch (IOException e) {
+              promise.fail(e);
+            }
+          }));
+      })
+      .onComplete(ar -> {
+        spool.endDrain();
+        if (ar.failed()) {
+          logger.warn("Spool drain interrupted, {} bytes still pending", spool.backlogBytes(), ar.cause());
+        } else if (ar.result()) {
+          // more rows could be waiting, don't wait for the next tick
+          drainSpool();
+        }
+      });
+  }
+
+  /**
+   * Inserts the rows, moving to the rejected file the ones Xata refuses: a batch refused for the
+   * content of its rows is split in halves, inserted in order, down to the single refused rows. If a
+   * later half fails otherwise, the whole batch is replayed and the halves already inserted are
+   * inserted again.
+   */
+  private Future<Void> insertOrReject(List<Buffer> records) {
+    return xataClient.bulkInsert(records).recover(th -> {
+      if (records.size() > 1 && XataClient.isRowRejection(th)) {
+        final int half = records.size() / 2;
+        return insertOrReject(records.subList(0, half))
+          .flatMap(v -> insertOrReject(records.subList(half, records.size())));
+      }
+      if (th instanceof XataStatusException && isPermanent(((XataStatusException) th).statusCode())) {
+        logger.error("Xata refused {} spooled rows, moving them to rejected file", records.size(), th);
+        return blockingExecutor.executeBlocking((Promise<Void> promise) -> {
+          try {
+            spool.reject(records);
+            promise.complete();
+          } catch (IOException e) {
+            promise.fail(e);
+          }
+        });
+      }
+      return Future.failedFuture(th);
+    });
+  }
+
+  private static boolean isPermanent(int statusCode) {
+    return statusCode >= 400 && statusCode < 500 && statusCode != 408 && statusCode != 429;
+  }
+}
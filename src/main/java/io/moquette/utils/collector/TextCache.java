@@ -0,0 +1,52 @@
+package io.moquette.utils.collector;
+
+/**
+ * Direct mapped cache of the strings decoded from a request, so that the values repeated across
+ * requests (e.g. OS or JVM versions) are looked up from the parser characters instead of being
+ * allocated every time. A collision just replaces the slot. Instances are confined to the event
+ * loop of the owning verticle.
+ */
+public class TextCache {
+
+  private final String[] slots;
+  private final int mask;
+  private final int maxLength;
+
+  /**
+   * @param size number of slots, rounded up to a power of two.
+   * @param maxLength longer values are never cached.
+   */
+  public TextCache(int size, int maxLength) {
+    final int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+    this.slots = new String[capacity];
+    this.mask = capacity - 1;
+    this.maxLength = maxLength;
+  }
+
+  public String get(char[] chars, int offset, int length) {
+    if (length > maxLength) {
+      return new String(chars, offset, length);
+    }
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + chars[offset + i];
+    }
+    final int slot = (hash ^ (hash >>> 16)) & mask;
+    final String cached = slots[slot];
+    if (cached != null && cached.length() == length && matches(cached, chars, offset)) {
+      return cached;
+    }
+    final String value = new String(chars, offset, length);
+    slots[slot] = value;
+    return value;
+  }
+
+  private static boolean matches(String cached, char[] chars, int offset) {
+    for (int i = 0; i < cached.length(); i++) {
+      if (cached.charAt(i) != chars[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
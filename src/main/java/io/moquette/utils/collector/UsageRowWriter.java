@@ -0,0 +1,170 @@
+package io.moquette.utils.collector;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Encodes the Xata row of a notify straight into a {@link Buffer}, without building the row as
+ * a {@link JsonObject} first.
+ * <p>
+ * The same generator encodes every row into a reused scratch array, the only per row allocation
+ * is the exact size copy handed to the batcher. Instances are confined to the event loop of the
+ * owning verticle.
+ */
+public class UsageRowWriter {
+
+  // rows are written one after the other by the same generator, with nothing in between
+  private static final JsonFactory ROWS = new JsonFactory().setRootValueSeparator(null);
+
+  private static final class ScratchOutputStream extends OutputStream {
+    private byte[] bytes = new byte[1024];
+    private int count;
+
+    @Override
+    public void write(int b) {
+      ensureCapacity(1);
+      bytes[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureCapacity(len);
+      System.arraycopy(b, off, bytes, count, len);
+      count += len;
+    }
+
+    private void ensureCapacity(int more) {
+      if (count + more > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, count + more));
+      }
+    }
+  }
+
+  private final ScratchOutputStream out = new ScratchOutputStream();
+  private JsonGenerator json;
+
+  /**
+   * @param location the GeoIP location of the remote IP, or null; the row of an
+   * {@link GeoLocation#UNAVAILABLE} one is marked with geo_pending, its location is written later
+   * by {@link #writeLocation}.
+   * @param suppressedCount notifies suppressed since the previous row of the broker.
+   */
+  public Buffer write(Notify notify, String ip, String startupDate, GeoLocation location, long suppressedCount) {
+    out.count = 0;
+    boolean written = false;
+    try {
+      if (json == null) {
+        json = ROWS.createGenerator(out);
+      }
+      json.writeStartObject();
+      json.writeStringField("IP", ip);
+      json.writeStringField("startup_date", startupDate);
+      writeLocation(location);
+      writeIfPresent(json, "os", notify.os);
+      writeIfPresent(json, "cpu_arch", notify.cpuArch);
+      writeIfPresent(json, "jvm_version", notify.jvmVersion);
+      writeIfPresent(json, "jvm_vendor", notify.jvmVendor);
+      writeIfPresent(json, "remote_ip", notify.remoteIp);
+      writeIfPresent(json, "version", notify.brokerVersion);
+      writeIfPresent(json, "uuid", notify.uuid);
+      if (notify.standalone != null) {
+        json.writeBooleanField("standalone", notify.standalone);
+      }
+      if (notify.maxHeap != null) {
+        json.writeNumberField("max_heap", notify.maxHeap);
+      }
+      if (suppressedCount > 0) {
+        json.writeNumberField("suppressed_count", suppressedCount);
+      }
+      json.writeEndObject();
+      json.flush();
+      written = true;
+    } catch (IOException e) {
+      // the destination is in memory
+      throw new UncheckedIOException(e);
+    } finally {
+      if (!written) {
+        // the generator is left in the middle of a row
+        json = null;
+      }
+    }
+    return Buffer.buffer(out.count).appendBytes(out.bytes, 0, out.count);
+  }
+
+  /**
+   * Encodes the row completing the one stored with geo_pending: the same IP, startup_date, uuid
+   * and version, the location if found, and geo_enrichment.
+   */
+  public Buffer writeLocation(Notify notify, String ip, String startupDate, GeoLocation location) {
+    out.count = 0;
+    boolean written = false;
+    try {
+      if (json == null) {
+        json = ROWS.createGenerator(out);
+      }
+      json.writeStartObject();
+      json.writeStringField("IP", ip);
+      json.writeStringField("startup_date", startupDate);
+      writeLocation(location);
+      writeIfPresent(json, "uuid", notify.uuid);
+      writeIfPresent(json, "version", notify.brokerVersion);
+      json.writeBooleanField("geo_enrichment", true);
+      json.writeEndObject();
+      json.flush();
+      written = true;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      if (!written) {
+        json = null;
+      }
+    }
+    return Buffer.buffer(out.count).appendBytes(out.bytes, 0, out.count);
+  }
+
+  private void writeLocation(GeoLocation location) throws IOException {
+    if (location == null) {
+      return;
+    }
+    if (location.isFound()) {
+      writeNullable(json, "nation", location.nation());
+      writeNullable(json, "region", location.region());
+      writeNullable(json, "city", location.city());
+      writeNullable(json, "latitude", location.latitude());
+      writeNullable(json, "longitude", location.longitude());
+    } else if (!location.isAvailable()) {
+      json.writeBooleanField("geo_pending", true);
+    }
+  }
+
+  private static void writeNullable(JsonGenerator json, String name, String value) throws IOException {
+    json.writeFieldName(name);
+    if (value == null) {
+      json.writeNull();
+    } else {
+      json.writeString(value);
+    }
+  }
+
+  private static void writeNullable(JsonGenerator json, String name, Double value) throws IOException {
+    json.writeFieldName(name);
+    if (value == null) {
+      json.writeNull();
+    } else {
+      json.writeNumber(value);
+    }
+  }
+
+  private static void writeIfPresent(JsonGenerator json, String name, String value) throws IOException {
+    if (value != null) {
+      json.writeStringField(name, value);
+    }
+  }
+}
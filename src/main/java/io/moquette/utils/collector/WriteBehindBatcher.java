@@ -0,0 +1,163 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Collects encoded rows and hands them to a bulk writer once {@code maxRows} rows are queued or
+ * {@code maxDelayMs} elapsed since the first queued row, whichever comes first.
+ * <p>
+ * Each caller gets a future that completes only when the batch containing its row has been
+ * accepted by the bulk writer. A batch failed with an error that concerns some of its rows, e.g. a
+ * row refused by Xata, is split in halves written on their own, down to single rows, so that only
+ * the callers of the refused rows see the failure. Instances are confined to the event loop of the
+ * owning verticle.
+ */
+public class WriteBehindBatcher {
+
+  private final Logger logger = LoggerFactory.getLogger(WriteBehindBatcher.class);
+
+  private final Vertx vertx;
+  private final int maxRows;
+  private final long maxDelayMs;
+  private final Function<List<Buffer>, Future<Void>> bulkWriter;
+  private final Predicate<Throwable> splitOn;
+
+  private List<Buffer> rows = new ArrayList<>();
+  private List<Promise<Void>> waiters = new ArrayList<>();
+  private long timerId = -1;
+
+  private long flushedBatches;
+  private long flushedRows;
+  private long lastFlushLatencyMs;
+  private long maxFlushLatencyMs;
+  private long splitBatches;
+
+  public WriteBehindBatcher(Vertx vertx, int maxRows, long maxDelayMs, Function<List<Buffer>, Future<Void>> bulkWriter) {
+    this(vertx, maxRows, maxDelayMs, bulkWriter, th -> false);
+  }
+
+  /**
+   * @param splitOn true for the failures that can concern only some rows of the batch.
+   */
+  public WriteBehindBatcher(Vertx vertx, int maxRows, long maxDelayMs, Function<List<Buffer>, Future<Void>> bulkWriter,
+                            Predicate<Throwable> splitOn) {
+    if (maxRows < 1) {
+      throw new IllegalArgumentException("maxRows must be positive, was " + maxRows);
+    }
+    this.vertx = vertx;
+    this.maxRows = maxRows;
+    this.maxDelayMs = Math.max(1, maxDelayMs);
+    this.bulkWriter = bulkWriter;
+    this.splitOn = splitOn;
+  }
+
+  public Future<Void> add(Buffer row) {
+    final Promise<Void> promise = Promise.promise();
+    rows.add(row);
+    waiters.add(promise);
+    if (rows.size() >= maxRows) {
+      flush();
+    } else if (timerId == -1) {
+      timerId = vertx.setTimer(maxDelayMs, id -> {
+        timerId = -1;
+        flush();
+      });
+    }
+    return promise.future();
+  }
+
+  public void flush() {
+    if (timerId != -1) {
+      vertx.cancelTimer(timerId);
+      timerId = -1;
+    }
+    if (rows.isEmpty()) {
+      return;
+    }
+    final List<Buffer> batch = rows;
+    final List<Promise<Void>> batchWaiters = waiters;
+    rows = new ArrayList<>(maxRows);
+    waiters = new ArrayList<>(maxRows);
+
+    final long start = System.nanoTime();
+    write(batch, batchWaiters).onComplete(ar -> {
+      final long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      flushedBatches++;
+      flushedRows += batch.size();
+      lastFlushLatencyMs = latencyMs;
+      maxFlushLatencyMs = Math.max(maxFlushLatencyMs, latencyMs);
+      logger.debug("Flushed batch of {} rows in {} ms", batch.size(), latencyMs);
+    });
+  }
+
+  /**
+   * @return completed once all the waiters are.
+   */
+  private Future<Void> write(List<Buffer> batch, List<Promise<Void>> batchWaiters) {
+    return bulkWriter.apply(batch).transform(ar -> {
+      if (ar.failed() && batch.size() > 1 && splitOn.test(ar.cause())) {
+        splitBatches++;
+        final int half = batch.size() / 2;
+        logger.debug("Batch of {} rows refused, writing its halves", batch.size(), ar.cause());
+        final Future<Void> first = write(batch.subList(0, half), batchWaiters.subList(0, half));
+        final Future<Void> second = write(batch.subList(half, batch.size()), batchWaiters.subList(half, batch.size()));
+        return first.transform(done -> second);
+      }
+      for (Promise<Void> waiter : batchWaiters) {
+        if (ar.succeeded()) {
+          waiter.complete();
+        } else {
+          waiter.fail(ar.cause());
+        }
+      }
+      return Future.succeededFuture();
+    });
+  }
+
+  public int maxRows() {
+    return maxRows;
+  }
+
+  public long maxDelayMs() {
+    return maxDelayMs;
+  }
+
+  public int pendingRows() {
+    return rows.size();
+  }
+
+  public long flushedBatches() {
+    return flushedBatches;
+  }
+
+  public long flushedRows() {
+    return flushedRows;
+  }
+
+  public double averageBatchSize() {
+    return flushedBatches == 0 ? 0 : (double) flushedRows / flushedBatches;
+  }
+
+  public long lastFlushLatencyMs() {
+    return lastFlushLatencyMs;
+  }
+
+  public long maxFlushLatencyMs() {
+    return maxFlushLatencyMs;
+  }
+
+  public long splitBatches() {
+    return splitBatches;
+  }
+}
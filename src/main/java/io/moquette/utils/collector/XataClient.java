@@ -0,0 +1,449 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.core.http.impl.HttpUtils;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.ConnectException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static io.vertx.core.http.HttpHeaders.CONTENT_LENGTH;
+
+/**
+ * Non blocking client for the Xata REST API, meant to be created once per verticle instance and
+ * reused by every request, so that connections (and TLS sessions) are kept alive in the pool.
+ * <p>
+ * Bulk inserts go through a resilience layer, confined to the event loop of the verticle:
+ * <ul>
+ *   <li>a circuit breaker fails them fast with {@link CircuitOpenException} while Xata fails most
+ *   of the requests;</li>
+ *   <li>the failures where Xata surely didn't insert the rows (connection refused, 429 and 503)
+ *   are retried with exponential backoff and full jitter;</li>
+ *   <li>optionally a second, hedged, request is sent when the first one is slower than the recent
+ *   latency percentile, the first successful response wins. Bulk inserts aren't idempotent, so
+ *   when both succeed the rows are inserted twice: hedging trades rare duplicates for the tail
+ *   latency and it's disabled by default.</li>
+ * </ul>
+ * Xata can move a workspace to another host with a permanent redirect: the endpoint learned from
+ * a 301 or 308 response is used directly by the following requests, until its TTL expires or a
+ * request to it fails, then the configured base URL is used again.
+ */
+public class XataClient {
+
+  static final String RUNS_BULK_PATH = "/db/moquette_instances:main/tables/runs/bulk";
+
+  private final Logger logger = LoggerFactory.getLogger(XataClient.class);
+
+  private final Vertx vertx;
+  private final WebClient webClient;
+  private final String token;
+  private final Endpoint configured;
+  private final long redirectTtlNanos;
+  // learned from a permanent redirect, null to use the configured one
+  private Endpoint resolved;
+  private long resolvedAt;
+  private final Metrics.Counter redirects;
+  private final Metrics.Counter endpointFallbacks;
+  private final long requestTimeoutMs;
+  private final Metrics metrics;
+  private final Metrics.Histogram requestLatency;
+  private final Metrics.Counter requestErrors;
+  // indexed by HTTP status, registered on first use
+  private final AtomicReferenceArray<Metrics.Counter> responsesByStatus = new AtomicReferenceArray<>(600);
+  private final CircuitBreaker breaker;
+  private final int maxRetries;
+  private final long retryBaseDelayMs;
+  private final long retryMaxDelayMs;
+  private final boolean hedge;
+  private final double hedgePercentile;
+  private final long hedgeMinDelayMs;
+  // latency of the last requests, in nanoseconds, and the percentile computed on them
+  private final long[] latencies = new long[256];
+  private int latencyCount;
+  private long hedgeDelayNanos;
+  private final Metrics.Counter retries;
+  private final Metrics.Counter hedges;
+  private final Metrics.Counter hedgeWins;
+  private final Metrics.Counter shortCircuited;
+
+  /**
+   * Accepted configuration keys:
+   * <ul>
+   *   <li>api_key, workspace_slug, region: identify the Xata workspace</li>
+   *   <li>xata_base_url: overrides the URL derived from workspace and region, e.g. to target a stub</li>
+   *   <li>xata_pool_size: max connections (HTTP/1.1) or max HTTP/2 connections, default 16</li>
+   *   <li>xata_request_timeout_ms: per request timeout, default 10000</li>
+   *   <li>xata_http2: negotiate HTTP/2 with ALPN, falling back to HTTP/1.1, default true</li>
+   *   <li>xata_retry_max: retries of a bulk insert, default 2</li>
+   *   <li>xata_retry_base_delay_ms, xata_retry_max_delay_ms: bounds of the backoff, default 100 and 2000</li>
+   *   <li>xata_hedge_enabled: default false</li>
+   *   <li>xata_hedge_percentile: latency after which the hedged request is sent, default 0.95</li>
+   *   <li>xata_hedge_min_delay_ms: floor of the hedge delay, default 50</li>
+   *   <li>xata_breaker_window: requests tracked by the circuit breaker, default 50</li>
+   *   <li>xata_breaker_min_calls: requests tracked before the breaker can open, default 20</li>
+   *   <li>xata_breaker_failure_ratio: default 0.5</li>
+   *   <li>xata_breaker_open_ms: time the breaker stays open before a probe, default 5000</li>
+   *   <li>xata_redirect_ttl_ms: validity of an endpoint learned from a redirect, default 3600000</li>
+   * </ul>
+   */
+  public XataClient(Vertx vertx, JsonObject config, Metrics metrics) {
+    this.vertx = vertx;
+    this.metrics = metrics;
+    requestLatency = metrics.histogram("collector_xata_request_seconds", "Latency of Xata bulk insert requests", "");
+    requestErrors = metrics.counter("collector_xata_responses_total", "Xata responses by HTTP status",
+      "status=\"none\"");
+    token = config.getString("api_key");
+    final String workspace = config.getString("workspace_slug");
+    final String region = config.getString("region");
+    final URI baseUri = URI.create(config.getString("xata_base_url",
+      "https://" + String.format("%s.%s.xata.sh", workspace, region)));
+    final String host = baseUri.getHost();
+    final boolean ssl = "https".equals(baseUri.getScheme());
+    final int port = baseUri.getPort() != -1 ? baseUri.getPort() : (ssl ? 443 : 80);
+    configured = new Endpoint(host, port, ssl, RUNS_BULK_PATH);
+    redirectTtlNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong("xata_redirect_ttl_ms", 3_600_000L));
+    redirects = metrics.counter("collector_xata_redirects_total", "Redirects followed by Xata requests", "");
+    endpointFallbacks = metrics.counter("collector_xata_endpoint_fallbacks_total",
+      "Endpoints learned from redirects dropped after a failed request", "");
+    requestTimeoutMs = config.getLong("xata_request_timeout_ms", 10_000L);
+    maxRetries = config.getInteger("xata_retry_max", 2);
+    retryBaseDelayMs = config.getLong("xata_retry_base_delay_ms", 100L);
+    retryMaxDelayMs = config.getLong("xata_retry_max_delay_ms", 2000L);
+    hedge = config.getBoolean("xata_hedge_enabled", false);
+    hedgePercentile = config.getDouble("xata_hedge_percentile", 0.95);
+    hedgeMinDelayMs = config.getLong("xata_hedge_min_delay_ms", 50L);
+    // no hedge until there are enough latency samples
+    hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(requestTimeoutMs);
+    breaker = new CircuitBreaker(
+      config.getInteger("xata_breaker_window", 50),
+      config.getInteger("xata_breaker_min_calls", 20),
+      config.getDouble("xata_breaker_failure_ratio", 0.5),
+      config.getLong("xata_breaker_open_ms", 5000L),
+      metrics.level("collector_xata_circuit_open", "Xata clients with the circuit breaker open", ""));
+    final String attemptsHelp = "Xata bulk insert requests sent besides the first one";
+    retries = metrics.counter("collector_xata_extra_requests_total", attemptsHelp, "kind=\"retry\"");
+    hedges = metrics.counter("collector_xata_extra_requests_total", attemptsHelp, "kind=\"hedge\"");
+    hedgeWins = metrics.counter("collector_xata_hedge_wins_total", "Hedged requests answered before the first one", "");
+    shortCircuited = metrics.counter("collector_xata_short_circuited_total",
+      "Xata bulk inserts failed fast by the circuit breaker", "");
+
+    final int poolSize = config.getInteger("xata_pool_size", 16);
+    final boolean http2 = config.getBoolean("xata_http2", true);
+    final WebClientOptions options = new WebClientOptions()
+      .setDefaultHost(host)
+      .setDefaultPort(port)
+      .setSsl(ssl)
+      .setKeepAlive(true)
+      .setMaxPoolSize(poolSize)
+      .setConnectTimeout((int) requestTimeoutMs)
+      .setFollowRedirects(true)
+      .setUserAgent("moquette-collector");
+    if (http2 && ssl) {
+      options.setProtocolVersion(HttpVersion.HTTP_2)
+        .setUseAlpn(true)
+        .setHttp2MaxPoolSize(poolSize);
+    }
+
+    final HttpClient httpClient = vertx.createHttpClient(options);
+    httpClient.redirectHandler(this::followRedirect);
+    webClient = WebClient.wrap(httpClient, options);
+  }
+
+  /**
+   * Inserts the already JSON encoded rows with a single request to the bulk endpoint, retried or
+   * hedged as configured.
+   */
+  public Future<Void> bulkInsert(List<Buffer> rows) {
+    final Buffer body = Buffer.buffer(rows.size() * 256 + 16).appendString("{\"records\":[");
+    for (int i = 0; i < rows.size(); i++) {
+      if (i > 0) {
+        body.appendByte((byte) ',');
+      }
+      body.appendBuffer(rows.get(i));
+    }
+    body.appendString("]}");
+    return attempt(body, rows.size(), 0);
+  }
+
+  private Future<Void> attempt(Buffer body, int rows, int retry) {
+    final long permit = breaker.tryAcquire();
+    if (permit == CircuitBreaker.REJECTED) {
+      shortCircuited.increment();
+      return Future.failedFuture(new CircuitOpenException("Xata"));
+    }
+    return hedged(body, rows)
+      .onComplete(ar -> breaker.record(permit, ar.failed() && isFailure(ar.cause())))
+      .recover(th -> {
+        if (retry >= maxRetries || !isRetryable(th)) {
+          return Future.failedFuture(th);
+        }
+        retries.increment();
+        final long maxDelayMs = Math.min(retryMaxDelayMs, retryBaseDelayMs << Math.min(retry, 20));
+        final Promise<Void> promise = Promise.promise();
+        vertx.setTimer(1 + ThreadLocalRandom.current().nextLong(maxDelayMs),
+          id -> attempt(body, rows, retry + 1).onComplete(promise));
+        return promise.future();
+      });
+  }
+
+  /**
+   * Sends the request and, if hedging is enabled and no response arrives within the hedge delay,
+   * a second one. Fails only if all the requests sent fail.
+   */
+  private Future<Void> hedged(Buffer body, int rows) {
+    if (!hedge) {
+      return send(body, rows);
+    }
+    final Promise<Void> promise = Promise.promise();
+    final int[] pending = {1};
+    final boolean[] hedgeSent = {false};
+    final Handler<AsyncResult<Void>> outcome = ar -> {
+      pending[0]--;
+      if (ar.succeeded()) {
+        promise.tryComplete();
+      } else if (pending[0] == 0) {
+        promise.tryFail(ar.cause());
+      }
+    };
+    final long timerId = vertx.setTimer(Math.max(1, TimeUnit.NANOSECONDS.toMillis(hedgeDelayNanos)), id -> {
+      hedges.increment();
+      hedgeSent[0] = true;
+      pending[0]++;
+      send(body, rows).onComplete(ar -> {
+        if (ar.succeeded() && !promise.future().isComplete()) {
+          hedgeWins.increment();
+        }
+        outcome.handle(ar);
+      });
+    });
+    send(body, rows).onComplete(ar -> {
+      if (!hedgeSent[0]) {
+        vertx.cancelTimer(timerId);
+      }
+      outcome.handle(ar);
+    });
+    return promise.future();
+  }
+
+  private Future<Void> send(Buffer body, int rows) {
+    final Endpoint endpoint = endpoint();
+    final long start = System.nanoTime();
+    return webClient
+      .post(endpoint.port, endpoint.host, endpoint.uri)
+      .ssl(endpoint.ssl)
+      .timeout(requestTimeoutMs)
+      .bearerTokenAuthentication(token)
+      .putHeader(HttpHeaders.CONTENT_TYPE.toString(), "application/json")
+      .sendBuffer(body)
+      .onComplete(ar -> {
+        final long latency = System.nanoTime() - start;
+        requestLatency.record(latency);
+        recordLatency(latency);
+        if (ar.succeeded()) {
+          responses(ar.result().statusCode()).increment();
+        } else {
+          requestErrors.increment();
+        }
+        final boolean endpointFailed = ar.failed() || ar.result().statusCode() >= 500 || ar.result().statusCode() == 404;
+        if (endpoint != configured && endpointFailed && resolved == endpoint) {
+          logger.info("Request to {} failed, back to the configured Xata endpoint", endpoint);
+          endpointFallbacks.increment();
+          resolved = null;
+        }
+      })
+      .flatMap(resp -> {
+        if (resp.statusCode() != 200 && resp.statusCode() != 201) {
+          return Future.failedFuture(new XataStatusException(resp.statusCode(), resp.bodyAsString()));
+        }
+        logger.debug("xata bulk insert status={} rows={}", resp.statusCode(), rows);
+        return Future.succeededFuture();
+      });
+  }
+
+  private void recordLatency(long latencyNanos) {
+    latencies[latencyCount++ % latencies.length] = latencyNanos;
+    if (latencyCount % 32 == 0 && latencyCount >= latencies.length / 4) {
+      final long[] sorted = Arrays.copyOf(latencies, Math.min(latencyCount, latencies.length));
+      Arrays.sort(sorted);
+      hedgeDelayNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(hedgeMinDelayMs),
+        sorted[(int) Math.min(sorted.length - 1, sorted.length * hedgePercentile)]);
+    }
+  }
+
+  /**
+   * @return true if the failure says Xata is unhealthy, rather than refusing that request.
+   */
+  private static boolean isFailure(Throwable th) {
+    if (th instanceof XataStatusException) {
+      final int statusCode = ((XataStatusException) th).statusCode();
+      return statusCode >= 500 || statusCode == 408 || statusCode == 429;
+    }
+    return true;
+  }
+
+  /**
+   * @return true if Xata refused the request for the content of some rows, e.g. a value that
+   * doesn't fit its column: the bulk insert fails as a whole, the other rows can be sent again.
+   */
+  public static boolean isRowRejection(Throwable th) {
+    return th instanceof XataStatusException && ((XataStatusException) th).statusCode() == 400;
+  }
+
+  /**
+   * @return true if Xata surely didn't insert the rows, so that the request can be repeated.
+   */
+  private static boolean isRetryable(Throwable th) {
+    if (th instanceof XataStatusException) {
+      final int statusCode = ((XataStatusException) th).statusCode();
+      return statusCode == 429 || statusCode == 503;
+    }
+    for (Throwable cause = th; cause != null; cause = cause.getCause()) {
+      if (cause instanceof ConnectException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Endpoint endpoint() {
+    if (resolved != null && System.nanoTime() - resolvedAt > redirectTtlNanos) {
+      resolved = null;
+    }
+    return resolved != null ? resolved : configured;
+  }
+
+  private Future<RequestOptions> followRedirect(HttpClientResponse resp) {
+    final Future<RequestOptions> redirect = reconfigureRedirect(resp);
+    if (redirect == null || redirect.failed()) {
+      return redirect;
+    }
+    redirects.increment();
+    final int statusCode = resp.statusCode();
+    final RequestOptions options = redirect.result();
+    if ((statusCode == 301 || statusCode == 308) && options.getMethod() == HttpMethod.POST) {
+      // the last hop of a chain is the final endpoint
+      resolved = new Endpoint(options.getHost(), options.getPort(), options.isSsl(), options.getURI());
+      resolvedAt = System.nanoTime();
+      logger.info("Xata endpoint moved to {}", resolved);
+    }
+    return redirect;
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .put("endpoint", endpoint().toString())
+      .put("circuit_breaker", breaker.stats())
+      .put("hedge_enabled", hedge)
+      .put("hedge_delay_ms", TimeUnit.NANOSECONDS.toMillis(hedgeDelayNanos))
+      .put("max_retries", maxRetries);
+  }
+
+  private Metrics.Counter responses(int statusCode) {
+    if (statusCode < 0 || statusCode >= responsesByStatus.length()) {
+      return requestErrors;
+    }
+    Metrics.Counter counter = responsesByStatus.get(statusCode);
+    if (counter == null) {
+      counter = metrics.counter("collector_xata_responses_total", "Xata responses by HTTP status",
+        "status=\"" + statusCode + "\"");
+      responsesByStatus.set(statusCode, counter);
+    }
+    return counter;
+  }
+
+  public void close() {
+    webClient.close();
+  }
+
+  private static final class Endpoint {
+    private final String host;
+    private final int port;
+    private final boolean ssl;
+    private final String uri;
+
+    Endpoint(String host, int port, boolean ssl, String uri) {
+      this.host = host;
+      this.port = port;
+      this.ssl = ssl;
+      this.uri = uri;
+    }
+
+    @Override
+    public String toString() {
+      return (ssl ? "https://" : "http://") + host + ":" + port + uri;
+    }
+  }
+
+  private static Future<RequestOptions> reconfigureRedirect(HttpClientResponse resp) {
+    // copied from Vert core DEFAULT_HANDLER just removing the skip of handing in case of not be GET or HEAD
+    // https://github.com/eclipse-vertx/vert.x/blob/4.2.1/src/main/java/io/vertx/core/http/impl/HttpClientImpl.java#L74-L76
+    try {
+      int statusCode = resp.statusCode();
+      String location = resp.getHeader(HttpHeaders.LOCATION);
+      if (location != null && (statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307 || statusCode == 308)) {
+        HttpMethod m = resp.request().getMethod();
+        if (statusCode == 303) {
+          m = HttpMethod.GET;
+        }
+        URI uri = HttpUtils.resolveURIReference(resp.request().absoluteURI(), location);
+        boolean ssl;
+        int port = uri.getPort();
+        String protocol = uri.getScheme();
+        char chend = protocol.charAt(protocol.length() - 1);
+        if (chend == 'p') {
+          ssl = false;
+          if (port == -1) {
+            port = 80;
+          }
+        } else if (chend == 's') {
+          ssl = true;
+          if (port == -1) {
+            port = 443;
+          }
+        } else {
+          return null;
+        }
+        String requestURI = uri.getPath();
+        if (requestURI == null || requestURI.isEmpty()) {
+          requestURI = "/";
+        }
+        String query = uri.getQuery();
+        if (query != null) {
+          requestURI += "?" + query;
+        }
+        RequestOptions options = new RequestOptions();
+        options.setMethod(m);
+        options.setHost(uri.getHost());
+        options.setPort(port);
+        options.setSsl(ssl);
+        options.setURI(requestURI);
+        options.setHeaders(resp.request().headers());
+        options.removeHeader(CONTENT_LENGTH);
+        return Future.succeededFuture(options);
+      }
+      return null;
+    } catch (Exception e) {
+      return Future.failedFuture(e);
+    }
+  }
+}
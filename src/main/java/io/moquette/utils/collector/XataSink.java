@@ -0,0 +1,59 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Collections;
+
+/**
+ * Writes the rows to Xata in bulk inserts of up to batch_max_rows rows, sent at most
+ * batch_max_delay_ms after the first queued row. A bulk insert refused with 400 is split, so that
+ * only the notifies of the refused rows fail.
+ */
+public class XataSink implements Sink {
+
+  private final WriteBehindBatcher batcher;
+  private final XataClient xataClient;
+
+  public XataSink(Vertx vertx, JsonObject config, XataClient xataClient) {
+    this.xataClient = xataClient;
+    batcher = new WriteBehindBatcher(vertx, config.getInteger("batch_max_rows", 50),
+      config.getLong("batch_max_delay_ms", 200L), xataClient::bulkInsert, XataClient::isRowRejection);
+  }
+
+  @Override
+  public String name() {
+    return "xata";
+  }
+
+  @Override
+  public Future<Void> write(Buffer row) {
+    return batcher.add(row);
+  }
+
+  @Override
+  public Future<Void> writeAlone(Buffer row) {
+    return xataClient.bulkInsert(Collections.singletonList(row));
+  }
+
+  @Override
+  public JsonObject stats() {
+    return batcherStats(batcher)
+      .put("client", xataClient.stats());
+  }
+
+  static JsonObject batcherStats(WriteBehindBatcher batcher) {
+    return new JsonObject()
+      .put("max_rows", batcher.maxRows())
+      .put("max_delay_ms", batcher.maxDelayMs())
+      .put("pending_rows", batcher.pendingRows())
+      .put("flushed_batches", batcher.flushedBatches())
+      .put("flushed_rows", batcher.flushedRows())
+      .put("average_batch_size", batcher.averageBatchSize())
+      .put("last_flush_latency_ms", batcher.lastFlushLatencyMs())
+      .put("max_flush_latency_ms", batcher.maxFlushLatencyMs())
+      .put("split_batches", batcher.splitBatches());
+  }
+}
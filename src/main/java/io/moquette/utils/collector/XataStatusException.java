@@ -0,0 +1,20 @@
+package io.moquette.utils.collector;
+
+/**
+ * Signals that Xata answered with a status code different from the expected one.
+ */
+public class XataStatusException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int statusCode;
+
+  public XataStatusException(int statusCode, String message) {
+    super("Unexpected Xata status code " + statusCode + ": " + message);
+    this.statusCode = statusCode;
+  }
+
+  public int statusCode() {
+    return statusCode;
+  }
+}
@@ -0,0 +1,123 @@
+package io.moquette.utils.collector;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdmissionLimiterTest {
+
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+  // 100 ms target latency, halved on every late request
+  private final AdmissionLimiter limiter = new AdmissionLimiter(4, 2, 8, 100, 0.5, 2.0);
+
+  private void acquire(int requests) {
+    for (int i = 0; i < requests; i++) {
+      assertTrue(limiter.tryAcquire());
+    }
+  }
+
+  @Test
+  void shedsTheRequestsOverTheLimit() {
+    acquire(4);
+    assertFalse(limiter.tryAcquire());
+    assertEquals(1, limiter.shed());
+
+    limiter.cancel();
+    assertEquals(3, limiter.inFlight());
+    assertTrue(limiter.tryAcquire());
+    // a cancelled request doesn't move the limit
+    assertEquals(4, limiter.limit());
+  }
+
+  @Test
+  void growsByOneRequestInSlowStart() {
+    acquire(4);
+    limiter.release(FAST, false);
+    assertEquals(5, limiter.limit());
+    limiter.release(FAST, false);
+    assertEquals(6, limiter.limit());
+  }
+
+  @Test
+  void growsOnlyWhenTheLimitIsInUse() {
+    acquire(1);
+    limiter.release(FAST, false);
+    assertEquals(4, limiter.limit());
+  }
+
+  @Test
+  void neverGrowsOverTheMaximum() {
+    for (int i = 0; i < 20; i++) {
+      acquire(limiter.limit());
+      for (int j = limiter.inFlight(); j > 0; j--) {
+        limiter.release(FAST, false);
+      }
+    }
+    assertEquals(8, limiter.limit());
+  }
+
+  @Test
+  void backsOffOncePerIntervalOnLateRequests() {
+    acquire(4);
+    // the no-load latency
+    limiter.release(FAST, false);
+    assertEquals(5, limiter.limit());
+    limiter.release(SLOW, false);
+    assertEquals(2, limiter.limit());
+    // the other requests late because of the same congestion
+    limiter.release(SLOW, false);
+    assertEquals(2, limiter.limit());
+  }
+
+  @Test
+  void backsOffOnFailuresDownToTheMinimum() throws InterruptedException {
+    acquire(4);
+    limiter.release(FAST, true);
+    assertEquals(2, limiter.limit());
+    Thread.sleep(110);
+    limiter.release(FAST, true);
+    assertEquals(2, limiter.limit());
+  }
+
+  @Test
+  void growsAdditivelyAfterTheFirstBackoff() {
+    final AdmissionLimiter wide = new AdmissionLimiter(8, 2, 100, 100, 0.5, 2.0);
+    for (int i = 0; i < 8; i++) {
+      wide.tryAcquire();
+    }
+    wide.release(FAST, true);
+    assertEquals(4, wide.limit());
+    // a limit worth of requests completed in time adds one
+    for (int round = 0; round < 3; round++) {
+      while (wide.tryAcquire()) {
+        // fills the limit
+      }
+      for (int j = wide.inFlight(); j > 0; j--) {
+        wide.release(FAST, false);
+      }
+    }
+    assertTrue(wide.limit() > 4 && wide.limit() <= 6, "limit " + wide.limit());
+  }
+
+  @Test
+  void toleratesLatencyCloseToTheNoLoadOne() throws InterruptedException {
+    // with a 1 ms target, the threshold follows the measured no-load latency
+    final AdmissionLimiter tight = new AdmissionLimiter(4, 2, 8, 1, 0.5, 2.0);
+    for (int i = 0; i < 4; i++) {
+      tight.tryAcquire();
+    }
+    tight.release(TimeUnit.MILLISECONDS.toNanos(10), false);
+    tight.release(TimeUnit.MILLISECONDS.toNanos(15), false);
+    assertEquals(6, tight.limit());
+    // decreases are at most one per threshold, 20 ms
+    Thread.sleep(25);
+    tight.release(TimeUnit.MILLISECONDS.toNanos(30), false);
+    assertEquals(3, tight.limit());
+  }
+}
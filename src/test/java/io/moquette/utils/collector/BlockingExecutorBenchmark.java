@@ -0,0 +1,140 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the blocking executors when a slow blocking dependency shares them with the GeoIP
+ * worker lookups: a constant rate of blocking Xata sends (a sleep of the Xata latency) and of
+ * short lookups (few microseconds of CPU) is offered for some seconds, at 1x, 10x and 100x the
+ * base Xata latency, and the lookup latency includes the wait for a thread.
+ * <p>
+ * Modes: shared, both on the Vert.x worker pool; isolated, each on its own pool (20 threads for
+ * the sends, 4 for the lookups); virtual, a virtual thread per task.
+ * <p>
+ * Usage: {@code BlockingExecutorBenchmark [base latency ms] [sends/s] [lookups/s] [seconds]}; the
+ * virtual mode needs JDK 21, otherwise it's skipped. No JDK 21 results have been recorded yet, see
+ * {@link BlockingExecutor}.
+ */
+public class BlockingExecutorBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    final long baseLatencyMs = args.length > 0 ? Long.parseLong(args[0]) : 20L;
+    final int sendsPerSecond = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    final int lookupsPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+    final int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+    for (String mode : new String[]{"shared", "isolated", "virtual"}) {
+      if ("virtual".equals(mode) && BlockingExecutor.virtualThreads() == null) {
+        System.out.println("mode=virtual skipped, JDK " + System.getProperty("java.version"));
+        continue;
+      }
+      for (int multiplier : new int[]{1, 10, 100}) {
+        run(mode, baseLatencyMs * multiplier, multiplier, sendsPerSecond, lookupsPerSecond, seconds);
+      }
+    }
+  }
+
+  private static void run(String mode, long latencyMs, int multiplier, int sendsPerSecond, int lookupsPerSecond,
+                          int seconds) throws Exception {
+    final Vertx vertx = Vertx.vertx();
+    final boolean isolated = "isolated".equals(mode);
+    final JsonObject config = new JsonObject()
+      .put("blocking_executor", "virtual".equals(mode) ? "virtual" : "worker")
+      .put("xata_pool_size", isolated ? 20 : 0)
+      .put("geoip_pool_size", isolated ? 4 : 0)
+      // the latency of every task is measured, none is rejected
+      .put("xata_queue_max", 0)
+      .put("geoip_queue_max", 0);
+    final Metrics metrics = new Metrics();
+    final long[] lookupLatencies = new long[lookupsPerSecond * seconds];
+    final AtomicInteger lookupsDone = new AtomicInteger();
+    final AtomicLong sendsDone = new AtomicLong();
+    final long[] sendLatencies = new long[sendsPerSecond * seconds];
+    final AtomicInteger sendIndex = new AtomicInteger();
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    // lets the pending sleeps end once the measure is over
+    final CountDownLatch stop = new CountDownLatch(1);
+    final CountDownLatch submitted = new CountDownLatch(1);
+
+    vertx.runOnContext(v -> {
+      final BlockingExecutor xata = BlockingExecutor.create(vertx, config, metrics, "xata", 0);
+      final BlockingExecutor geoip = BlockingExecutor.create(vertx, config, metrics, "geoip", 0);
+      final long start = System.nanoTime();
+      final int[] issued = {0, 0};
+      vertx.setPeriodic(1, id -> {
+        final long now = System.nanoTime();
+        if (now >= deadline) {
+          vertx.cancelTimer(id);
+          submitted.countDown();
+          return;
+        }
+        final double elapsedSec = (now - start) / 1e9;
+        while (issued[0] < Math.min(sendLatencies.length, (long) (elapsedSec * sendsPerSecond))) {
+          issued[0]++;
+          final long queuedAt = System.nanoTime();
+          xata.executeBlocking((Promise<Void> promise) -> {
+            try {
+              stop.await(latencyMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            promise.complete();
+          }, false).onSuccess(done -> {
+            if (System.nanoTime() < deadline) {
+              final int index = sendIndex.getAndIncrement();
+              sendLatencies[index] = System.nanoTime() - queuedAt;
+              sendsDone.incrementAndGet();
+            }
+          });
+        }
+        while (issued[1] < Math.min(lookupLatencies.length, (long) (elapsedSec * lookupsPerSecond))) {
+          issued[1]++;
+          final long queuedAt = System.nanoTime();
+          geoip.executeBlocking((Promise<Long> promise) -> promise.complete(spin(20_000)), false)
+            .onSuccess(done -> {
+              if (System.nanoTime() < deadline) {
+                lookupLatencies[lookupsDone.getAndIncrement()] = System.nanoTime() - queuedAt;
+              }
+            });
+        }
+      });
+    });
+
+    submitted.await();
+    stop.countDown();
+    final long[] lookups = Arrays.copyOf(lookupLatencies, lookupsDone.get());
+    final long[] sends = Arrays.copyOf(sendLatencies, sendIndex.get());
+    Arrays.sort(lookups);
+    Arrays.sort(sends);
+    System.out.printf("mode=%-8s xata=%3dx (%5d ms) sends=%6.0f/s p99=%7.0f ms lookups=%6.0f/s p50=%8.2f ms p99=%8.2f ms%n",
+      mode, multiplier, latencyMs, sendsDone.get() / (double) seconds, percentile(sends, 0.99) / 1e6,
+      lookups.length / (double) seconds, percentile(lookups, 0.50) / 1e6, percentile(lookups, 0.99) / 1e6);
+    await(vertx.close());
+  }
+
+  private static long spin(long nanos) {
+    final long start = System.nanoTime();
+    long iterations = 0;
+    while (System.nanoTime() - start < nanos) {
+      iterations++;
+    }
+    return iterations;
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+  }
+
+  private static <T> T await(Future<T> future) throws Exception {
+    return future.toCompletionStage().toCompletableFuture().get();
+  }
+}
@@ -0,0 +1,97 @@
+package io.moquette.utils.collector;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class CircuitBreakerTest {
+
+  private static final long OPEN_MS = 20;
+
+  private final Metrics.Level open = new Metrics().level("test_circuit_open", "Breakers open", "");
+  // opens when at least 2 of the last 4 calls failed
+  private final CircuitBreaker breaker = new CircuitBreaker(4, 4, 0.5, OPEN_MS, open);
+
+  private void call(boolean failed) {
+    final long permit = breaker.tryAcquire();
+    assertNotEquals(CircuitBreaker.REJECTED, permit);
+    breaker.record(permit, failed);
+  }
+
+  private void trip() {
+    call(false);
+    call(false);
+    call(true);
+    call(true);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+  }
+
+  @Test
+  void staysClosedBelowTheMinimumCalls() {
+    call(true);
+    call(true);
+    call(true);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+  }
+
+  @Test
+  void staysClosedBelowTheFailureRatio() {
+    for (int i = 0; i < 10; i++) {
+      call(i % 4 == 0);
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+  }
+
+  @Test
+  void refusesTheCallsWhileOpen() {
+    trip();
+    assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+    assertEquals(1, open.value());
+    assertEquals(1L, breaker.stats().getLong("rejected"));
+  }
+
+  @Test
+  void closesWhenTheProbeSucceeds() throws InterruptedException {
+    trip();
+    Thread.sleep(OPEN_MS + 5);
+    final long probe = breaker.tryAcquire();
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+    assertEquals(0, open.value());
+    // a single probe at a time
+    assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+
+    breaker.record(probe, false);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    // the window starts empty
+    call(true);
+    call(true);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+  }
+
+  @Test
+  void opensAgainWhenTheProbeFails() throws InterruptedException {
+    trip();
+    Thread.sleep(OPEN_MS + 5);
+    breaker.record(breaker.tryAcquire(), true);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+    assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+    assertEquals(1, open.value());
+  }
+
+  @Test
+  void ignoresCallsStartedInAnEarlierGeneration() throws InterruptedException {
+    // started while closed, completes while half open
+    final long slow = breaker.tryAcquire();
+    trip();
+    Thread.sleep(OPEN_MS + 5);
+    final long probe = breaker.tryAcquire();
+
+    breaker.record(slow, false);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+    assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+
+    breaker.record(probe, true);
+    assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+  }
+}
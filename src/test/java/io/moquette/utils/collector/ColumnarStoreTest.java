@@ -0,0 +1,127 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ColumnarStoreTest {
+
+  private static final List<JsonObject> ROWS = Arrays.asList(
+    new JsonObject().put("uuid", "a").put("os", "Linux").put("max_heap", 4294967296L).put("standalone", true)
+      .put("latitude", 46.12),
+    // without some columns, and with a null one
+    new JsonObject().put("uuid", "b").put("os", "Linux").putNull("max_heap").put("standalone", false),
+    // the same column with another type
+    new JsonObject().put("uuid", "c").put("os", "Windows").put("max_heap", "unknown").put("latitude", -1L)
+      .put("nation", "Italia è"));
+
+  @TempDir
+  Path directory;
+
+  private static List<Buffer> buffers(List<JsonObject> rows) {
+    final List<Buffer> buffers = new ArrayList<>();
+    for (JsonObject row : rows) {
+      buffers.add(row.toBuffer());
+    }
+    return buffers;
+  }
+
+  private static List<JsonObject> readAll(Path directory) throws IOException {
+    final List<JsonObject> rows = new ArrayList<>();
+    for (Path path : ColumnarStore.files(directory)) {
+      ColumnarStore.read(path, rows::add);
+    }
+    return rows;
+  }
+
+  private static JsonObject withoutNulls(JsonObject row) {
+    final JsonObject copy = row.copy();
+    copy.getMap().values().removeIf(v -> v == null);
+    return copy;
+  }
+
+  private Path writeTwoBlocks() throws IOException {
+    final ColumnarStore store = new ColumnarStore(directory, 1024 * 1024, false);
+    store.append(buffers(ROWS));
+    store.append(buffers(ROWS.subList(0, 1)));
+    store.close();
+    return ColumnarStore.files(directory).get(0);
+  }
+
+  @Test
+  void readsTheRowsBack() throws IOException {
+    writeTwoBlocks();
+    final List<JsonObject> rows = readAll(directory);
+    assertEquals(4, rows.size());
+    for (int i = 0; i < ROWS.size(); i++) {
+      assertEquals(withoutNulls(ROWS.get(i)), rows.get(i));
+    }
+    assertEquals(ROWS.get(0), rows.get(3));
+  }
+
+  @Test
+  void startsANewFileWhenFull() throws IOException {
+    final ColumnarStore store = new ColumnarStore(directory, 1, false);
+    store.append(buffers(ROWS));
+    store.append(buffers(ROWS));
+    store.close();
+    assertEquals(2, ColumnarStore.files(directory).size());
+    assertEquals(2, store.blocks());
+    assertEquals(6, readAll(directory).size());
+
+    // never appends to the files of a previous run
+    final ColumnarStore reopened = new ColumnarStore(directory, 1024 * 1024, false);
+    reopened.append(buffers(ROWS));
+    reopened.close();
+    assertEquals(3, ColumnarStore.files(directory).size());
+  }
+
+  @Test
+  void refusesNestedValues() {
+    final List<Buffer> rows = buffers(Arrays.asList(new JsonObject().put("uuid", "a").put("nested", new JsonObject())));
+    assertThrows(IOException.class, () -> ColumnarStore.encode(rows));
+  }
+
+  @Test
+  void stopsAtATornBlock() throws IOException {
+    final Path file = writeTwoBlocks();
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+    assertEquals(3, readAll(directory).size());
+  }
+
+  @Test
+  void stopsAtACorruptedBlock() throws IOException {
+    final Path file = writeTwoBlocks();
+    final byte[] content = Files.readAllBytes(file);
+    content[content.length - 6] ^= 0x55;
+    Files.write(file, content);
+    assertEquals(3, readAll(directory).size());
+  }
+
+  @Test
+  void stopsAtAnOutOfBoundsLength() throws IOException {
+    final Path file = writeTwoBlocks();
+    final int firstBlock = ColumnarStore.encode(buffers(ROWS)).length;
+    for (int length : new int[] {-1, Integer.MAX_VALUE, ColumnarStore.MAX_BLOCK_BYTES - 1}) {
+      try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+        raf.seek(firstBlock + 4);
+        raf.writeInt(length);
+      }
+      assertEquals(3, readAll(directory).size(), "length " + length);
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package io.moquette.utils.collector;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DuplicateFilterTest {
+
+  private static final long WINDOW_MS = 50;
+
+  private final DuplicateFilter filter = new DuplicateFilter(WINDOW_MS, 100);
+
+  private long check(String uuid) {
+    return filter.check(uuid, "0.16", "11", "10.0.0.1");
+  }
+
+  private static void waitWindow() throws InterruptedException {
+    Thread.sleep(WINDOW_MS + 10);
+  }
+
+  @Test
+  void suppressesTheRepeatsWithinTheWindow() {
+    assertEquals(0, check("a"));
+    assertEquals(DuplicateFilter.DUPLICATE, check("a"));
+    assertEquals(DuplicateFilter.DUPLICATE, check("a"));
+    assertEquals(0, check("b"));
+    assertEquals(2, filter.suppressed());
+  }
+
+  @Test
+  void startsANewWindowOnAnotherVersion() {
+    check("a");
+    check("a");
+    assertEquals(1, filter.check("a", "0.17", "11", "10.0.0.1"));
+    assertEquals(DuplicateFilter.DUPLICATE, filter.check("a", "0.17", "11", "10.0.0.1"));
+  }
+
+  @Test
+  void forwardsTheCountWithTheNextWindow() throws InterruptedException {
+    check("a");
+    check("a");
+    check("a");
+    waitWindow();
+    assertEquals(2, check("a"));
+    assertEquals(DuplicateFilter.DUPLICATE, check("a"));
+  }
+
+  @Test
+  void reportsTheWindowsOverWithSuppressedNotifies() throws InterruptedException {
+    check("a");
+    check("a");
+    check("b");
+    waitWindow();
+    final List<DuplicateFilter.Aggregate> aggregates = filter.expired();
+    assertEquals(1, aggregates.size());
+    assertEquals("a", aggregates.get(0).uuid);
+    assertEquals("10.0.0.1", aggregates.get(0).remoteIp);
+    assertEquals(1, aggregates.get(0).suppressed);
+    assertEquals(0, filter.size());
+  }
+
+  @Test
+  void keepsTheLiveWindows() {
+    check("a");
+    check("a");
+    assertTrue(filter.expired().isEmpty());
+    assertEquals(1, filter.size());
+  }
+
+  @Test
+  void reportsTheEvictedWindows() {
+    final DuplicateFilter small = new DuplicateFilter(60_000L, 2);
+    small.check("a", "0.16", "11", "10.0.0.1");
+    small.check("a", "0.16", "11", "10.0.0.1");
+    small.check("b", "0.16", "11", "10.0.0.1");
+    small.check("c", "0.16", "11", "10.0.0.1");
+    final List<DuplicateFilter.Aggregate> aggregates = small.expired();
+    assertEquals(1, aggregates.size());
+    assertEquals("a", aggregates.get(0).uuid);
+    assertEquals(2, small.size());
+  }
+
+  @Test
+  void forgetsTheWindowOfAFailedWrite() {
+    check("a");
+    filter.forget("a", "0.16", "11", 0);
+    // the retry of the failed notify isn't suppressed
+    assertEquals(0, check("a"));
+    assertTrue(filter.expired().isEmpty());
+  }
+
+  @Test
+  void reportsTheCountsOfAForgottenWindowRightAway() {
+    check("b");
+    // carries 3 notifies suppressed in its previous window
+    check("a");
+    check("a");
+    filter.forget("a", "0.16", "11", 3);
+
+    final List<DuplicateFilter.Aggregate> aggregates = filter.expired();
+    assertEquals(1, aggregates.size());
+    assertEquals("a", aggregates.get(0).uuid);
+    assertEquals(4, aggregates.get(0).suppressed);
+    assertEquals(0, check("a"));
+  }
+
+  @Test
+  void ignoresForgetOfAnotherVersion() {
+    check("a");
+    filter.forget("a", "0.17", "11", 0);
+    assertEquals(DuplicateFilter.DUPLICATE, check("a"));
+  }
+
+  @Test
+  void countsTheRefusedRepeats() throws InterruptedException {
+    assertFalse(filter.refused("a", "0.16", "11"));
+    check("a");
+    assertTrue(filter.refused("a", "0.16", "11"));
+    assertFalse(filter.refused("a", "0.17", "11"));
+    waitWindow();
+    assertFalse(filter.refused("a", "0.16", "11"));
+    assertEquals(1, check("a"));
+  }
+
+  @Test
+  void isDisabledWithoutWindow() {
+    final DuplicateFilter disabled = new DuplicateFilter(0, 100);
+    assertEquals(0, disabled.check("a", "0.16", "11", "10.0.0.1"));
+    assertEquals(0, disabled.check("a", "0.16", "11", "10.0.0.1"));
+    assertEquals(0, disabled.size());
+  }
+}
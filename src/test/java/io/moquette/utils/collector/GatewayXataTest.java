@@ -0,0 +1,285 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.HttpResponse;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Status codes of POST /api/v1/notify and /api/v1/notify/batch, with the gateway writing to a {@link XataStub} and the GeoIP
+ * resolver replaced by a fixed reply.
+ */
+@ExtendWith(VertxExtension.class)
+class GatewayXataTest {
+
+  private static final GeoLocation TRENTO = GeoLocation.of("Italy", "Trentino-Alto Adige", "Trento", 46.12, 11.18);
+  private static final JsonObject NOTIFY = new JsonObject()
+    .put("remote_ip", "93.184.216.34")
+    .put("os", "Linux")
+    .put("jvm_version", "11.0.12")
+    .put("broker_version", "0.16")
+    .put("uuid", "6a1e7a0e-4b1c-4e5f-9d2a-3c8b7f0e1d2c")
+    .put("standalone", true)
+    .put("max_heap", "4294967296");
+
+  private XataStub stub;
+  private WebClient client;
+  // the answer of the GeoIP lookups
+  private volatile GeoLocation location;
+  // the addresses of every batch lookup
+  private final List<String> batchLookups = new ArrayList<>();
+
+  static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  /**
+   * Deploys a stub with the configuration and a gateway writing to it, answering the GeoIP lookups
+   * with the location.
+   */
+  private Future<Void> start(Vertx vertx, GeoLocation location, JsonObject stubConfig, JsonObject gatewayConfig)
+    throws IOException {
+    GeoLocation.registerCodec(vertx);
+    GeoLocationBatch.registerCodec(vertx);
+    this.location = location;
+    vertx.eventBus().consumer(GeoIPVerticle.RESOLVER_BUS_ADDRESS, msg -> msg.reply(this.location));
+    vertx.eventBus().<JsonArray>consumer(GeoIPVerticle.BATCH_RESOLVER_BUS_ADDRESS, msg -> {
+      final List<String> ips = msg.body().getList();
+      batchLookups.addAll(ips);
+      msg.reply(new GeoLocationBatch(new GeoLocation[] {this.location}, new int[ips.size()]));
+    });
+    final int stubPort = freePort();
+    final int gatewayPort = freePort();
+    final JsonObject config = new JsonObject()
+      .put("api_key", "test")
+      .put("xata_base_url", "http://localhost:" + stubPort)
+      .put("http_port", gatewayPort)
+      .put("batch_max_delay_ms", 1L)
+      .mergeIn(gatewayConfig);
+    client = WebClient.create(vertx, new WebClientOptions()
+      .setDefaultHost("localhost")
+      .setDefaultPort(gatewayPort));
+    stub = new XataStub();
+    final KeyedRateLimiter unlimited = new KeyedRateLimiter(1, 0, 0);
+    return vertx.deployVerticle(stub, new DeploymentOptions().setConfig(stubConfig.copy().put("stub_port", stubPort)))
+      .compose(id -> vertx.deployVerticle(new GatewayXata(null, null, new Metrics(),
+        AdmissionLimiter.fromConfig(config), unlimited, unlimited, new DuplicateFilter(0, 0), new Rollup(1000)),
+        new DeploymentOptions().setConfig(config)))
+      .compose(id -> awaitListening(vertx, 100));
+  }
+
+  // the gateway deployment completes before its server is listening
+  private Future<Void> awaitListening(Vertx vertx, int attempts) {
+    return client.get("/metrics").send().<Void>mapEmpty().recover(th -> {
+      if (attempts == 0) {
+        return Future.failedFuture(th);
+      }
+      final Promise<Void> promise = Promise.promise();
+      vertx.setTimer(10, id -> awaitListening(vertx, attempts - 1).onComplete(promise));
+      return promise.future();
+    });
+  }
+
+  private Future<HttpResponse<Buffer>> notify(Buffer body) {
+    return client.post("/api/v1/notify").sendBuffer(body);
+  }
+
+  @Test
+  void storesTheNotify(Vertx vertx, VertxTestContext testContext) throws IOException {
+    start(vertx, TRENTO, new JsonObject(), new JsonObject())
+      .compose(v -> notify(NOTIFY.toBuffer()))
+      .onComplete(testContext.succeeding(response -> testContext.verify(() -> {
+        assertEquals(200, response.statusCode());
+        assertEquals(1, stub.requests());
+        assertEquals(1, stub.records());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void rejectsMalformedNotify(Vertx vertx, VertxTestContext testContext) throws IOException {
+    start(vertx, TRENTO, new JsonObject(), new JsonObject())
+      .compose(v -> notify(Buffer.buffer("{\"uuid\":1}")))
+      .onComplete(testContext.succeeding(response -> testContext.verify(() -> {
+        assertEquals(400, response.statusCode());
+        assertEquals(0, stub.requests());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void answers404WhenXataRefusesTheRows(Vertx vertx, VertxTestContext testContext) throws IOException {
+    final JsonObject stubConfig = new JsonObject()
+      .put("stub_failure_rate", 1.0)
+      .put("stub_failure_status", 400);
+    start(vertx, TRENTO, stubConfig, new JsonObject())
+      .compose(v -> notify(NOTIFY.toBuffer()))
+      .onComplete(testContext.succeeding(response -> testContext.verify(() -> {
+        assertEquals(404, response.statusCode());
+        // a client error isn't retried
+        assertEquals(1, stub.requests());
+        assertEquals(0, stub.records());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void answers502WhenXataIsUnreachable(Vertx vertx, VertxTestContext testContext) throws IOException {
+    final JsonObject gatewayConfig = new JsonObject()
+      .put("xata_base_url", "http://localhost:" + freePort())
+      .put("xata_retry_max", 0);
+    start(vertx, TRENTO, new JsonObject(), gatewayConfig)
+      .compose(v -> notify(NOTIFY.toBuffer()))
+      .onComplete(testContext.succeeding(response -> testContext.verify(() -> {
+        assertEquals(502, response.statusCode());
+        assertEquals(0, stub.requests());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void answers413ToOversizedNotify(Vertx vertx, VertxTestContext testContext) throws IOException {
+    final JsonObject gatewayConfig = new JsonObject().put("notify_max_body_bytes", 256);
+    final Buffer body = NOTIFY.copy().put("padding", new String(new char[512]).replace('\0', 'x')).toBuffer();
+    start(vertx, TRENTO, new JsonObject(), gatewayConfig)
+      .compose(v -> notify(body))
+      .onComplete(testContext.succeeding(response -> testContext.verify(() -> {
+        assertEquals(413, response.statusCode());
+        assertEquals(0, stub.requests());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void storesTheNotifyWithoutLocationUntilTheGeoIPDatabaseIsLoaded(Vertx vertx, VertxTestContext testContext)
+    throws IOException {
+    final JsonObject gatewayConfig = new JsonObject().put("geoip_enrich_interval_ms", 60_000L);
+    start(vertx, GeoLocation.UNAVAILABLE, new JsonObject().put("stub_keep_records", true), gatewayConfig)
+      .compose(v -> notify(NOTIFY.toBuffer()))
+      .onComplete(testContext.succeeding(response -> testContext.verify(() -> {
+        assertEquals(200, response.statusCode());
+        assertEquals(1, stub.records());
+        final JsonObject row = stub.stored().get(0);
+        assertEquals(NOTIFY.getString("uuid"), row.getString("uuid"));
+        assertTrue(row.getBoolean("geo_pending"));
+        assertFalse(row.containsKey("nation"));
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void writesTheLocationOnceTheGeoIPDatabaseIsLoaded(Vertx vertx, VertxTestContext testContext)
+    throws IOException {
+    final JsonObject gatewayConfig = new JsonObject().put("geoip_enrich_interval_ms", 20L);
+    start(vertx, GeoLocation.UNAVAILABLE, new JsonObject().put("stub_keep_records", true), gatewayConfig)
+      .compose(v -> notify(NOTIFY.toBuffer()))
+      .compose(response -> {
+        // the row stays pending while the database loads
+        final Promise<Void> loaded = Promise.promise();
+        vertx.setTimer(100, id -> {
+          location = TRENTO;
+          loaded.complete();
+        });
+        return loaded.future();
+      })
+      .compose(v -> awaitRecords(vertx, 2, 100))
+      .onComplete(testContext.succeeding(v -> testContext.verify(() -> {
+        assertEquals(2, stub.records());
+        final JsonObject stored = stub.stored().get(0);
+        final JsonObject enrichment = stub.stored().get(1);
+        assertTrue(enrichment.getBoolean("geo_enrichment"));
+        assertEquals("Italy", enrichment.getString("nation"));
+        assertEquals(stored.getString("uuid"), enrichment.getString("uuid"));
+        assertEquals(stored.getString("startup_date"), enrichment.getString("startup_date"));
+        assertEquals(stored.getString("IP"), enrichment.getString("IP"));
+        testContext.completeNow();
+      })));
+  }
+
+  private Future<Void> awaitRecords(Vertx vertx, int count, int attempts) {
+    if (stub.records() >= count || attempts == 0) {
+      return Future.succeededFuture();
+    }
+    final Promise<Void> promise = Promise.promise();
+    vertx.setTimer(10, id -> awaitRecords(vertx, count, attempts - 1).onComplete(promise));
+    return promise.future();
+  }
+
+  @Test
+  void answersEveryBatchLine(Vertx vertx, VertxTestContext testContext) throws IOException {
+    final JsonObject gatewayConfig = new JsonObject()
+      .put("notify_max_body_bytes", 512)
+      .put("notify_batch_max_lines", 5);
+    final String padding = new String(new char[1024]).replace('\0', 'x');
+    final String body = String.join("\n",
+      line("a", "93.184.216.34"),
+      "{\"uuid\":1}",
+      "",
+      line("b", "93.184.216.34") + "\r",
+      NOTIFY.copy().put("padding", padding).encode(),
+      line("c", "8.8.8.8"),
+      // past the limit of lines
+      line("d", "8.8.8.8"),
+      line("e", "1.1.1.1"));
+    final Buffer compressed = gzip(body);
+    start(vertx, TRENTO, new JsonObject(), gatewayConfig)
+      .compose(v -> client.post("/api/v1/notify/batch")
+        .putHeader(HttpHeaders.CONTENT_ENCODING.toString(), "gzip")
+        .sendBuffer(compressed))
+      .onComplete(testContext.succeeding(response -> testContext.verify(() -> {
+        assertEquals(200, response.statusCode());
+        final List<Integer> statuses = new ArrayList<>();
+        final String[] results = response.bodyAsString().split("\n");
+        for (int i = 0; i < results.length; i++) {
+          final JsonObject result = new JsonObject(results[i]);
+          assertEquals(i + 1, result.getInteger("line"));
+          statuses.add(result.getInteger("status"));
+        }
+        assertEquals(Arrays.asList(200, 400, 200, 413, 200, 413, 413), statuses);
+        assertEquals(3, stub.records());
+        // one lookup per distinct address, the excess lines are never looked up
+        assertEquals(2, batchLookups.size());
+        assertEquals(new HashSet<>(Arrays.asList("93.184.216.34", "8.8.8.8")), new HashSet<>(batchLookups));
+        testContext.completeNow();
+      })));
+  }
+
+  private static String line(String uuid, String remoteIp) {
+    return NOTIFY.copy().put("uuid", uuid).put("remote_ip", remoteIp).encode();
+  }
+
+  private static Buffer gzip(String body) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+      out.write(body.getBytes(StandardCharsets.UTF_8));
+    }
+    return Buffer.buffer(bytes.toByteArray());
+  }
+}
@@ -0,0 +1,142 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the throughput of the GeoIP lookups of many addresses sent one per message and in
+ * batches, to {@link GeoIPVerticle#RESOLVER_BUS_ADDRESS} and
+ * {@link GeoIPVerticle#BATCH_RESOLVER_BUS_ADDRESS}. The verticle is deployed without loading the
+ * database and its cache is filled in advance, so that no GeoLite2 database is needed: what's
+ * measured is the messaging, the dedup and the cache, not the mmdb lookups.
+ * <p>
+ * Usage: {@code GeoIPBatchBenchmark [batch size] [rounds] [concurrency] [batches in flight]}, a
+ * quarter of the addresses of a batch are repeated.
+ */
+public class GeoIPBatchBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    final int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+    final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    final int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+    final int batchesInFlight = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+
+    final Random random = new Random(42);
+    final String[] ips = new String[batchSize];
+    final JsonObject config = new JsonObject()
+      .put("geoip_mode", "worker")
+      .put("geoip_cache_max_entries", batchSize * 2);
+    final GeoIPCache cache = new GeoIPCache(batchSize * 2, 3_600_000L);
+    final GeoLocation location = GeoLocation.of("Italy", "Trentino-Alto Adige", "Trento", 46.12468015, 11.18093977);
+    final byte[] address = new byte[16];
+    for (int i = 0; i < ips.length; i++) {
+      ips[i] = i % 4 == 3
+        ? ips[random.nextInt(i)]
+        : (1 + random.nextInt(223)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+      cache.put(address, IpAddresses.parse(ips[i], address), 32, location);
+    }
+
+    final Vertx vertx = Vertx.vertx();
+    try {
+      GeoLocation.registerCodec(vertx);
+      GeoLocationBatch.registerCodec(vertx);
+      final Metrics metrics = new Metrics();
+      final GeoIPResolver resolver = new GeoIPResolver(new GeoIPDatabase(), cache, "worker", metrics);
+      await(vertx.deployVerticle(new GeoIPVerticle(metrics, resolver, false), new DeploymentOptions().setConfig(config)));
+
+      for (int warmup = 0; warmup < 2; warmup++) {
+        runSingle(vertx, ips, rounds, concurrency);
+        runBatch(vertx, ips, rounds, batchesInFlight);
+      }
+      long start = System.nanoTime();
+      runSingle(vertx, ips, rounds, concurrency);
+      final double singleSec = (System.nanoTime() - start) / 1e9;
+      start = System.nanoTime();
+      runBatch(vertx, ips, rounds, batchesInFlight);
+      final double batchSec = (System.nanoTime() - start) / 1e9;
+      final long addresses = (long) batchSize * rounds;
+      System.out.printf("single: %d addresses, %d in flight, %.0f addresses/s%n", addresses, concurrency,
+        addresses / singleSec);
+      System.out.printf("batch:  %d batches of %d addresses, %d in flight, %.0f addresses/s, %.1fx%n", rounds,
+        batchSize, batchesInFlight, addresses / batchSec, singleSec / batchSec);
+    } finally {
+      vertx.close();
+    }
+  }
+
+  private static void runSingle(Vertx vertx, String[] ips, int rounds, int concurrency) throws Exception {
+    final int requests = ips.length * rounds;
+    final AtomicInteger issued = new AtomicInteger();
+    final AtomicInteger completed = new AtomicInteger();
+    final Promise<Void> done = Promise.promise();
+    for (int i = 0; i < Math.min(concurrency, requests); i++) {
+      sendNext(vertx, ips, requests, issued, completed, done);
+    }
+    await(done.future());
+  }
+
+  private static void sendNext(Vertx vertx, String[] ips, int requests, AtomicInteger issued,
+                               AtomicInteger completed, Promise<Void> done) {
+    final int index = issued.getAndIncrement();
+    if (index >= requests) {
+      return;
+    }
+    vertx.eventBus().request(GeoIPVerticle.RESOLVER_BUS_ADDRESS, ips[index % ips.length])
+      .onComplete(ar -> {
+        if (ar.failed()) {
+          done.tryFail(ar.cause());
+        } else if (completed.incrementAndGet() == requests) {
+          done.tryComplete();
+        } else {
+          sendNext(vertx, ips, requests, issued, completed, done);
+        }
+      });
+  }
+
+  private static void runBatch(Vertx vertx, String[] ips, int rounds, int inFlight) throws Exception {
+    final List<Object> list = new ArrayList<>(ips.length);
+    for (String ip : ips) {
+      list.add(ip);
+    }
+    final AtomicInteger issued = new AtomicInteger();
+    final AtomicInteger completed = new AtomicInteger();
+    final Promise<Void> done = Promise.promise();
+    for (int i = 0; i < Math.min(inFlight, rounds); i++) {
+      sendNextBatch(vertx, new JsonArray(list), rounds, issued, completed, done);
+    }
+    await(done.future());
+  }
+
+  private static void sendNextBatch(Vertx vertx, JsonArray ips, int rounds, AtomicInteger issued,
+                                    AtomicInteger completed, Promise<Void> done) {
+    if (issued.getAndIncrement() >= rounds) {
+      return;
+    }
+    vertx.eventBus().<GeoLocationBatch>request(GeoIPVerticle.BATCH_RESOLVER_BUS_ADDRESS, ips)
+      .onComplete(ar -> {
+        if (ar.failed()) {
+          done.tryFail(ar.cause());
+        } else if (ar.result().body().size() != ips.size()) {
+          done.tryFail(new IllegalStateException("Expected " + ips.size() + " locations, got "
+            + ar.result().body().size()));
+        } else if (completed.incrementAndGet() == rounds) {
+          done.tryComplete();
+        } else {
+          sendNextBatch(vertx, ips, rounds, issued, completed, done);
+        }
+      });
+  }
+
+  private static <T> T await(Future<T> future) throws Exception {
+    return future.toCompletionStage().toCompletableFuture().get();
+  }
+}
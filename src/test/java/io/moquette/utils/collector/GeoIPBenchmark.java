@@ -0,0 +1,113 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the latency of GeoIP lookups, sent on the event bus, with the resolver in worker, verticle and
+ * in inline mode. Expects geolite/GeoLite2-City.mmdb to be already present in the working directory.
+ * <p>
+ * Usage: {@code GeoIPBenchmark [requests] [concurrency] [cache entries]}, the cache is disabled by
+ * default so that every request performs the mmdb lookup.
+ */
+public class GeoIPBenchmark {
+
+  private static final int WARMUP_REQUESTS = 20_000;
+
+  public static void main(String[] args) throws Exception {
+    final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    final int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+    final int cacheEntries = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+    final Random random = new Random(42);
+    final String[] ips = new String[65_536];
+    for (int i = 0; i < ips.length; i++) {
+      ips[i] = (1 + random.nextInt(223)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+    }
+
+    final Vertx vertx = Vertx.vertx();
+    try {
+      for (String mode : new String[]{"worker", "verticle", "inline"}) {
+        final JsonObject config = new JsonObject()
+          .put("geoip_mode", mode)
+          .put("geoip_cache_max_entries", cacheEntries);
+        final String deploymentId = await(GeoIPVerticle.deploy(vertx, config, new Metrics()));
+        awaitReady(vertx);
+
+        run(vertx, ips, WARMUP_REQUESTS, concurrency);
+        final long start = System.nanoTime();
+        final long[] latencies = run(vertx, ips, requests, concurrency);
+        final double elapsedSec = (System.nanoTime() - start) / 1e9;
+
+        Arrays.sort(latencies);
+        System.out.printf("mode=%-8s requests=%d concurrency=%d throughput=%.0f req/s p50=%.1f us p99=%.1f us p99.9=%.1f us%n",
+          mode, requests, concurrency, requests / elapsedSec,
+          percentile(latencies, 0.50) / 1e3, percentile(latencies, 0.99) / 1e3, percentile(latencies, 0.999) / 1e3);
+
+        await(vertx.undeploy(deploymentId));
+      }
+    } finally {
+      vertx.close();
+    }
+  }
+
+  /**
+   * The deployment completes before the database is loaded, the lookups would be answered as
+   * unavailable meanwhile.
+   */
+  private static void awaitReady(Vertx vertx) throws Exception {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (!await(vertx.eventBus().<JsonObject>request(GeoIPVerticle.STATUS_BUS_ADDRESS, null)).body()
+      .getBoolean("ready")) {
+      if (System.nanoTime() - deadline > 0) {
+        throw new IllegalStateException("GeoIP database not loaded, is geolite/GeoLite2-City.mmdb present?");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private static long[] run(Vertx vertx, String[] ips, int requests, int concurrency) throws Exception {
+    final long[] latencies = new long[requests];
+    final AtomicInteger issued = new AtomicInteger();
+    final AtomicInteger completed = new AtomicInteger();
+    final Promise<Void> done = Promise.promise();
+    for (int i = 0; i < Math.min(concurrency, requests); i++) {
+      sendNext(vertx, ips, latencies, issued, completed, done);
+    }
+    await(done.future());
+    return latencies;
+  }
+
+  private static void sendNext(Vertx vertx, String[] ips, long[] latencies, AtomicInteger issued,
+                               AtomicInteger completed, Promise<Void> done) {
+    final int index = issued.getAndIncrement();
+    if (index >= latencies.length) {
+      return;
+    }
+    final long start = System.nanoTime();
+    vertx.eventBus().request(GeoIPVerticle.RESOLVER_BUS_ADDRESS, ips[index % ips.length])
+      .onComplete(ar -> {
+        latencies[index] = System.nanoTime() - start;
+        if (completed.incrementAndGet() == latencies.length) {
+          done.tryComplete();
+        } else {
+          sendNext(vertx, ips, latencies, issued, completed, done);
+        }
+      });
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+  }
+
+  private static <T> T await(Future<T> future) throws Exception {
+    return future.toCompletionStage().toCompletableFuture().get();
+  }
+}
@@ -0,0 +1,367 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Download, verification and installation of the GeoLite2 database, served by a local HTTP server
+ * with a tiny generated mmdb that locates every IPv4 address in Trento.
+ */
+@ExtendWith(VertxExtension.class)
+class GeoIPVerticleTest {
+
+  private static final String DB_NAME = "GeoLite2-City.mmdb";
+
+  @TempDir
+  Path databaseDir;
+
+  private byte[] mmdb;
+  private byte[] archive;
+  private String checksum;
+  // checksum requests answered with a wrong one, to fail the verification
+  private volatile int badChecksums;
+  // requests of the archive not answered, to simulate a stalled download
+  private volatile int stalls;
+  private final AtomicInteger downloads = new AtomicInteger();
+
+  @BeforeEach
+  void setUp() throws Exception {
+    mmdb = cityDatabase();
+    archive = tarGz("GeoLite2-City_20211116/" + DB_NAME, mmdb);
+    checksum = sha256(archive);
+  }
+
+  private Future<JsonObject> start(Vertx vertx, JsonObject config) {
+    return deploy(vertx, config).compose(id -> awaitReady(vertx, 200));
+  }
+
+  private Future<String> deploy(Vertx vertx, JsonObject config) {
+    return deploy(vertx, "/geoip_download?suffix=tar.gz", config);
+  }
+
+  private Future<String> deploy(Vertx vertx, String downloadPath, JsonObject config) {
+    return vertx.createHttpServer()
+      .requestHandler(this::serve)
+      .listen(0)
+      .compose(server -> GeoIPVerticle.deploy(vertx, new JsonObject()
+        .put("geolite_download_url", "http://localhost:" + server.actualPort() + downloadPath)
+        .put("geolite_dir", databaseDir.toString())
+        .put("geolite_download_timeout_ms", 500L)
+        .put("geolite_retry_interval_ms", 50L)
+        .mergeIn(config), new Metrics()));
+  }
+
+  private void serve(HttpServerRequest request) {
+    if ("tar.gz.sha256".equals(request.getParam("suffix"))) {
+      final String published = badChecksums > 0 ? "0000" : checksum;
+      if (badChecksums > 0) {
+        badChecksums--;
+      }
+      request.response().end(published + "  GeoLite2-City_20211116.tar.gz");
+      return;
+    }
+    downloads.incrementAndGet();
+    if (stalls > 0) {
+      stalls--;
+      // headers and half of the body, then nothing
+      request.response().setChunked(true).write(Buffer.buffer(Arrays.copyOf(archive, archive.length / 2)));
+      return;
+    }
+    request.response().end(Buffer.buffer(archive));
+  }
+
+  private static Future<JsonObject> awaitReady(Vertx vertx, int attempts) {
+    return vertx.eventBus().<JsonObject>request(GeoIPVerticle.STATUS_BUS_ADDRESS, null).map(Message::body)
+      .compose(status -> {
+        if (status.getBoolean("ready") || attempts == 0) {
+          return Future.succeededFuture(status);
+        }
+        final Promise<JsonObject> promise = Promise.promise();
+        vertx.setTimer(20, id -> awaitReady(vertx, attempts - 1).onComplete(promise));
+        return promise.future();
+      });
+  }
+
+  private Future<Void> awaitDownloads(Vertx vertx, int count, int attempts) {
+    if (downloads.get() >= count || attempts == 0) {
+      return Future.succeededFuture();
+    }
+    final Promise<Void> promise = Promise.promise();
+    vertx.setTimer(20, id -> awaitDownloads(vertx, count, attempts - 1).onComplete(promise));
+    return promise.future();
+  }
+
+  private static Future<GeoLocation> locate(Vertx vertx, String ip) {
+    return vertx.eventBus().<GeoLocation>request(GeoIPVerticle.RESOLVER_BUS_ADDRESS, ip).map(Message::body);
+  }
+
+  @Test
+  void downloadsAndInstallsTheDatabase(Vertx vertx, VertxTestContext testContext) {
+    start(vertx, new JsonObject())
+      .compose(status -> {
+        testContext.verify(() -> {
+          assertTrue(status.getBoolean("ready"));
+          assertEquals("GeoLite2-City", status.getString("database_type"));
+        });
+        return locate(vertx, "93.184.216.34");
+      })
+      .onComplete(testContext.succeeding(location -> testContext.verify(() -> {
+        assertEquals("Italy", location.nation());
+        assertEquals("Trento", location.city());
+        assertEquals(1, downloads.get());
+        // kept for the next start, the partial file is gone
+        assertArrayEquals(mmdb, Files.readAllBytes(databaseDir.resolve(DB_NAME)));
+        assertTrue(Files.notExists(databaseDir.resolve(DB_NAME + ".part")));
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void answersUnavailableUntilTheDatabaseIsInstalled(Vertx vertx, VertxTestContext testContext) {
+    badChecksums = 2;
+    deploy(vertx, new JsonObject())
+      .compose(id -> locate(vertx, "93.184.216.34"))
+      .compose(location -> {
+        testContext.verify(() -> assertFalse(location.isAvailable()));
+        return awaitReady(vertx, 200);
+      })
+      .compose(status -> locate(vertx, "93.184.216.34"))
+      .onComplete(testContext.succeeding(location -> testContext.verify(() -> {
+        assertEquals("Italy", location.nation());
+        // installed by the retry after the failed ones
+        assertEquals(3, downloads.get());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void retriesStalledDownloads(Vertx vertx, VertxTestContext testContext) {
+    stalls = 2;
+    start(vertx, new JsonObject())
+      .onComplete(testContext.succeeding(status -> testContext.verify(() -> {
+        assertTrue(status.getBoolean("ready"));
+        assertEquals(3, downloads.get());
+        assertTrue(Files.notExists(databaseDir.resolve(DB_NAME + ".part")));
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void opensTheLocalDatabaseWithoutDownloading(Vertx vertx, VertxTestContext testContext) throws IOException {
+    Files.write(databaseDir.resolve(DB_NAME), mmdb);
+    start(vertx, new JsonObject())
+      .onComplete(testContext.succeeding(status -> testContext.verify(() -> {
+        assertTrue(status.getBoolean("ready"));
+        assertEquals(0, downloads.get());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void replacesACorruptedLocalDatabase(Vertx vertx, VertxTestContext testContext) throws IOException {
+    Files.write(databaseDir.resolve(DB_NAME), Arrays.copyOf(mmdb, 20));
+    start(vertx, new JsonObject())
+      .onComplete(testContext.succeeding(status -> testContext.verify(() -> {
+        assertTrue(status.getBoolean("ready"));
+        assertEquals(1, downloads.get());
+        assertArrayEquals(mmdb, Files.readAllBytes(databaseDir.resolve(DB_NAME)));
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void keepsTheLocalDatabaseWhenTheDownloadIsNotAnMmdb(Vertx vertx, VertxTestContext testContext) throws Exception {
+    Files.write(databaseDir.resolve(DB_NAME), mmdb);
+    // verified by the checksum, but not a database
+    archive = tarGz("GeoLite2-City_20211116/" + DB_NAME, "not a database".getBytes(StandardCharsets.US_ASCII));
+    checksum = sha256(archive);
+    start(vertx, new JsonObject().put("geolite_refresh_interval_ms", 50L))
+      // the second download starts after the first one is over
+      .compose(status -> awaitDownloads(vertx, 2, 200))
+      .onComplete(testContext.succeeding(v -> testContext.verify(() -> {
+        assertTrue(downloads.get() >= 2);
+        assertArrayEquals(mmdb, Files.readAllBytes(databaseDir.resolve(DB_NAME)));
+        assertTrue(Files.notExists(databaseDir.resolve(DB_NAME + ".part")));
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void refusesDownloadsWithoutChecksum(Vertx vertx, VertxTestContext testContext) {
+    deploy(vertx, "/geoip_download", new JsonObject())
+      .compose(id -> {
+        final Promise<JsonObject> later = Promise.promise();
+        // a few retry intervals
+        vertx.setTimer(300, t -> awaitReady(vertx, 0).onComplete(later));
+        return later.future();
+      })
+      .onComplete(testContext.succeeding(status -> testContext.verify(() -> {
+        assertFalse(status.getBoolean("ready"));
+        assertEquals(0, downloads.get());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void installsUnverifiedDownloadsWhenAllowed(Vertx vertx, VertxTestContext testContext) {
+    deploy(vertx, "/geoip_download", new JsonObject().put("geolite_allow_unverified", true))
+      .compose(id -> awaitReady(vertx, 200))
+      .onComplete(testContext.succeeding(status -> testContext.verify(() -> {
+        assertTrue(status.getBoolean("ready"));
+        assertEquals(1, downloads.get());
+        testContext.completeNow();
+      })));
+  }
+
+  private static String sha256(byte[] data) throws NoSuchAlgorithmException {
+    final StringBuilder hex = new StringBuilder();
+    for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  private static byte[] tarGz(String name, byte[] content) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (TarArchiveOutputStream tarOut = new TarArchiveOutputStream(new GzipCompressorOutputStream(out))) {
+      final TarArchiveEntry entry = new TarArchiveEntry(name);
+      entry.setSize(content.length);
+      tarOut.putArchiveEntry(entry);
+      tarOut.write(content);
+      tarOut.closeArchiveEntry();
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * An IPv4 GeoLite2-City database of a single node, whose records both point to the same city.
+   */
+  static byte[] cityDatabase() {
+    final Map<String, Object> city = new LinkedHashMap<>();
+    city.put("country", Collections.singletonMap("names", Collections.singletonMap("en", "Italy")));
+    city.put("city", Collections.singletonMap("names", Collections.singletonMap("en", "Trento")));
+    city.put("subdivisions", Collections.singletonList(
+      Collections.singletonMap("names", Collections.singletonMap("en", "Trentino-Alto Adige"))));
+    final Map<String, Object> location = new LinkedHashMap<>();
+    location.put("latitude", 46.12);
+    location.put("longitude", 11.18);
+    city.put("location", location);
+
+    final Map<String, Object> metadata = new LinkedHashMap<>();
+    metadata.put("node_count", new Uint(6, 1));
+    metadata.put("record_size", new Uint(5, 24));
+    metadata.put("ip_version", new Uint(5, 4));
+    metadata.put("database_type", "GeoLite2-City");
+    metadata.put("languages", Collections.singletonList("en"));
+    metadata.put("binary_format_major_version", new Uint(5, 2));
+    metadata.put("binary_format_minor_version", new Uint(5, 0));
+    metadata.put("build_epoch", new Uint(9, System.currentTimeMillis() / 1000));
+    metadata.put("description", Collections.singletonMap("en", "test"));
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // both records point to the start of the data section: node count + 16
+    final byte[] record = {0, 0, 17};
+    out.write(record, 0, 3);
+    out.write(record, 0, 3);
+    out.write(new byte[16], 0, 16);
+    encode(out, city);
+    out.write(0xab);
+    out.write(0xcd);
+    out.write(0xef);
+    final byte[] marker = "MaxMind.com".getBytes(StandardCharsets.US_ASCII);
+    out.write(marker, 0, marker.length);
+    encode(out, metadata);
+    return out.toByteArray();
+  }
+
+  private static final class Uint {
+    private final int type;
+    private final long value;
+
+    Uint(int type, long value) {
+      this.type = type;
+      this.value = value;
+    }
+  }
+
+  private static void encode(ByteArrayOutputStream out, Object value) {
+    if (value instanceof String) {
+      final byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+      control(out, 2, bytes.length);
+      out.write(bytes, 0, bytes.length);
+    } else if (value instanceof Double) {
+      control(out, 3, 8);
+      out.write(ByteBuffer.allocate(8).putDouble((Double) value).array(), 0, 8);
+    } else if (value instanceof Uint) {
+      final Uint uint = (Uint) value;
+      final byte[] bytes = ByteBuffer.allocate(8).putLong(uint.value).array();
+      int skip = 0;
+      while (skip < 8 && bytes[skip] == 0) {
+        skip++;
+      }
+      control(out, uint.type, 8 - skip);
+      out.write(bytes, skip, 8 - skip);
+    } else if (value instanceof Map) {
+      final Map<?, ?> map = (Map<?, ?>) value;
+      control(out, 7, map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        encode(out, entry.getKey());
+        encode(out, entry.getValue());
+      }
+    } else if (value instanceof List) {
+      final List<?> list = (List<?>) value;
+      control(out, 11, list.size());
+      for (Object item : list) {
+        encode(out, item);
+      }
+    } else {
+      throw new IllegalArgumentException("Unsupported " + value);
+    }
+  }
+
+  private static void control(ByteArrayOutputStream out, int type, int size) {
+    // types past 7 are extended, in the byte following the control one
+    final int first = type <= 7 ? type << 5 : 0;
+    out.write(first | Math.min(size, 29));
+    if (type > 7) {
+      out.write(type - 7);
+    }
+    if (size >= 29) {
+      out.write(size - 29);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Compares how a cached GeoIP location reaches the gateway: as a JSON object on the event bus,
+ * copied by its codec; as a {@link GeoLocation} on the event bus, passed by reference; directly
+ * from the {@link GeoIPResolver}, without the event bus. The cache is filled in advance, so that
+ * no GeoLite2 database is needed.
+ * <p>
+ * Usage: {@code GeoLocationBenchmark [requests] [concurrency]}.
+ */
+public class GeoLocationBenchmark {
+
+  private static final int WARMUP_REQUESTS = 200_000;
+  private static final String JSON_BUS_ADDRESS = "ipresolver.lookup.json";
+
+  public static void main(String[] args) throws Exception {
+    final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    final int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+    final Random random = new Random(42);
+    final String[] ips = new String[4096];
+    final GeoIPCache cache = new GeoIPCache(ips.length * 2, 3_600_000L);
+    final GeoLocation[] locations = {
+      GeoLocation.of("Italy", "Trentino-Alto Adige", "Trento", 46.12468015, 11.18093977),
+      GeoLocation.of("Germany", "Bavaria", "Munich", 48.1374, 11.5755),
+      GeoLocation.of("United States", "California", "San Jose", 37.3394, -121.895)
+    };
+    final byte[] address = new byte[16];
+    for (int i = 0; i < ips.length; i++) {
+      ips[i] = (1 + random.nextInt(223)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+      cache.put(address, IpAddresses.parse(ips[i], address), 32, locations[i % locations.length]);
+    }
+
+    final Vertx vertx = Vertx.vertx();
+    try {
+      final GeoIPResolver resolver = new GeoIPResolver(new GeoIPDatabase(), cache, "worker", new Metrics());
+      GeoLocation.registerCodec(vertx);
+      final byte[] scratch = new byte[16];
+      // the JSON objects the cache used to hold, copied by the codec of the local event bus
+      final Map<GeoLocation, JsonObject> jsons = new IdentityHashMap<>();
+      for (GeoLocation location : locations) {
+        jsons.put(location, location.toJson());
+      }
+      vertx.eventBus().<String>consumer(JSON_BUS_ADDRESS, msg -> msg.reply(jsons.get(resolve(cache, msg.body(), scratch))));
+      vertx.eventBus().<String>consumer(GeoIPVerticle.RESOLVER_BUS_ADDRESS,
+        msg -> msg.reply(resolve(cache, msg.body(), scratch)));
+      final byte[] ipv4Buffer = new byte[4];
+
+      run("json-bus", requests, concurrency, ips,
+        ip -> vertx.eventBus().<JsonObject>request(JSON_BUS_ADDRESS, ip).map(Message::body));
+      run("typed-bus", requests, concurrency, ips,
+        ip -> vertx.eventBus().<GeoLocation>request(GeoIPVerticle.RESOLVER_BUS_ADDRESS, ip).map(Message::body));
+      run("direct", requests, concurrency, ips, ip -> {
+        try {
+          return Future.succeededFuture(resolver.tryResolve(ip, scratch, ipv4Buffer));
+        } catch (Exception e) {
+          return Future.failedFuture(e);
+        }
+      });
+    } finally {
+      vertx.close();
+    }
+  }
+
+  private static GeoLocation resolve(GeoIPCache cache, String ip, byte[] scratch) {
+    return cache.get(scratch, IpAddresses.parse(ip, scratch));
+  }
+
+  private static void run(String path, int requests, int concurrency, String[] ips,
+                          Function<String, Future<?>> lookup) throws Exception {
+    run(WARMUP_REQUESTS, concurrency, ips, lookup);
+    final long start = System.nanoTime();
+    final long[] latencies = run(requests, concurrency, ips, lookup);
+    final double elapsedSec = (System.nanoTime() - start) / 1e9;
+    Arrays.sort(latencies);
+    System.out.printf("path=%-9s requests=%d concurrency=%d throughput=%.0f lookups/s p50=%.1f us p99=%.1f us%n",
+      path, requests, concurrency, requests / elapsedSec, percentile(latencies, 0.50) / 1e3,
+      percentile(latencies, 0.99) / 1e3);
+  }
+
+  private static long[] run(int requests, int concurrency, String[] ips, Function<String, Future<?>> lookup)
+    throws Exception {
+    final long[] latencies = new long[requests];
+    final AtomicInteger issued = new AtomicInteger();
+    final AtomicInteger completed = new AtomicInteger();
+    final Promise<Void> done = Promise.promise();
+    for (int i = 0; i < Math.min(concurrency, requests); i++) {
+      sendNext(ips, lookup, latencies, issued, completed, done);
+    }
+    await(done.future());
+    return latencies;
+  }
+
+  private static void sendNext(String[] ips, Function<String, Future<?>> lookup, long[] latencies,
+                               AtomicInteger issued, AtomicInteger completed, Promise<Void> done) {
+    // the direct lookups complete synchronously, looped instead of recursing
+    while (true) {
+      final int index = issued.getAndIncrement();
+      if (index >= latencies.length) {
+        return;
+      }
+      final long start = System.nanoTime();
+      final Future<?> result = lookup.apply(ips[index % ips.length]);
+      if (result.isComplete()) {
+        latencies[index] = System.nanoTime() - start;
+        if (completed.incrementAndGet() == latencies.length) {
+          done.tryComplete();
+        }
+        continue;
+      }
+      result.onComplete(ar -> {
+        latencies[index] = System.nanoTime() - start;
+        if (completed.incrementAndGet() == latencies.length) {
+          done.tryComplete();
+        } else {
+          sendNext(ips, lookup, latencies, issued, completed, done);
+        }
+      });
+      return;
+    }
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+  }
+
+  private static <T> T await(Future<T> future) throws Exception {
+    return future.toCompletionStage().toCompletableFuture().get();
+  }
+}
@@ -0,0 +1,78 @@
+package io.moquette.utils.collector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compares {@link IpAddresses#parse(CharSequence, byte[])} with the regular expressions plus
+ * {@link InetAddress#getByName(String)} previously used by the GeoIP resolver.
+ * <p>
+ * Usage, with the gc profiler for the allocation per operation:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) org.openjdk.jmh.Main IpAddressBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IpAddressBenchmark {
+
+  private static final Pattern PATTERN_IPV4 = Pattern.compile(
+    "^(([0-9]|[1-9][0-9]|1[0-9][0-9]|2[0-4][0-9]|25[0-5])(\\.(?!$)|$)){4}$", Pattern.CASE_INSENSITIVE);
+  private static final Pattern PATTERN_IPV6_1 = Pattern.compile(
+    "([0-9a-f]{1,4}:){7}([0-9a-f]){1,4}", Pattern.CASE_INSENSITIVE);
+  private static final Pattern PATTERN_IPV6_2 = Pattern.compile(
+    "^((?:[0-9A-Fa-f]{1,4}(?::[0-9A-Fa-f]{1,4})*)?)::((?:[0-9A-Fa-f]{1,4}(?::[0-9A-Fa-f]{1,4})*)?)$", Pattern.CASE_INSENSITIVE);
+
+  private final String[] ips = new String[4096];
+  private final byte[] out = new byte[16];
+  private int next;
+
+  @Setup
+  public void setup() {
+    final Random random = new Random(42);
+    for (int i = 0; i < ips.length; i++) {
+      if (i % 4 == 0) {
+        ips[i] = Integer.toHexString(0x2000 + random.nextInt(0x1000)) + ":db8::" + Integer.toHexString(random.nextInt(0x10000));
+      } else {
+        ips[i] = (1 + random.nextInt(223)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+      }
+    }
+  }
+
+  private String nextIp() {
+    return ips[next++ & (ips.length - 1)];
+  }
+
+  @Benchmark
+  public int regexAndInetAddress() throws UnknownHostException {
+    final String ip = nextIp();
+    if (PATTERN_IPV4.matcher(ip).matches() || PATTERN_IPV6_1.matcher(ip).matches() || PATTERN_IPV6_2.matcher(ip).matches()) {
+      return InetAddress.getByName(ip).getAddress().length;
+    }
+    return IpAddresses.INVALID;
+  }
+
+  @Benchmark
+  public int ipAddresses() {
+    return IpAddresses.parse(nextIp(), out);
+  }
+}
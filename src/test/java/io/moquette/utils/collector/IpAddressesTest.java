@@ -0,0 +1,57 @@
+package io.moquette.utils.collector;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class IpAddressesTest {
+
+  private static final String[] VALID = {
+    "0.0.0.0", "127.0.0.1", "93.184.216.34", "255.255.255.255",
+    "::", "::1", "2001:db8::1", "2001:db8:0:0:1:0:0:1", "fe80::", "1::", "1:2:3:4:5:6:7:8",
+    "2001:DB8::AbCd", "::ffff:192.168.1.1", "64:ff9b::10.0.0.1", "::ffff:c0a8:101"
+  };
+
+  private static final String[] INVALID = {
+    null, "", ".", "1.2.3", "1.2.3.4.5", "1.2.3.", ".1.2.3", "256.1.1.1", "01.2.3.4", "1..2.3",
+    "1.2.3.a", " 1.2.3.4", ":", ":::", "1:::2", "1::2::3", "1:2:3:4:5:6:7:8:9", "12345::",
+    "g::1", "1:2:3:4:5:6:7", ":1::2", "1::2:", "::ffff:256.1.1.1", "::1.2.3", "localhost"
+  };
+
+  @Test
+  void parsesAsInetAddress() throws Exception {
+    final byte[] out = new byte[16];
+    for (String ip : VALID) {
+      final byte[] expected = InetAddress.getByName(ip).getAddress();
+      assertEquals(expected.length, IpAddresses.parse(ip, out), ip);
+      assertArrayEquals(expected, Arrays.copyOf(out, expected.length), ip);
+    }
+  }
+
+  @Test
+  void unmapsIPv4MappedAddresses() {
+    final byte[] out = new byte[16];
+    assertEquals(4, IpAddresses.parse("::ffff:10.1.2.3", out));
+    assertArrayEquals(new byte[]{10, 1, 2, 3}, Arrays.copyOf(out, 4));
+  }
+
+  @Test
+  void ignoresZoneId() {
+    final byte[] out = new byte[16];
+    assertEquals(16, IpAddresses.parse("fe80::1%eth0", out));
+    assertEquals(1, out[15]);
+  }
+
+  @Test
+  void rejectsMalformed() {
+    for (String ip : INVALID) {
+      assertEquals(IpAddresses.INVALID, IpAddresses.parse(ip, new byte[16]), ip);
+      assertFalse(IpAddresses.isValid(ip), ip);
+    }
+  }
+}
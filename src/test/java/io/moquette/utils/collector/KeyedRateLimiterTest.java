@@ -0,0 +1,65 @@
+package io.moquette.utils.collector;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyedRateLimiterTest {
+
+  // a token every 100 ms, 3 at most
+  private final KeyedRateLimiter limiter = new KeyedRateLimiter(1024, 600, 3);
+
+  private void assertAllowed(KeyedRateLimiter limiter, String key, int requests) {
+    for (int i = 0; i < requests; i++) {
+      assertEquals(0, limiter.acquire(key), "request " + i);
+    }
+  }
+
+  @Test
+  void allowsTheBurstThenRefuses() {
+    assertAllowed(limiter, "a", 3);
+    final long waitMs = limiter.acquire("a");
+    assertTrue(waitMs > 0 && waitMs <= 100, "wait " + waitMs);
+    assertEquals(1, limiter.rejected());
+  }
+
+  @Test
+  void refillsATokenPerInterval() throws InterruptedException {
+    assertAllowed(limiter, "a", 3);
+    Thread.sleep(limiter.acquire("a") + 10);
+    assertAllowed(limiter, "a", 1);
+    assertTrue(limiter.acquire("a") > 0);
+  }
+
+  @Test
+  void refillsTheWholeBucketAfterBurstIntervals() throws InterruptedException {
+    assertAllowed(limiter, "a", 3);
+    Thread.sleep(320);
+    assertAllowed(limiter, "a", 3);
+    assertTrue(limiter.acquire("a") > 0);
+  }
+
+  @Test
+  void limitsEveryKeyOnItsOwn() {
+    assertAllowed(limiter, "a", 3);
+    assertTrue(limiter.acquire("a") > 0);
+    assertAllowed(limiter, "b", 3);
+  }
+
+  @Test
+  void neverRefusesANewKeyWhenTheTableIsFull() {
+    // a single set
+    final KeyedRateLimiter small = new KeyedRateLimiter(4, 600, 1);
+    for (int i = 0; i < 100; i++) {
+      assertAllowed(small, "key-" + i, 1);
+    }
+  }
+
+  @Test
+  void isDisabledWithoutRate() {
+    final KeyedRateLimiter disabled = new KeyedRateLimiter(1024, 0, 0);
+    assertAllowed(disabled, "a", 1000);
+    assertAllowed(limiter, null, 1000);
+  }
+}
@@ -0,0 +1,91 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the streaming decoding and encoding done by {@link Notify} and {@link UsageRowWriter}
+ * with the previous path, that decoded the body into a {@link JsonObject}, copied the fields into
+ * a second one and encoded it.
+ * <p>
+ * Usage, with the gc profiler for the allocation per notify:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) org.openjdk.jmh.Main NotifyCodecBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NotifyCodecBenchmark {
+
+  private static final String IP = "127.0.0.1";
+  private static final String STARTUP_DATE = "2021-11-20T10:15:30Z";
+  private static final String[] COPIED_FIELDS = {"os", "cpu_arch", "jvm_version", "jvm_vendor", "remote_ip"};
+
+  private Buffer body;
+  private GeoLocation location;
+  // the previous path received the location as a JSON object
+  private JsonObject locationJson;
+  private UsageRowWriter writer;
+  private TextCache cache;
+
+  @Setup
+  public void setup() {
+    body = new JsonObject()
+      .put("remote_ip", "93.184.216.34")
+      .put("os", "Linux")
+      .put("cpu_arch", "amd64")
+      .put("jvm_version", "11.0.12")
+      .put("jvm_vendor", "Eclipse Adoptium")
+      .put("broker_version", "0.16")
+      .put("uuid", "6a1e7a0e-4b1c-4e5f-9d2a-3c8b7f0e1d2c")
+      .put("standalone", true)
+      .put("max_heap", "4294967296")
+      .toBuffer();
+    location = GeoLocation.of("Italy", "Trentino-Alto Adige", "Trento", 46.12468015, 11.18093977);
+    locationJson = location.toJson();
+    writer = new UsageRowWriter();
+    cache = new TextCache(1024, 64);
+  }
+
+  @Benchmark
+  public Buffer streaming() throws IOException {
+    return writer.write(Notify.parse(body, cache), IP, STARTUP_DATE, location, 0);
+  }
+
+  @Benchmark
+  public Buffer jsonObjects() {
+    final JsonObject requestJson = new JsonObject(body);
+    final JsonObject payload = new JsonObject()
+      .put("IP", IP)
+      .put("startup_date", STARTUP_DATE);
+    locationJson.forEach(entry -> payload.put(entry.getKey(), entry.getValue()));
+    for (String field : COPIED_FIELDS) {
+      if (requestJson.containsKey(field)) {
+        payload.put(field, requestJson.getString(field));
+      }
+    }
+    payload.put("version", requestJson.getString("broker_version"));
+    payload.put("uuid", requestJson.getString("uuid"));
+    payload.put("standalone", requestJson.getBoolean("standalone"));
+    payload.put("max_heap", Long.parseLong(requestJson.getString("max_heap")));
+    return payload.toBuffer();
+  }
+}
@@ -0,0 +1,201 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClient;
+import io.vertx.ext.web.client.WebClientOptions;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives POST /api/v1/notify of an in-process gateway that writes to a {@link XataStub}, with the
+ * GeoIP resolver replaced by a fixed reply, so that the cost of the request path (logging
+ * included) can be measured without a Xata account and a GeoLite2 database.
+ * <p>
+ * Usage: {@code NotifyLoadTest [requests] [concurrency] [stub latency ms]}, gateway settings
+ * (e.g. {@code admission_max_limit}) can be passed as system properties; run it with
+ * {@code -DLOG_LEVEL=debug} and {@code LOG_SAMPLE_RATE} to compare the logging configurations.
+ * With {@code -Dsinks=local} (or {@code xata,local}) the rows are also, or only, written to a
+ * local store in a temporary directory. The stub tail latency and failures ({@code stub_slow_rate},
+ * {@code stub_failure_rate}...) and the Xata client resilience settings ({@code xata_hedge_enabled},
+ * {@code xata_retry_max}...) are taken from the system properties too. With {@code -Dredirect=true}
+ * the gateway points to a second stub that permanently redirects to the first one.
+ */
+public class NotifyLoadTest {
+
+  private static final int WARMUP_REQUESTS = 20_000;
+  private static final int GATEWAY_PORT = 18080;
+  private static final int STUB_PORT = 19090;
+  private static final int REDIRECT_PORT = 19091;
+  private static final long SHED = Long.MIN_VALUE;
+
+  public static void main(String[] args) throws Exception {
+    final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+    final int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+    final long stubLatencyMs = args.length > 2 ? Long.parseLong(args[2]) : 5L;
+
+    final Random random = new Random(42);
+    final JsonObject[] notifies = new JsonObject[4096];
+    for (int i = 0; i < notifies.length; i++) {
+      notifies[i] = new JsonObject()
+        .put("remote_ip", (1 + random.nextInt(223)) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256))
+        .put("os", "Linux")
+        .put("cpu_arch", "amd64")
+        .put("jvm_version", "11.0.12")
+        .put("jvm_vendor", "Eclipse Adoptium")
+        .put("broker_version", "0.16")
+        .put("uuid", new UUID(random.nextLong(), random.nextLong()).toString())
+        .put("standalone", true)
+        .put("max_heap", "4294967296");
+    }
+
+    final Vertx vertx = Vertx.vertx();
+    try {
+      GeoLocation.registerCodec(vertx);
+      final GeoLocation location = GeoLocation.of("Italy", "Trentino-Alto Adige", "Trento", 46.12468015, 11.18093977);
+      vertx.eventBus().consumer(GeoIPVerticle.RESOLVER_BUS_ADDRESS, msg -> msg.reply(location));
+      final JsonObject stubConfig = new JsonObject()
+        .put("stub_port", STUB_PORT)
+        .put("stub_latency_ms", stubLatencyMs);
+      final XataStub stub = new XataStub();
+      await(vertx.deployVerticle(stub, new DeploymentOptions().setConfig(stubConfig.mergeIn(properties("stub_")))));
+      final XataStub redirector = new XataStub();
+      final boolean redirect = Boolean.getBoolean("redirect");
+      if (redirect) {
+        await(vertx.deployVerticle(redirector, new DeploymentOptions().setConfig(stubConfig.copy()
+          .put("stub_port", REDIRECT_PORT)
+          .put("stub_redirect_to", "http://localhost:" + STUB_PORT))));
+      }
+      final JsonObject gatewayConfig = new JsonObject()
+        .put("api_key", "load-test")
+        .put("xata_base_url", "http://localhost:" + (redirect ? REDIRECT_PORT : STUB_PORT))
+        .put("http_port", GATEWAY_PORT)
+        .put("log_sample_rate", Integer.parseInt(System.getProperty("LOG_SAMPLE_RATE",
+          System.getenv().getOrDefault("LOG_SAMPLE_RATE", "100"))));
+      gatewayConfig.put("sinks", System.getProperty("sinks", "xata"));
+      final ColumnarStore localStore = Sink.configured(gatewayConfig).contains("local")
+        ? new ColumnarStore(Files.createTempDirectory("collector-local-sink"), 256L * 1024 * 1024, false)
+        : null;
+      gatewayConfig.mergeIn(properties("admission_")).mergeIn(properties("xata_"));
+      final Metrics metrics = new Metrics();
+      final AdmissionLimiter limiter = AdmissionLimiter.fromConfig(gatewayConfig);
+      // all the load comes from the same IP
+      final KeyedRateLimiter unlimited = new KeyedRateLimiter(1, 0, 0);
+      // every notify has to reach the stub
+      final DuplicateFilter noDuplicates = new DuplicateFilter(0, 0);
+      final Rollup rollup = new Rollup(100_000);
+      await(vertx.deployVerticle(() -> new GatewayXata(null, localStore, metrics, limiter, unlimited, unlimited,
+        noDuplicates, rollup), new DeploymentOptions()
+        .setConfig(gatewayConfig)
+        .setInstances(Runtime.getRuntime().availableProcessors())));
+
+      final WebClient client = WebClient.create(vertx, new WebClientOptions()
+        .setDefaultHost("localhost")
+        .setDefaultPort(GATEWAY_PORT)
+        .setKeepAlive(true)
+        .setMaxPoolSize(concurrency));
+
+      run(client, notifies, WARMUP_REQUESTS, concurrency);
+      final long start = System.nanoTime();
+      final long[] latencies = run(client, notifies, requests, concurrency);
+      final double elapsedSec = (System.nanoTime() - start) / 1e9;
+
+      final long[] accepted = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+      final long[] errors = Arrays.stream(latencies).filter(latency -> latency < 0 && latency != SHED)
+        .map(latency -> -latency).sorted().toArray();
+      System.out.printf("requests=%d concurrency=%d shed=%d throughput=%.0f req/s p50=%.2f ms p99=%.2f ms p99.9=%.2f ms%n",
+        requests, concurrency, requests - accepted.length - errors.length, accepted.length / elapsedSec,
+        percentile(accepted, 0.50) / 1e6, percentile(accepted, 0.99) / 1e6, percentile(accepted, 0.999) / 1e6);
+      if (errors.length > 0) {
+        System.out.printf("errors=%d p50=%.2f ms p99=%.2f ms%n", errors.length, percentile(errors, 0.50) / 1e6,
+          percentile(errors, 0.99) / 1e6);
+      }
+      System.out.printf("stub: requests=%d records=%d failures=%d redirected=%d%n", stub.requests(), stub.records(),
+        stub.failures(), redirector.requests());
+      if (localStore != null) {
+        System.out.printf("local store: rows=%d bytes/row=%.1f in %s%n", localStore.rows(),
+          (double) localStore.bytes() / Math.max(1, localStore.rows()), localStore.directory());
+      }
+    } finally {
+      vertx.close();
+    }
+  }
+
+  private static long[] run(WebClient client, JsonObject[] notifies, int requests, int concurrency) throws Exception {
+    final long[] latencies = new long[requests];
+    final AtomicInteger issued = new AtomicInteger();
+    final AtomicInteger completed = new AtomicInteger();
+    final Promise<Void> done = Promise.promise();
+    for (int i = 0; i < Math.min(concurrency, requests); i++) {
+      sendNext(client, notifies, latencies, issued, completed, done);
+    }
+    await(done.future());
+    return latencies;
+  }
+
+  private static void sendNext(WebClient client, JsonObject[] notifies, long[] latencies, AtomicInteger issued,
+                               AtomicInteger completed, Promise<Void> done) {
+    final int index = issued.getAndIncrement();
+    if (index >= latencies.length) {
+      return;
+    }
+    final long start = System.nanoTime();
+    client.post("/api/v1/notify")
+      .sendJsonObject(notifies[index % notifies.length])
+      .onComplete(ar -> {
+        latencies[index] = System.nanoTime() - start;
+        if (ar.succeeded() && ar.result().statusCode() == 429) {
+          // shed, excluded from the latency of the accepted requests
+          latencies[index] = SHED;
+        } else if (ar.succeeded() && ar.result().statusCode() != 200) {
+          // e.g. Xata failures injected in the stub, kept apart as negative latency
+          latencies[index] = -latencies[index];
+        }
+        if (ar.failed()) {
+          done.tryFail(ar.cause());
+        } else if (completed.incrementAndGet() == latencies.length) {
+          done.tryComplete();
+        } else {
+          sendNext(client, notifies, latencies, issued, completed, done);
+        }
+      });
+  }
+
+  /**
+   * @return the system properties starting with the prefix, numbers and booleans parsed.
+   */
+  private static JsonObject properties(String prefix) {
+    final JsonObject config = new JsonObject();
+    for (String key : System.getProperties().stringPropertyNames()) {
+      if (!key.startsWith(prefix)) {
+        continue;
+      }
+      final String value = System.getProperty(key);
+      if ("true".equals(value) || "false".equals(value)) {
+        config.put(key, Boolean.parseBoolean(value));
+      } else if (value.matches("-?\\d+")) {
+        config.put(key, Long.parseLong(value));
+      } else if (value.matches("-?\\d*\\.\\d+")) {
+        config.put(key, Double.parseDouble(value));
+      } else {
+        config.put(key, value);
+      }
+    }
+    return config;
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+  }
+
+  private static <T> T await(Future<T> future) throws Exception {
+    return future.toCompletionStage().toCompletableFuture().get();
+  }
+}
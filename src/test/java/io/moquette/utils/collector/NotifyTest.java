@@ -0,0 +1,94 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class NotifyTest {
+
+  private final TextCache cache = new TextCache(1024, 64);
+
+  private Notify parse(String body) throws IOException {
+    return Notify.parse(Buffer.buffer(body), cache);
+  }
+
+  @Test
+  void readsTheKnownFields() throws IOException {
+    final Notify notify = parse("{\"remote_ip\":\"93.184.216.34\",\"os\":\"Linux\",\"cpu_arch\":\"amd64\","
+      + "\"jvm_version\":\"11.0.12\",\"jvm_vendor\":\"Eclipse Adoptium\",\"broker_version\":\"0.16\","
+      + "\"uuid\":\"6a1e7a0e\",\"standalone\":true,\"max_heap\":\"4294967296\"}");
+
+    assertEquals("93.184.216.34", notify.remoteIp());
+    assertEquals("6a1e7a0e", notify.uuid());
+    assertEquals("0.16", notify.brokerVersion());
+    assertEquals("11.0.12", notify.jvmVersion());
+    assertEquals("Linux", notify.os);
+    assertEquals("amd64", notify.cpuArch);
+    assertEquals("Eclipse Adoptium", notify.jvmVendor);
+    assertEquals(Boolean.TRUE, notify.standalone);
+    assertEquals(4294967296L, notify.maxHeap);
+  }
+
+  @Test
+  void skipsUnknownFieldsAndToleratesMissingOnes() throws IOException {
+    final Notify notify = parse("{\"extra\":{\"nested\":[1,2,{\"uuid\":\"inner\"}]},\"uuid\":\"outer\"}");
+
+    assertEquals("outer", notify.uuid());
+    assertNull(notify.remoteIp());
+    assertNull(notify.standalone);
+    assertNull(notify.maxHeap);
+  }
+
+  @Test
+  void readsMaxHeapAsNumberStringOrUndefined() throws IOException {
+    assertEquals(1024L, parse("{\"max_heap\":1024}").maxHeap);
+    assertEquals(1024L, parse("{\"max_heap\":\"1024\"}").maxHeap);
+    assertNull(parse("{\"max_heap\":\"undefined\"}").maxHeap);
+    assertNull(parse("{\"max_heap\":null}").maxHeap);
+  }
+
+  @Test
+  void sharesTheRepeatedTexts() throws IOException {
+    assertSame(parse("{\"os\":\"Linux\"}").os, parse("{\"os\":\"Linux\"}").os);
+  }
+
+  @Test
+  void rejectsMalformedBodies() {
+    assertThrows(IOException.class, () -> parse("[]"));
+    assertThrows(IOException.class, () -> parse("{\"uuid\":\"a\"} {}"));
+    assertThrows(IOException.class, () -> parse("{\"uuid\":\"a\""));
+    assertThrows(IOException.class, () -> parse("{\"uuid\":1}"));
+    assertThrows(IOException.class, () -> parse("{\"standalone\":\"yes\"}"));
+    assertThrows(IOException.class, () -> parse("{\"max_heap\":\"4G\"}"));
+    assertThrows(IOException.class, () -> parse("{\"max_heap\":true}"));
+  }
+
+  @Test
+  void writesTheUsageRow() throws IOException {
+    final Notify notify = parse("{\"remote_ip\":\"93.184.216.34\",\"broker_version\":\"0.16\",\"uuid\":\"6a1e7a0e\","
+      + "\"standalone\":false,\"max_heap\":\"undefined\"}");
+    final GeoLocation location = GeoLocation.of("Italy", "Trentino-Alto Adige", "Trento", 46.1, 11.1);
+
+    final JsonObject row = new UsageRowWriter()
+      .write(notify, "127.0.0.1", "2021-11-20T10:15:30Z", location, 3)
+      .toJsonObject();
+
+    assertEquals("127.0.0.1", row.getString("IP"));
+    assertEquals("2021-11-20T10:15:30Z", row.getString("startup_date"));
+    assertEquals("93.184.216.34", row.getString("remote_ip"));
+    assertEquals("0.16", row.getString("version"));
+    assertEquals("6a1e7a0e", row.getString("uuid"));
+    assertEquals(Boolean.FALSE, row.getBoolean("standalone"));
+    assertEquals("Italy", row.getString("nation"));
+    assertFalse(row.containsKey("max_heap"));
+    assertEquals(3L, row.getLong("suppressed_count"));
+  }
+}
@@ -0,0 +1,187 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RollupTest {
+
+  private static final String[] DAYS = {"2022-01-01", "2022-01-02", "2022-01-03"};
+  private static final String[] VERSIONS = {"0.15", "0.16", null};
+  private static final String[] JVMS = {"1.8", "11", "17"};
+  private static final String[] OSES = {"Linux", "Windows", "Mac OS X"};
+  private static final String[] ARCHS = {"amd64", "aarch64", null};
+  private static final String[] NATIONS = {"Italy", "Germany", "Brazil", null};
+
+  @TempDir
+  Path directory;
+
+  /**
+   * @return the runs, each with the values of all the dimensions.
+   */
+  private static List<String[]> runs(int count) {
+    final Random random = new Random(42);
+    final List<String[]> runs = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      runs.add(new String[] {pick(random, DAYS), pick(random, VERSIONS), pick(random, JVMS), pick(random, OSES),
+        pick(random, ARCHS), pick(random, NATIONS)});
+    }
+    return runs;
+  }
+
+  private static String pick(Random random, String[] values) {
+    return values[random.nextInt(values.length)];
+  }
+
+  private static Rollup rollupOf(List<String[]> runs) {
+    final Rollup rollup = new Rollup(100_000);
+    for (String[] run : runs) {
+      rollup.add(run[0], run[1], run[2], run[3], run[4], run[5]);
+    }
+    return rollup;
+  }
+
+  /**
+   * The query answered scanning all the runs.
+   *
+   * @return the total and, by group values, the count.
+   */
+  private static Map<List<String>, Long> scan(List<String[]> runs, Map<String, String> filters, String fromDay,
+                                              String toDay, List<String> groupBy) {
+    final Map<List<String>, Long> groups = new HashMap<>();
+    long total = 0;
+    for (String[] run : runs) {
+      boolean matches = (fromDay == null || run[0].compareTo(fromDay) >= 0)
+        && (toDay == null || run[0].compareTo(toDay) <= 0);
+      for (Map.Entry<String, String> filter : filters.entrySet()) {
+        matches &= filter.getValue().equals(run[Rollup.DIMENSIONS.indexOf(filter.getKey())]);
+      }
+      if (!matches) {
+        continue;
+      }
+      total++;
+      if (!groupBy.isEmpty()) {
+        final List<String> group = new ArrayList<>();
+        for (String dimension : groupBy) {
+          group.add(run[Rollup.DIMENSIONS.indexOf(dimension)]);
+        }
+        groups.merge(group, 1L, Long::sum);
+      }
+    }
+    groups.put(Collections.singletonList("total"), total);
+    return groups;
+  }
+
+  private static Map<List<String>, Long> groups(JsonObject result, List<String> groupBy) {
+    final Map<List<String>, Long> groups = new HashMap<>();
+    final JsonArray rows = result.getJsonArray("groups", new JsonArray());
+    long previous = Long.MAX_VALUE;
+    for (int i = 0; i < rows.size(); i++) {
+      final JsonObject row = rows.getJsonObject(i);
+      final List<String> group = new ArrayList<>();
+      for (String dimension : groupBy) {
+        group.add(row.getString(dimension));
+      }
+      final long count = row.getLong("count");
+      // sorted by descending count
+      assertTrue(count <= previous);
+      previous = count;
+      groups.put(group, count);
+    }
+    groups.put(Collections.singletonList("total"), result.getLong("total"));
+    return groups;
+  }
+
+  private static void assertQuery(Rollup rollup, List<String[]> runs, Map<String, String> filters, String fromDay,
+                                  String toDay, String... groupBy) {
+    final List<String> dimensions = Arrays.asList(groupBy);
+    assertEquals(scan(runs, filters, fromDay, toDay, dimensions),
+      groups(rollup.query(filters, fromDay, toDay, dimensions), dimensions),
+      "filters " + filters + " from " + fromDay + " to " + toDay + " group by " + dimensions);
+  }
+
+  private static Map<String, String> filters(String... entries) {
+    final Map<String, String> filters = new HashMap<>();
+    for (int i = 0; i < entries.length; i += 2) {
+      filters.put(entries[i], entries[i + 1]);
+    }
+    return filters;
+  }
+
+  @Test
+  void answersLikeAFullScan() {
+    final List<String[]> runs = runs(5000);
+    final Rollup rollup = rollupOf(runs);
+    assertQuery(rollup, runs, filters(), null, null);
+    assertQuery(rollup, runs, filters(), DAYS[1], null, "day");
+    assertQuery(rollup, runs, filters(), null, DAYS[1], "version");
+    // a single dimension, from its counters
+    assertQuery(rollup, runs, filters("nation", "Italy"), null, null, "day", "nation");
+    assertQuery(rollup, runs, filters("os", "Linux"), DAYS[0], DAYS[0]);
+    assertQuery(rollup, runs, filters("day", DAYS[2]), null, null, "cpu_arch");
+    // more dimensions, from the combinations
+    assertQuery(rollup, runs, filters("os", "Linux"), null, null, "version", "jvm_version");
+    assertQuery(rollup, runs, filters("version", "0.16", "nation", "Germany"), DAYS[1], DAYS[2], "day");
+    assertQuery(rollup, runs, filters("jvm_version", "17"), null, null, "nation", "os", "cpu_arch");
+  }
+
+  @Test
+  void loadsTheSnapshot() throws IOException {
+    final List<String[]> runs = runs(1000);
+    final Path snapshot = directory.resolve("rollup.ndjson");
+    final Rollup rollup = rollupOf(runs);
+    rollup.snapshot(snapshot);
+
+    final Rollup loaded = new Rollup(100_000);
+    loaded.load(snapshot);
+    assertEquals(rollup.size(), loaded.size());
+    assertQuery(loaded, runs, filters(), null, null, "day", "version", "jvm_version", "os", "cpu_arch", "nation");
+    assertQuery(loaded, runs, filters("nation", "Brazil"), null, null, "day");
+  }
+
+  @Test
+  void evictsTheDaysPastTheRetention() {
+    final Rollup rollup = new Rollup(1000, 2);
+    rollup.add("2022-01-01", "0.16", "11", "Linux", "amd64", "Italy");
+    rollup.add("2022-01-02", "0.16", "11", "Linux", "amd64", "Italy");
+    rollup.add("2022-01-03", "0.16", "11", "Linux", "amd64", "Italy");
+    assertEquals(1, rollup.evictedDays());
+    assertEquals(2, rollup.size());
+    assertEquals(0, rollup.query(filters("day", "2022-01-01"), null, null, Collections.emptyList()).getLong("total"));
+
+    // a late run of an evicted day
+    rollup.add("2022-01-01", "0.16", "11", "Linux", "amd64", "Italy");
+    assertEquals(1, rollup.dropped());
+    assertEquals(2, rollup.query(filters(), null, null, Collections.emptyList()).getLong("total"));
+  }
+
+  @Test
+  void evictsTheOldestDayOverMaxKeys() {
+    final Rollup rollup = new Rollup(2);
+    rollup.add("2022-01-01", "0.15", "11", "Linux", "amd64", "Italy");
+    rollup.add("2022-01-02", "0.16", "11", "Linux", "amd64", "Italy");
+    // no room left in the oldest day
+    rollup.add("2022-01-01", "0.16", "11", "Linux", "amd64", "Italy");
+    assertEquals(1, rollup.dropped());
+
+    rollup.add("2022-01-02", "0.16", "17", "Linux", "amd64", "Italy");
+    assertEquals(1, rollup.evictedDays());
+    assertEquals(2, rollup.size());
+    assertEquals(2, rollup.query(filters("day", "2022-01-02"), null, null, Collections.emptyList()).getLong("total"));
+    assertEquals(0, rollup.query(filters("day", "2022-01-01"), null, null, Collections.emptyList()).getLong("total"));
+  }
+}
@@ -0,0 +1,147 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpoolTest {
+
+  private static final int SEGMENT_BYTES = 64;
+
+  @TempDir
+  Path directory;
+
+  private Spool spool;
+
+  @AfterEach
+  void close() throws IOException {
+    if (spool != null) {
+      spool.close();
+    }
+  }
+
+  private Spool reopen() throws IOException {
+    if (spool != null) {
+      spool.close();
+    }
+    spool = new Spool(directory, SEGMENT_BYTES, false);
+    return spool;
+  }
+
+  private static List<Buffer> records(String... records) {
+    final List<Buffer> buffers = new ArrayList<>();
+    for (String record : records) {
+      buffers.add(Buffer.buffer(record));
+    }
+    return buffers;
+  }
+
+  private static List<String> strings(Spool.Batch batch) {
+    final List<String> records = new ArrayList<>();
+    for (Buffer record : batch.records()) {
+      records.add(record.toString());
+    }
+    return records;
+  }
+
+  private Path lastSegment() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(p -> p.toString().endsWith(".seg")).sorted().reduce((a, b) -> b).get();
+    }
+  }
+
+  @Test
+  void readsTheRecordsAcrossSegments() throws IOException {
+    reopen().append(records("first record", "second record", "third record", "fourth record"));
+    assertEquals(2, spool.segmentCount());
+    assertEquals(Arrays.asList("first record", "second record", "third record", "fourth record"),
+      strings(spool.readUnacknowledged(10)));
+    assertEquals(Arrays.asList("first record", "second record"), strings(spool.readUnacknowledged(2)));
+  }
+
+  @Test
+  void resumesFromTheCheckpoint() throws IOException {
+    reopen().append(records("first record", "second record", "third record", "fourth record"));
+    spool.acknowledge(spool.readUnacknowledged(3).nextOffset());
+
+    reopen();
+    final Spool.Batch fourth = spool.readUnacknowledged(10);
+    assertEquals(Arrays.asList("fourth record"), strings(fourth));
+    spool.acknowledge(fourth.nextOffset());
+    // the first segment holds only acknowledged records
+    assertEquals(1, spool.segmentCount());
+    assertEquals(0, spool.backlogBytes());
+
+    reopen();
+    spool.append(records("fifth record"));
+    assertEquals(Arrays.asList("fifth record"), strings(spool.readUnacknowledged(10)));
+  }
+
+  @Test
+  void recoversAfterATornWrite() throws IOException {
+    reopen().append(records("first", "second"));
+    final Spool.Batch written = spool.readUnacknowledged(10);
+    // its bytes after a shorter record look like the length and payload of another one
+    spool.append(Arrays.asList(Buffer.buffer("torn!").appendInt(2).appendString("zz")));
+    spool.close();
+    spool = null;
+    // the crash came after the payload, before its length
+    final long tornOffset = written.nextOffset();
+    try (RandomAccessFile segment = new RandomAccessFile(lastSegment().toFile(), "rw")) {
+      segment.seek(tornOffset);
+      segment.writeInt(0);
+    }
+
+    reopen();
+    assertEquals(Arrays.asList("first", "second"), strings(spool.readUnacknowledged(10)));
+    // shorter than the torn one, its bytes must not be taken as the following record
+    spool.append(records("third"));
+    reopen();
+    assertEquals(Arrays.asList("first", "second", "third"), strings(spool.readUnacknowledged(10)));
+    spool.append(records("fourth"));
+    assertEquals(Arrays.asList("first", "second", "third", "fourth"), strings(spool.readUnacknowledged(10)));
+  }
+
+  @Test
+  void truncatesAtAnInvalidLength() throws IOException {
+    reopen().append(records("first", "second"));
+    final long secondOffset = spool.readUnacknowledged(1).nextOffset();
+    spool.close();
+    spool = null;
+    try (RandomAccessFile segment = new RandomAccessFile(lastSegment().toFile(), "rw")) {
+      segment.seek(secondOffset);
+      segment.writeInt(SEGMENT_BYTES * 2);
+    }
+
+    reopen();
+    assertEquals(Arrays.asList("first"), strings(spool.readUnacknowledged(10)));
+  }
+
+  @Test
+  void refusesARecordLongerThanASegment() throws IOException {
+    reopen();
+    final List<Buffer> records = records(new String(new char[SEGMENT_BYTES]));
+    assertThrows(IOException.class, () -> spool.append(records));
+    assertEquals(0, spool.backlogBytes());
+  }
+
+  @Test
+  void setsTheRejectedRecordsAside() throws IOException {
+    reopen().reject(records("refused"));
+    assertTrue(Files.readAllLines(directory.resolve("rejected.ndjson")).contains("refused"));
+  }
+}
@@ -0,0 +1,101 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(VertxExtension.class)
+class WriteBehindBatcherTest {
+
+  private final List<List<String>> written = new ArrayList<>();
+
+  /**
+   * Refuses with 400 the batches containing a "bad" row, as Xata does for a value that doesn't fit.
+   */
+  private Future<Void> bulkInsert(List<Buffer> rows) {
+    final List<String> batch = new ArrayList<>();
+    for (Buffer row : rows) {
+      batch.add(row.toString());
+    }
+    if (batch.contains("bad")) {
+      return Future.failedFuture(new XataStatusException(400, "invalid record"));
+    }
+    written.add(batch);
+    return Future.succeededFuture();
+  }
+
+  private static List<Future<Void>> addAll(WriteBehindBatcher batcher, String... rows) {
+    final List<Future<Void>> results = new ArrayList<>();
+    for (String row : rows) {
+      results.add(batcher.add(Buffer.buffer(row)));
+    }
+    return results;
+  }
+
+  @Test
+  void flushesWhenFull(Vertx vertx, VertxTestContext testContext) {
+    final WriteBehindBatcher batcher = new WriteBehindBatcher(vertx, 3, 60_000L, this::bulkInsert);
+    final List<Future<Void>> results = addAll(batcher, "a", "b", "c");
+    CompositeFuture.all(new ArrayList<>(results)).onComplete(testContext.succeeding(v -> testContext.verify(() -> {
+      assertEquals(1, written.size());
+      assertEquals(3, written.get(0).size());
+      testContext.completeNow();
+    })));
+  }
+
+  @Test
+  void flushesAfterTheDelay(Vertx vertx, VertxTestContext testContext) {
+    final WriteBehindBatcher batcher = new WriteBehindBatcher(vertx, 50, 10L, this::bulkInsert);
+    final List<Future<Void>> results = addAll(batcher, "a", "b");
+    CompositeFuture.all(new ArrayList<>(results)).onComplete(testContext.succeeding(v -> testContext.verify(() -> {
+      assertEquals(1, written.size());
+      assertEquals(0, batcher.pendingRows());
+      testContext.completeNow();
+    })));
+  }
+
+  @Test
+  void failsOnlyTheRefusedRow(Vertx vertx, VertxTestContext testContext) {
+    final WriteBehindBatcher batcher = new WriteBehindBatcher(vertx, 8, 60_000L, this::bulkInsert,
+      XataClient::isRowRejection);
+    final List<Future<Void>> results = addAll(batcher, "a", "b", "c", "bad", "e", "f", "g", "h");
+    CompositeFuture.join(new ArrayList<>(results)).onComplete(ar -> testContext.verify(() -> {
+      for (int i = 0; i < results.size(); i++) {
+        assertEquals(i != 3, results.get(i).succeeded(), "row " + i);
+      }
+      assertEquals(400, ((XataStatusException) results.get(3).cause()).statusCode());
+      int stored = 0;
+      for (List<String> batch : written) {
+        stored += batch.size();
+      }
+      assertEquals(7, stored);
+      // 8 -> 4 -> 2 -> 1
+      assertEquals(3, batcher.splitBatches());
+      testContext.completeNow();
+    }));
+  }
+
+  @Test
+  void failsTheWholeBatchOtherwise(Vertx vertx, VertxTestContext testContext) {
+    final WriteBehindBatcher batcher = new WriteBehindBatcher(vertx, 2, 60_000L,
+      rows -> Future.failedFuture(new XataStatusException(503, "unavailable")), XataClient::isRowRejection);
+    final List<Future<Void>> results = addAll(batcher, "a", "b");
+    CompositeFuture.join(new ArrayList<>(results)).onComplete(ar -> testContext.verify(() -> {
+      assertTrue(results.get(0).failed());
+      assertTrue(results.get(1).failed());
+      assertEquals(0, batcher.splitBatches());
+      testContext.completeNow();
+    }));
+  }
+}
@@ -0,0 +1,189 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.junit5.VertxTestContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Retries and circuit breaker of the Xata client, against a {@link XataStub} with injected failures
+ * and latency.
+ */
+@ExtendWith(VertxExtension.class)
+class XataClientTest {
+
+  private static final List<Buffer> ROWS = Collections.singletonList(new JsonObject().put("uuid", "a").toBuffer());
+
+  private XataStub stub;
+  private String stubDeployment;
+  private int stubPort;
+  private XataClient client;
+
+  /**
+   * Deploys the stub and creates the client on an event loop context, as the gateway does.
+   */
+  private Future<Void> start(Vertx vertx, JsonObject stubConfig, JsonObject clientConfig) throws IOException {
+    return deployStubOnFreePort(vertx, stubConfig, 3)
+      .compose(deployed -> {
+        final Promise<Void> created = Promise.promise();
+        vertx.getOrCreateContext().runOnContext(v -> {
+          client = new XataClient(vertx, new JsonObject()
+            .put("api_key", "test")
+            .put("xata_base_url", "http://localhost:" + stubPort)
+            .put("xata_retry_base_delay_ms", 1L)
+            .mergeIn(clientConfig), new Metrics());
+          created.complete();
+        });
+        return created.future();
+      });
+  }
+
+  // the free port can be taken by another socket before the stub binds it
+  private Future<Void> deployStubOnFreePort(Vertx vertx, JsonObject stubConfig, int attempts) throws IOException {
+    stubPort = GatewayXataTest.freePort();
+    return deployStub(vertx, stubConfig).recover(th -> {
+      if (attempts == 0 || !(th instanceof BindException)) {
+        return Future.failedFuture(th);
+      }
+      try {
+        return deployStubOnFreePort(vertx, stubConfig, attempts - 1);
+      } catch (IOException e) {
+        return Future.failedFuture(e);
+      }
+    });
+  }
+
+  private Future<Void> deployStub(Vertx vertx, JsonObject stubConfig) {
+    stub = new XataStub();
+    return vertx.deployVerticle(stub, new DeploymentOptions().setConfig(stubConfig.copy().put("stub_port", stubPort)))
+      .onSuccess(id -> stubDeployment = id)
+      .mapEmpty();
+  }
+
+  /**
+   * @return the outcomes of the inserts, sent one after the other.
+   */
+  private Future<Void> insertAll(int count, List<Throwable> failures) {
+    Future<Void> previous = Future.succeededFuture();
+    for (int i = 0; i < count; i++) {
+      previous = previous.compose(v -> client.bulkInsert(ROWS).otherwise(th -> {
+        failures.add(th);
+        return null;
+      }));
+    }
+    return previous;
+  }
+
+  @Test
+  void insertsTheRows(Vertx vertx, VertxTestContext testContext) throws IOException {
+    start(vertx, new JsonObject().put("stub_latency_ms", 20L), new JsonObject())
+      .compose(v -> client.bulkInsert(ROWS))
+      .onComplete(testContext.succeeding(v -> testContext.verify(() -> {
+        assertEquals(1, stub.requests());
+        assertEquals(1, stub.records());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void retriesUnavailableResponses(Vertx vertx, VertxTestContext testContext) throws IOException {
+    final JsonObject stubConfig = new JsonObject()
+      .put("stub_failure_rate", 1.0)
+      .put("stub_failure_status", 503);
+    start(vertx, stubConfig, new JsonObject().put("xata_retry_max", 2))
+      .compose(v -> client.bulkInsert(ROWS))
+      .onComplete(testContext.failing(th -> testContext.verify(() -> {
+        assertEquals(503, ((XataStatusException) th).statusCode());
+        assertEquals(3, stub.requests());
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void doesNotRetryRefusedRows(Vertx vertx, VertxTestContext testContext) throws IOException {
+    final JsonObject stubConfig = new JsonObject()
+      .put("stub_failure_rate", 1.0)
+      .put("stub_failure_status", 422);
+    start(vertx, stubConfig, new JsonObject().put("xata_retry_max", 2))
+      .compose(v -> client.bulkInsert(ROWS))
+      .onComplete(testContext.failing(th -> testContext.verify(() -> {
+        assertEquals(422, ((XataStatusException) th).statusCode());
+        assertEquals(1, stub.requests());
+        // a refused request says nothing of the health of Xata
+        assertEquals("CLOSED", client.stats().getJsonObject("circuit_breaker").getString("state"));
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void opensTheBreakerOnSlowResponses(Vertx vertx, VertxTestContext testContext) throws IOException {
+    final JsonObject clientConfig = new JsonObject()
+      .put("xata_request_timeout_ms", 50L)
+      .put("xata_retry_max", 0)
+      .put("xata_breaker_window", 4)
+      .put("xata_breaker_min_calls", 4)
+      .put("xata_breaker_open_ms", 60_000L);
+    final List<Throwable> failures = new ArrayList<>();
+    start(vertx, new JsonObject().put("stub_latency_ms", 500L), clientConfig)
+      .compose(v -> insertAll(6, failures))
+      .onComplete(testContext.succeeding(v -> testContext.verify(() -> {
+        assertEquals(6, failures.size());
+        // the first 4 time out, then the open breaker fails the calls without sending them
+        for (int i = 0; i < 4; i++) {
+          assertFalse(failures.get(i) instanceof CircuitOpenException, failures.get(i).toString());
+        }
+        assertTrue(failures.get(4) instanceof CircuitOpenException);
+        assertTrue(failures.get(5) instanceof CircuitOpenException);
+        final JsonObject breaker = client.stats().getJsonObject("circuit_breaker");
+        assertEquals("OPEN", breaker.getString("state"));
+        assertEquals(2L, breaker.getLong("rejected"));
+        testContext.completeNow();
+      })));
+  }
+
+  @Test
+  void probesAfterTheOpenInterval(Vertx vertx, VertxTestContext testContext) throws IOException {
+    // slow responses until the stub is replaced by one without latency
+    final JsonObject clientConfig = new JsonObject()
+      .put("xata_request_timeout_ms", 50L)
+      .put("xata_retry_max", 0)
+      .put("xata_breaker_window", 2)
+      .put("xata_breaker_min_calls", 2)
+      .put("xata_breaker_open_ms", 100L);
+    final List<Throwable> failures = new ArrayList<>();
+    start(vertx, new JsonObject().put("stub_latency_ms", 5000L), clientConfig)
+      .compose(v -> insertAll(2, failures))
+      .compose(v -> {
+        testContext.verify(() -> assertEquals("OPEN", client.stats().getJsonObject("circuit_breaker").getString("state")));
+        return vertx.undeploy(stubDeployment);
+      })
+      .compose(v -> deployStub(vertx, new JsonObject()))
+      .compose(v -> {
+        final Promise<Void> afterOpen = Promise.promise();
+        vertx.setTimer(150, t -> afterOpen.complete());
+        return afterOpen.future();
+      })
+      .compose(v -> client.bulkInsert(ROWS))
+      .onComplete(testContext.succeeding(v -> testContext.verify(() -> {
+        assertEquals(1, stub.records());
+        assertEquals("CLOSED", client.stats().getJsonObject("circuit_breaker").getString("state"));
+        testContext.completeNow();
+      })));
+  }
+}
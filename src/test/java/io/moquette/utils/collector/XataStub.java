@@ -0,0 +1,151 @@
+package io.moquette.utils.collector;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local stand-in of the Xata bulk insert endpoint, to exercise the collector without a Xata account.
+ * Point the collector to it with {@code XATA_BASE_URL=http://localhost:9090}.
+ * <p>
+ * Accepted configuration keys:
+ * <ul>
+ *   <li>stub_port: listening port, default 9090</li>
+ *   <li>stub_latency_ms: delay before every response, default 0</li>
+ *   <li>stub_slow_rate, stub_slow_latency_ms: fraction of the responses delayed by the slow
+ *   latency instead, to reproduce the tail latency, default 0</li>
+ *   <li>stub_failure_rate, stub_failure_status: fraction of the requests failed with the status,
+ *   without storing the records, default 0 and 503</li>
+ *   <li>stub_redirect_to: base URL where every request is permanently redirected (308), to
+ *   stand for a moved workspace</li>
+ *   <li>stub_keep_records: keeps the stored records, for the tests to inspect them, default false</li>
+ * </ul>
+ */
+public class XataStub extends AbstractVerticle {
+
+  private final Logger logger = LoggerFactory.getLogger(XataStub.class);
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder records = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private long latencyMs;
+  private double slowRate;
+  private long slowLatencyMs;
+  private double failureRate;
+  private int failureStatus;
+  private String redirectTo;
+  private boolean keepRecords;
+  private final List<JsonObject> stored = new CopyOnWriteArrayList<>();
+
+  public static void main(String[] args) {
+    final JsonObject config = new JsonObject()
+      .put("stub_port", args.length > 0 ? Integer.parseInt(args[0]) : 9090)
+      .put("stub_latency_ms", args.length > 1 ? Long.parseLong(args[1]) : 0L);
+    Vertx.vertx().deployVerticle(new XataStub(), new DeploymentOptions().setConfig(config));
+  }
+
+  @Override
+  public void start(Promise<Void> promise) {
+    latencyMs = config().getLong("stub_latency_ms", 0L);
+    slowRate = config().getDouble("stub_slow_rate", 0.0);
+    slowLatencyMs = config().getLong("stub_slow_latency_ms", 0L);
+    failureRate = config().getDouble("stub_failure_rate", 0.0);
+    failureStatus = config().getInteger("stub_failure_status", 503);
+    redirectTo = config().getString("stub_redirect_to");
+    keepRecords = config().getBoolean("stub_keep_records", false);
+    final int port = config().getInteger("stub_port", 9090);
+    vertx.createHttpServer()
+      .requestHandler(this::handle)
+      .listen(port)
+      .onSuccess(server -> {
+        logger.info("Xata stub listening on {} with {} ms latency", port, latencyMs);
+        promise.complete();
+      })
+      .onFailure(promise::fail);
+  }
+
+  private void handle(HttpServerRequest request) {
+    if (redirectTo != null) {
+      final String location = redirectTo + request.uri();
+      if (latencyMs > 0) {
+        vertx.setTimer(latencyMs, id -> redirect(request, location));
+      } else {
+        redirect(request, location);
+      }
+      return;
+    }
+    request.body().onSuccess(body -> {
+      requests.increment();
+      final ThreadLocalRandom random = ThreadLocalRandom.current();
+      final boolean fail = failureRate > 0 && random.nextDouble() < failureRate;
+      if (fail) {
+        failures.increment();
+      } else {
+        final JsonArray inserted = new JsonObject(body).getJsonArray("records");
+        records.add(inserted.size());
+        if (keepRecords) {
+          for (int i = 0; i < inserted.size(); i++) {
+            stored.add(inserted.getJsonObject(i));
+          }
+        }
+      }
+      final long delayMs = slowRate > 0 && random.nextDouble() < slowRate ? slowLatencyMs : latencyMs;
+      if (delayMs > 0) {
+        vertx.setTimer(delayMs, id -> reply(request, fail));
+      } else {
+        reply(request, fail);
+      }
+    });
+  }
+
+  private void redirect(HttpServerRequest request, String location) {
+    requests.increment();
+    request.response()
+      .setStatusCode(308)
+      .putHeader(HttpHeaders.LOCATION, location)
+      .end();
+  }
+
+  private void reply(HttpServerRequest request, boolean fail) {
+    if (fail) {
+      request.response().setStatusCode(failureStatus).end();
+      return;
+    }
+    request.response()
+      .setStatusCode(200)
+      .putHeader(HttpHeaders.CONTENT_TYPE, "application/json")
+      .end("{\"recordIDs\":[]}");
+  }
+
+  public long requests() {
+    return requests.sum();
+  }
+
+  public long records() {
+    return records.sum();
+  }
+
+  public long failures() {
+    return failures.sum();
+  }
+
+  /**
+   * @return the stored records, if kept.
+   */
+  public List<JsonObject> stored() {
+    return new ArrayList<>(stored);
+  }
+}